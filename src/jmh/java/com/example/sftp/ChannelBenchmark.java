@@ -0,0 +1,104 @@
+package com.example.sftp;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole-object transfers through each channel type at different SFTP request sizes.
+ * One operation moves {@link #OBJECT_SIZE} bytes, so MB/s is ops/s times 16.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChannelBenchmark {
+    private static final int OBJECT_SIZE = 16 * 1024 * 1024;
+    private static final String BUCKET = "bench";
+    private static final String SOURCE_KEY = "bench/source.bin";
+    private static final String TARGET_KEY = "bench/target.bin";
+
+    @Param({"4096", "32768", "262144"})
+    public int requestSize;
+
+    private InMemoryS3Backend backend;
+    private S3FileSystemProvider provider;
+    private Path sourcePath;
+    private Path targetPath;
+    private ByteBuffer readBuffer;
+    private ByteBuffer writeBuffer;
+
+    @Setup
+    public void setUp() {
+        backend = new InMemoryS3Backend();
+        byte[] data = new byte[OBJECT_SIZE];
+        new Random(42).nextBytes(data);
+        backend.putBytes(SOURCE_KEY, data);
+
+        S3FileSystem fs = new S3FileSystem(backend, BUCKET);
+        provider = (S3FileSystemProvider) fs.provider();
+        sourcePath = fs.getPath("/" + SOURCE_KEY);
+        targetPath = fs.getPath("/" + TARGET_KEY);
+        readBuffer = ByteBuffer.allocateDirect(requestSize);
+        writeBuffer = ByteBuffer.allocateDirect(requestSize);
+        new Random(7).ints(requestSize).forEach(b -> writeBuffer.put((byte) b));
+        writeBuffer.flip();
+    }
+
+    @Benchmark
+    public long seekableChannelRead() throws IOException {
+        try (S3SeekableByteChannel channel = new S3SeekableByteChannel(backend, BUCKET, SOURCE_KEY)) {
+            return drain(channel);
+        }
+    }
+
+    @Benchmark
+    public long fileChannelRead() throws IOException {
+        try (FileChannel channel = provider.newFileChannel(sourcePath, Set.of(StandardOpenOption.READ))) {
+            return drain(channel);
+        }
+    }
+
+    @Benchmark
+    public long outputChannelWrite() throws IOException {
+        try (S3OutputByteChannel channel = new S3OutputByteChannel(backend, BUCKET, TARGET_KEY)) {
+            return fill(channel);
+        }
+    }
+
+    @Benchmark
+    public long fileChannelWrite() throws IOException {
+        try (FileChannel channel = provider.newFileChannel(targetPath,
+                Set.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))) {
+            return fill(channel);
+        }
+    }
+
+    private long drain(ReadableByteChannel channel) throws IOException {
+        long total = 0;
+        int read;
+        while ((read = channel.read(readBuffer.clear())) >= 0) {
+            total += read;
+        }
+        return total;
+    }
+
+    private long fill(WritableByteChannel channel) throws IOException {
+        long total = 0;
+        while (total < OBJECT_SIZE) {
+            total += channel.write(writeBuffer.rewind());
+        }
+        return total;
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.sftp;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full iteration of one large directory, as an SFTP READDIR loop would do it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class DirectoryStreamBenchmark {
+    private static final byte[] EMPTY = new byte[0];
+
+    @Param({"10000", "100000", "1000000"})
+    public int entries;
+
+    private S3FileSystemProvider provider;
+    private Path directory;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        InMemoryS3Backend backend = new InMemoryS3Backend();
+        for (int i = 0; i < entries; i++) {
+            backend.putBytes(String.format("listing/file-%07d.dat", i), EMPTY);
+        }
+        S3FileSystem fs = new S3FileSystem(backend, "bench");
+        provider = (S3FileSystemProvider) fs.provider();
+        directory = fs.getPath("/listing");
+    }
+
+    @Benchmark
+    public int iterate() throws IOException {
+        int count = 0;
+        try (DirectoryStream<Path> stream = provider.newDirectoryStream(directory, entry -> true)) {
+            for (Path ignored : stream) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.sftp;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Path manipulation as SFTP handlers do it on every request: parsing a client path,
+ * walking to the parent and resolving children.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PathBenchmark {
+    @Param({"/home/admin/file.txt", "/home/admin/projects/s3-sftp/src/main/java/com/example/sftp/S3Path.java"})
+    public String pathString;
+
+    private S3FileSystem fs;
+    private Path path;
+
+    @Setup
+    public void setUp() {
+        fs = new S3FileSystem(new InMemoryS3Backend(), "bench");
+        path = fs.getPath(pathString);
+    }
+
+    @Benchmark
+    public Path getPath() {
+        return fs.getPath(pathString);
+    }
+
+    @Benchmark
+    public Path getParent() {
+        return path.getParent();
+    }
+
+    @Benchmark
+    public Path resolve() {
+        return path.getParent().resolve("sibling.txt");
+    }
+
+    @Benchmark
+    public int getNameCount() {
+        return path.getNameCount();
+    }
+
+    @Benchmark
+    public Path subpath() {
+        return path.subpath(1, path.getNameCount());
+    }
+
+    @Benchmark
+    public int hashCodeOf() {
+        return path.hashCode();
+    }
+}
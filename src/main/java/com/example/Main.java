@@ -1,17 +1,31 @@
 package com.example;
 
-//TIP To <b>Run</b> code, press <shortcut actionId="Run"/> or
-// click the <icon src="AllIcons.Actions.Execute"/> icon in the gutter.
-public class Main {
-    public static void main(String[] args) {
-        //TIP Press <shortcut actionId="ShowIntentionActions"/> with your caret at the highlighted text
-        // to see how IntelliJ IDEA suggests fixing it.
-        System.out.printf("Hello and welcome!");
+import com.example.sftp.S3SftpServer;
+import com.example.sftp.SftpLoadHarness;
+
+import java.util.Arrays;
 
-        for (int i = 1; i <= 5; i++) {
-            //TIP Press <shortcut actionId="Debug"/> to start debugging your code. We have set one <icon src="AllIcons.Debugger.Db_set_breakpoint"/> breakpoint
-            // for you, but you can always add more by pressing <shortcut actionId="ToggleLineBreakpoint"/>.
-            System.out.println("i = " + i);
+/**
+ * Command-line entry point.
+ * <ul>
+ *   <li>{@code server [port] [bucket]} runs the SFTP server against S3.</li>
+ *   <li>{@code load [--name=value ...]} runs {@link SftpLoadHarness} against an in-memory bucket.</li>
+ * </ul>
+ */
+public class Main {
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "server";
+        String[] rest = Arrays.copyOfRange(args, Math.min(1, args.length), args.length);
+        switch (mode) {
+            case "server":
+                S3SftpServer.main(rest);
+                break;
+            case "load":
+                SftpLoadHarness.main(rest);
+                break;
+            default:
+                System.err.println("Usage: Main server [port] [bucket] | Main load [--name=value ...]");
+                System.exit(2);
         }
     }
-}
\ No newline at end of file
+}
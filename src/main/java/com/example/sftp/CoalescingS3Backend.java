@@ -0,0 +1,151 @@
+package com.example.sftp;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Backend decorator that collapses concurrent identical metadata requests into one S3
+ * call. A HEAD, or a LIST probe for a single key, joins the request already in flight
+ * for the same parameters and receives a copy of its result. Nothing is kept once the
+ * call completes, so a caller only ever shares a request that was still in flight when
+ * it arrived, and no staleness is added beyond that overlap.
+ * Disabled with {@code s3sftp.coalesce=false}.
+ */
+class CoalescingS3Backend implements S3Backend {
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("s3sftp.coalesce", "true"));
+
+    private static final LongAdder HEAD_COALESCED = S3Metrics.counter("s3_coalesced", "api", "HeadObject");
+    private static final LongAdder LIST_COALESCED = S3Metrics.counter("s3_coalesced", "api", "ListObjectsV2");
+
+    private final S3Backend delegate;
+    // Keyed by the request itself: SDK requests compare by value, and the request
+    // type separates operations
+    private final Map<Object, CompletableFuture<?>> inFlight = new ConcurrentHashMap<>();
+
+    CoalescingS3Backend(S3Backend delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Wraps the backend unless coalescing is disabled.
+     */
+    static S3Backend wrap(S3Backend backend) {
+        return ENABLED ? new CoalescingS3Backend(backend) : backend;
+    }
+
+    @Override
+    public CompletableFuture<HeadObjectResponse> headObject(HeadObjectRequest request) {
+        return coalesce(request, HEAD_COALESCED, () -> delegate.headObject(request));
+    }
+
+    @Override
+    public CompletableFuture<ListObjectsV2Response> listObjectsV2(ListObjectsV2Request request) {
+        if (request.maxKeys() == null || request.maxKeys() != 1 || request.continuationToken() != null) {
+            return delegate.listObjectsV2(request);
+        }
+        return coalesce(request, LIST_COALESCED, () -> delegate.listObjectsV2(request));
+    }
+
+    @Override
+    public CompletableFuture<ResponseInputStream<GetObjectResponse>> getObject(GetObjectRequest request) {
+        return delegate.getObject(request);
+    }
+
+    @Override
+    public CompletableFuture<PutObjectResponse> putObject(PutObjectRequest request, ByteBuffer body) {
+        return delegate.putObject(request, body);
+    }
+
+    @Override
+    public CompletableFuture<CopyObjectResponse> copyObject(CopyObjectRequest request) {
+        return delegate.copyObject(request);
+    }
+
+    @Override
+    public CompletableFuture<DeleteObjectResponse> deleteObject(DeleteObjectRequest request) {
+        return delegate.deleteObject(request);
+    }
+
+    @Override
+    public CompletableFuture<DeleteObjectsResponse> deleteObjects(DeleteObjectsRequest request) {
+        return delegate.deleteObjects(request);
+    }
+
+    @Override
+    public CompletableFuture<CreateMultipartUploadResponse> createMultipartUpload(CreateMultipartUploadRequest request) {
+        return delegate.createMultipartUpload(request);
+    }
+
+    @Override
+    public CompletableFuture<UploadPartResponse> uploadPart(UploadPartRequest request, ByteBuffer body) {
+        return delegate.uploadPart(request, body);
+    }
+
+    @Override
+    public CompletableFuture<UploadPartCopyResponse> uploadPartCopy(UploadPartCopyRequest request) {
+        return delegate.uploadPartCopy(request);
+    }
+
+    @Override
+    public CompletableFuture<CompleteMultipartUploadResponse> completeMultipartUpload(CompleteMultipartUploadRequest request) {
+        return delegate.completeMultipartUpload(request);
+    }
+
+    @Override
+    public CompletableFuture<AbortMultipartUploadResponse> abortMultipartUpload(AbortMultipartUploadRequest request) {
+        return delegate.abortMultipartUpload(request);
+    }
+
+    @Override
+    public CompletableFuture<ListPartsResponse> listParts(ListPartsRequest request) {
+        return delegate.listParts(request);
+    }
+
+    @Override
+    public CompletableFuture<ListBucketsResponse> listBuckets() {
+        return delegate.listBuckets();
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    /**
+     * Returns a copy of the in-flight future for the key, issuing the request if there is
+     * none. Each caller gets its own copy so that cancelling one does not affect the others.
+     * The entry is removed before the shared future completes, so late arrivals always
+     * start a fresh request rather than picking up a finished one.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> coalesce(Object key, LongAdder coalesced, Supplier<CompletableFuture<T>> request) {
+        CompletableFuture<T> shared = new CompletableFuture<>();
+        CompletableFuture<T> existing = (CompletableFuture<T>) inFlight.putIfAbsent(key, shared);
+        if (existing != null) {
+            coalesced.increment();
+            return existing.copy();
+        }
+
+        try {
+            request.get().whenComplete((response, error) -> {
+                inFlight.remove(key, shared);
+                if (error != null) {
+                    shared.completeExceptionally(error);
+                } else {
+                    shared.complete(response);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.remove(key, shared);
+            shared.completeExceptionally(e);
+        }
+        return shared.copy();
+    }
+}
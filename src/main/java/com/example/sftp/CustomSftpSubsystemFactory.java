@@ -1,6 +1,7 @@
 package com.example.sftp;
 
 import org.apache.sshd.common.util.threads.CloseableExecutorService;
+import org.apache.sshd.common.util.threads.SshThreadPoolExecutor;
 import org.apache.sshd.server.channel.ChannelDataReceiver;
 import org.apache.sshd.server.channel.ChannelSession;
 import org.apache.sshd.sftp.server.*;
@@ -10,6 +11,8 @@ import java.nio.file.*;
 import java.util.Collection;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import static org.apache.sshd.common.session.helpers.AbstractSession.getSession;
 
@@ -21,7 +24,10 @@ public class CustomSftpSubsystemFactory extends SftpSubsystemFactory {
 
     @Override
     public SftpSubsystem createSubsystem(ChannelSession channel) {
-        return new CustomSftpSubsystem(channel, createConfigurator());
+        CustomSftpSubsystem subsystem = new CustomSftpSubsystem(channel, createConfigurator());
+        // The stock factory does this in its createSubsystem; without it no listener fires
+        getRegisteredListeners().forEach(subsystem::addSftpEventListener);
+        return subsystem;
     }
 
     protected SftpSubsystemConfigurator createConfigurator() {
@@ -38,6 +44,11 @@ public class CustomSftpSubsystemFactory extends SftpSubsystemFactory {
 
             @Override
             public CloseableExecutorService getExecutorService() {
+                if (S3Executors.VIRTUAL_THREADS) {
+                    // Same shape as the stock single-thread executor; the subsystem shuts it down
+                    return new SshThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                            new LinkedBlockingQueue<>(), S3Executors.sessionThreads("sftp-subsystem"));
+                }
                 return CustomSftpSubsystemFactory.this.resolveExecutorService();
             }
 
@@ -54,9 +65,11 @@ public class CustomSftpSubsystemFactory extends SftpSubsystemFactory {
         };
     }
 
-    private static class CustomSftpSubsystem extends SftpSubsystem {
+    static class CustomSftpSubsystem extends SftpSubsystem {
         // Map to track our handles
         private final Map<String, Handle> handleMap = new ConcurrentHashMap<>();
+        // Set while closing handles the client left open when the connection went away
+        private volatile boolean closingAbandonedHandles;
 
         public CustomSftpSubsystem(ChannelSession channel, SftpSubsystemConfigurator configurator) {
             super(channel, configurator);
@@ -65,46 +78,63 @@ public class CustomSftpSubsystemFactory extends SftpSubsystemFactory {
 
         @Override
         public void destroy(ChannelSession channel) {
-            System.out.println("CustomSftpSubsystem: Starting graceful destruction for session: " + channel);
+            S3Trace.event("CustomSftpSubsystem: Starting graceful destruction for session: {}", channel);
             try {
                 // Close any open handles for this session
-                System.out.println("CustomSftpSubsystem: Closing open handles, count: " + handleMap.size());
+                S3Trace.event("CustomSftpSubsystem: Closing open handles, count: {}", handleMap.size());
                 for (Map.Entry<String, Handle> handle : handleMap.entrySet()) {
                     try {
                         handle.getValue().close();
-                        System.out.println("Closed handle: " + handle.getKey());
+                        S3Trace.event("Closed handle: {}", handle.getKey());
                     } catch (IOException e) {
-                        System.err.println("Error closing handle " + handle.getKey() + ": " + e.getMessage());
+                        S3Trace.warn("Error closing handle {}: {}", handle.getKey(), e.getMessage());
                     }
                 }
                 handleMap.clear();
 
                 // Clear session-specific caches
-                System.out.println("CustomSftpSubsystem: Clearing session caches");
+                S3Trace.event("CustomSftpSubsystem: Clearing session caches");
                 clearAttributes();
 
             } catch (Exception e) {
-                System.err.println("Error during subsystem destruction: " + e.getMessage());
-                e.printStackTrace();
+                S3Trace.warn("Error during subsystem destruction: {}", e);
             } finally {
-                System.out.println("CustomSftpSubsystem: Completing destruction, calling parent");
+                S3Trace.event("CustomSftpSubsystem: Completing destruction, calling parent");
                 super.destroy(channel);
             }
         }
 
+        /**
+         * Handles still open when the subsystem stops belong to a client that disconnected
+         * without closing them, so uploads through them are unfinished.
+         */
+        @Override
+        protected void closeAllHandles() {
+            closingAbandonedHandles = true;
+            try {
+                super.closeAllHandles();
+            } finally {
+                closingAbandonedHandles = false;
+            }
+        }
+
+        boolean isClosingAbandonedHandles() {
+            return closingAbandonedHandles;
+        }
+
         private void clearAttributes() {
             try {
                 // Clear any session-specific attribute caches
                 // Note: We might not have direct access to attribute caches
-                System.out.println("Attribute cache cleared");
+                S3Trace.event("Attribute cache cleared");
             } catch (Exception e) {
-                System.err.println("Error clearing attributes: " + e.getMessage());
+                S3Trace.warn("Error clearing attributes: {}", e.getMessage());
             }
         }
 
         @Override
         protected void createLink(int id, String existingPath, String linkPath, boolean symLink) throws IOException {
-            System.out.println("Creating " + (symLink ? "symbolic" : "hard") + " link from " + existingPath + " to " + linkPath);
+            S3Trace.event("Creating {} link from {} to {}", symLink ? "symbolic" : "hard", existingPath, linkPath);
             super.createLink(id, existingPath, linkPath, symLink);
         }
     }
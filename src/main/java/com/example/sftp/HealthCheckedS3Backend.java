@@ -0,0 +1,280 @@
+package com.example.sftp;
+
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Backend decorator that keeps track of whether S3 is reachable, so that nothing on the
+ * request path has to check. A monitor thread probes the bucket with a one-key listing
+ * every {@code s3sftp.health.intervalMillis}, and every call reports whether S3 answered
+ * it. After {@code s3sftp.health.failureThreshold} consecutive calls that got no answer,
+ * meaning connection failures, timeouts or server errors other than throttling, the
+ * circuit opens: calls fail at once with a 503 instead of queueing on a dead endpoint,
+ * and the monitor probes every {@code s3sftp.health.openIntervalMillis} until one
+ * succeeds and closes it again.
+ * <p>
+ * When the backend can be rebuilt, a circuit still open after
+ * {@code s3sftp.health.rebuildAfterProbes} failed probes gets a fresh client, swapped
+ * in atomically, with the wait doubling for each further rebuild during the same outage.
+ * The old client is closed after {@code s3sftp.health.retireDelayMillis} so requests
+ * already on it can finish.
+ */
+class HealthCheckedS3Backend implements S3Backend {
+    private static final long INTERVAL_MILLIS = Long.getLong("s3sftp.health.intervalMillis", 30_000);
+    private static final long OPEN_INTERVAL_MILLIS = Long.getLong("s3sftp.health.openIntervalMillis", 2_000);
+    private static final long PROBE_TIMEOUT_MILLIS = Long.getLong("s3sftp.health.probeTimeoutMillis", 10_000);
+    private static final long RETIRE_DELAY_MILLIS = Long.getLong("s3sftp.health.retireDelayMillis", 60_000);
+    private static final int FAILURE_THRESHOLD = Math.max(1, Integer.getInteger("s3sftp.health.failureThreshold", 5));
+    private static final int REBUILD_AFTER_PROBES = Integer.getInteger("s3sftp.health.rebuildAfterProbes", 3);
+
+    private static final LongAdder PROBES_OK = S3Metrics.counter("s3_health_probes", "result", "ok");
+    private static final LongAdder PROBES_FAILED = S3Metrics.counter("s3_health_probes", "result", "failed");
+    private static final LongAdder REJECTED = S3Metrics.counter("s3_circuit_rejected", "reason", "open");
+    private static final LongAdder REBUILDS = S3Metrics.counter("s3_client_rebuilds", "reason", "unhealthy");
+    private static final LongAdder REBUILD_FAILURES = S3Metrics.counter("s3_client_rebuilds", "reason", "failed");
+    private static final LongAdder OPENED = S3Metrics.counter("s3_circuit_transitions", "state", "open");
+    private static final LongAdder CLOSED = S3Metrics.counter("s3_circuit_transitions", "state", "closed");
+
+    private final String bucket;
+    private final Supplier<S3Backend> rebuild;
+    private final AtomicReference<S3Backend> current;
+    // Replaced clients not yet closed
+    private final Queue<S3Backend> retiring = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final ScheduledExecutorService monitor;
+    private volatile boolean open;
+    // Touched by the monitor thread only
+    private long lastProbeNanos;
+    private int failedProbesWhileOpen;
+    private int probesBeforeRebuild = REBUILD_AFTER_PROBES;
+
+    /**
+     * Watches {@code backend}, using {@code rebuild} to replace it when it stays
+     * unreachable; with a null {@code rebuild} the backend is kept however long S3 is away.
+     */
+    HealthCheckedS3Backend(String bucket, S3Backend backend, Supplier<S3Backend> rebuild) {
+        this.bucket = bucket;
+        this.rebuild = rebuild;
+        this.current = new AtomicReference<>(backend);
+        this.lastProbeNanos = System.nanoTime();
+        this.monitor = S3Executors.newScheduler("s3-health");
+        monitor.scheduleWithFixedDelay(this::probeIfDue, OPEN_INTERVAL_MILLIS, OPEN_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+        S3Metrics.gauge("s3_circuit_open", () -> open ? 1 : 0);
+    }
+
+    @Override
+    public CompletableFuture<HeadObjectResponse> headObject(HeadObjectRequest request) {
+        return call(() -> current.get().headObject(request));
+    }
+
+    @Override
+    public CompletableFuture<ListObjectsV2Response> listObjectsV2(ListObjectsV2Request request) {
+        return call(() -> current.get().listObjectsV2(request));
+    }
+
+    @Override
+    public CompletableFuture<ResponseInputStream<GetObjectResponse>> getObject(GetObjectRequest request) {
+        return call(() -> current.get().getObject(request));
+    }
+
+    @Override
+    public CompletableFuture<PutObjectResponse> putObject(PutObjectRequest request, ByteBuffer body) {
+        return call(() -> current.get().putObject(request, body));
+    }
+
+    @Override
+    public CompletableFuture<CopyObjectResponse> copyObject(CopyObjectRequest request) {
+        return call(() -> current.get().copyObject(request));
+    }
+
+    @Override
+    public CompletableFuture<DeleteObjectResponse> deleteObject(DeleteObjectRequest request) {
+        return call(() -> current.get().deleteObject(request));
+    }
+
+    @Override
+    public CompletableFuture<DeleteObjectsResponse> deleteObjects(DeleteObjectsRequest request) {
+        return call(() -> current.get().deleteObjects(request));
+    }
+
+    @Override
+    public CompletableFuture<CreateMultipartUploadResponse> createMultipartUpload(CreateMultipartUploadRequest request) {
+        return call(() -> current.get().createMultipartUpload(request));
+    }
+
+    @Override
+    public CompletableFuture<UploadPartResponse> uploadPart(UploadPartRequest request, ByteBuffer body) {
+        return call(() -> current.get().uploadPart(request, body));
+    }
+
+    @Override
+    public CompletableFuture<UploadPartCopyResponse> uploadPartCopy(UploadPartCopyRequest request) {
+        return call(() -> current.get().uploadPartCopy(request));
+    }
+
+    @Override
+    public CompletableFuture<CompleteMultipartUploadResponse> completeMultipartUpload(CompleteMultipartUploadRequest request) {
+        return call(() -> current.get().completeMultipartUpload(request));
+    }
+
+    @Override
+    public CompletableFuture<AbortMultipartUploadResponse> abortMultipartUpload(AbortMultipartUploadRequest request) {
+        return call(() -> current.get().abortMultipartUpload(request));
+    }
+
+    @Override
+    public CompletableFuture<ListPartsResponse> listParts(ListPartsRequest request) {
+        return call(() -> current.get().listParts(request));
+    }
+
+    @Override
+    public CompletableFuture<ListBucketsResponse> listBuckets() {
+        return call(() -> current.get().listBuckets());
+    }
+
+    @Override
+    public void close() {
+        monitor.shutdownNow();
+        for (S3Backend retired; (retired = retiring.poll()) != null; ) {
+            retire(retired);
+        }
+        current.get().close();
+    }
+
+    private <T> CompletableFuture<T> call(Supplier<CompletableFuture<T>> request) {
+        if (open) {
+            REJECTED.increment();
+            return CompletableFuture.failedFuture(S3Exception.builder()
+                    .statusCode(503)
+                    .message("S3 is unreachable; failing fast until a health check succeeds")
+                    .build());
+        }
+        CompletableFuture<T> future;
+        try {
+            future = request.get();
+        } catch (RuntimeException e) {
+            record(e);
+            throw e;
+        }
+        return future.whenComplete((response, error) -> record(error));
+    }
+
+    private void record(Throwable error) {
+        if (error == null || answered(error)) {
+            consecutiveFailures.set(0);
+        } else if (consecutiveFailures.incrementAndGet() >= FAILURE_THRESHOLD && !open) {
+            trip(error);
+        }
+    }
+
+    /**
+     * Whether S3 itself produced the error, which shows it is reachable: client errors,
+     * and throttling, which only asks for less traffic.
+     */
+    private static boolean answered(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (!(cause instanceof SdkServiceException)) {
+            return false;
+        }
+        SdkServiceException service = (SdkServiceException) cause;
+        if (service.statusCode() < 500 || service.isThrottlingException()) {
+            return true;
+        }
+        return service instanceof AwsServiceException && ((AwsServiceException) service).awsErrorDetails() != null
+                && "SlowDown".equals(((AwsServiceException) service).awsErrorDetails().errorCode());
+    }
+
+    private void trip(Throwable error) {
+        open = true;
+        OPENED.increment();
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        S3Trace.warn("S3 unreachable after {} failed calls, failing fast: {}", consecutiveFailures.get(),
+                cause.getMessage());
+    }
+
+    /**
+     * Runs on the monitor thread: probes whenever the circuit is open, and otherwise
+     * once per interval.
+     */
+    private void probeIfDue() {
+        if (!open && System.nanoTime() - lastProbeNanos < TimeUnit.MILLISECONDS.toNanos(INTERVAL_MILLIS)) {
+            return;
+        }
+        lastProbeNanos = System.nanoTime();
+        Throwable failure = null;
+        try {
+            current.get().listObjectsV2(ListObjectsV2Request.builder()
+                            .bucket(bucket)
+                            .maxKeys(1)
+                            .build())
+                    .orTimeout(PROBE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                    .join();
+        } catch (RuntimeException e) {
+            failure = answered(e) ? null : e;
+        }
+
+        if (failure == null) {
+            PROBES_OK.increment();
+            consecutiveFailures.set(0);
+            failedProbesWhileOpen = 0;
+            probesBeforeRebuild = REBUILD_AFTER_PROBES;
+            if (open) {
+                open = false;
+                CLOSED.increment();
+                S3Trace.warn("S3 reachable again, resuming requests");
+            }
+            return;
+        }
+        PROBES_FAILED.increment();
+        S3Trace.event("S3 health check failed: {}", failure.getMessage());
+        record(failure);
+        if (open && rebuild != null && ++failedProbesWhileOpen >= probesBeforeRebuild) {
+            failedProbesWhileOpen = 0;
+            probesBeforeRebuild = (int) Math.min(Integer.MAX_VALUE, 2L * probesBeforeRebuild);
+            rebuildClient();
+        }
+    }
+
+    private void rebuildClient() {
+        S3Backend fresh;
+        try {
+            fresh = rebuild.get();
+        } catch (RuntimeException e) {
+            REBUILD_FAILURES.increment();
+            S3Trace.warn("Failed to rebuild S3 client: {}", e.getMessage());
+            return;
+        }
+        S3Backend retired = current.getAndSet(fresh);
+        REBUILDS.increment();
+        S3Trace.warn("Replaced S3 client after repeated failed health checks");
+        retiring.add(retired);
+        monitor.schedule(() -> {
+            if (retiring.remove(retired)) {
+                retire(retired);
+            }
+        }, RETIRE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private static void retire(S3Backend retired) {
+        try {
+            retired.close();
+        } catch (RuntimeException e) {
+            S3Trace.event("Error closing retired S3 backend: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,497 @@
+package com.example.sftp;
+
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Heap-backed stand-in for a single bucket, covering the calls the provider, channels
+ * and transfer engines make. Each request can be delayed by a fixed latency plus
+ * random jitter, completing on a timer rather than blocking the caller, and requests
+ * are counted per S3 operation so load runs can report what they cost. Objects keep
+ * their content type, user metadata and storage class, through copies as well.
+ * <p>
+ * Where callers rely on it, requests fail as they would against S3: {@code If-Match}
+ * and {@code x-amz-copy-source-if-match} with 412 PreconditionFailed, and completing an
+ * upload with InvalidPart, InvalidPartOrder or EntityTooSmall. Part ETags are the MD5
+ * of their content, as in S3.
+ */
+public class InMemoryS3Backend implements S3Backend {
+    private static final int DEFAULT_MAX_KEYS = 1000;
+    private static final long MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    private final NavigableMap<String, StoredObject> objects = new ConcurrentSkipListMap<>();
+    private final Map<String, PendingUpload> uploads = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> requestCounts = new ConcurrentHashMap<>();
+    private final AtomicLong versions = new AtomicLong();
+    private final ExecutorService responses = S3Executors.newRequestPool("in-memory-s3", 8);
+    private volatile long latencyNanos;
+    private volatile long jitterNanos;
+
+    private static final class StoredObject {
+        final byte[] data;
+        final Instant lastModified;
+        final String eTag;
+        final String contentType;
+        final Map<String, String> metadata;
+        final String storageClass;
+
+        StoredObject(byte[] data, String eTag) {
+            this(data, eTag, null, Map.of(), null);
+        }
+
+        StoredObject(byte[] data, String eTag, String contentType, Map<String, String> metadata,
+                     String storageClass) {
+            this.data = data;
+            this.lastModified = Instant.now();
+            this.eTag = eTag;
+            this.contentType = contentType;
+            this.metadata = metadata;
+            this.storageClass = storageClass;
+        }
+    }
+
+    private static final class PendingUpload {
+        // Parts by number, each with the ETag of its content
+        final Map<Integer, StoredObject> parts = new ConcurrentHashMap<>();
+        // Settings for the object once completed
+        final CreateMultipartUploadRequest request;
+
+        PendingUpload(CreateMultipartUploadRequest request) {
+            this.request = request;
+        }
+    }
+
+    public InMemoryS3Backend() {
+        this(Duration.ZERO, Duration.ZERO);
+    }
+
+    public InMemoryS3Backend(Duration latency, Duration jitter) {
+        this.latencyNanos = latency.toNanos();
+        this.jitterNanos = jitter.toNanos();
+    }
+
+    /**
+     * Delays every subsequent response by {@code latency} plus a uniformly random
+     * amount up to {@code jitter}.
+     */
+    public void setLatency(Duration latency, Duration jitter) {
+        this.latencyNanos = latency.toNanos();
+        this.jitterNanos = jitter.toNanos();
+    }
+
+    /**
+     * Stores an object directly, bypassing the request path and the request counts.
+     * The array is not copied.
+     */
+    public void putBytes(String key, byte[] data) {
+        objects.put(key, new StoredObject(data, nextETag()));
+    }
+
+    public int objectCount() {
+        return objects.size();
+    }
+
+    /**
+     * Returns a snapshot of the number of requests made per S3 operation, by API name.
+     */
+    public Map<String, Long> requestCounts() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        requestCounts.forEach((operation, count) -> snapshot.put(operation, count.sum()));
+        return snapshot;
+    }
+
+    public void resetRequestCounts() {
+        requestCounts.clear();
+    }
+
+    @Override
+    public CompletableFuture<HeadObjectResponse> headObject(HeadObjectRequest request) {
+        return respond("HeadObject", () -> {
+            StoredObject object = existing(request.key());
+            return HeadObjectResponse.builder()
+                    .contentLength((long) object.data.length)
+                    .lastModified(object.lastModified)
+                    .eTag(object.eTag)
+                    .contentType(object.contentType)
+                    .metadata(object.metadata)
+                    .storageClass(object.storageClass)
+                    .build();
+        });
+    }
+
+    @Override
+    public CompletableFuture<ListObjectsV2Response> listObjectsV2(ListObjectsV2Request request) {
+        return respond("ListObjectsV2", () -> list(request));
+    }
+
+    private ListObjectsV2Response list(ListObjectsV2Request request) {
+        String prefix = request.prefix() != null ? request.prefix() : "";
+        String delimiter = request.delimiter();
+        int maxKeys = request.maxKeys() != null ? request.maxKeys() : DEFAULT_MAX_KEYS;
+
+        // Continuation tokens are simply the first key of the next page
+        String next;
+        if (request.continuationToken() != null) {
+            next = objects.ceilingKey(request.continuationToken());
+        } else if (request.startAfter() != null && request.startAfter().compareTo(prefix) >= 0) {
+            next = objects.higherKey(request.startAfter());
+        } else {
+            next = objects.ceilingKey(prefix);
+        }
+
+        List<S3Object> contents = new ArrayList<>();
+        List<CommonPrefix> commonPrefixes = new ArrayList<>();
+        int count = 0;
+        while (next != null && next.startsWith(prefix) && count < maxKeys) {
+            int split = delimiter != null ? next.indexOf(delimiter, prefix.length()) : -1;
+            if (split >= 0) {
+                String common = next.substring(0, split + delimiter.length());
+                commonPrefixes.add(CommonPrefix.builder().prefix(common).build());
+                next = objects.higherKey(common + Character.MAX_VALUE);
+            } else {
+                StoredObject object = objects.get(next);
+                if (object != null) {
+                    contents.add(S3Object.builder()
+                            .key(next)
+                            .size((long) object.data.length)
+                            .lastModified(object.lastModified)
+                            .eTag(object.eTag)
+                            .build());
+                }
+                next = objects.higherKey(next);
+            }
+            count++;
+        }
+
+        boolean truncated = next != null && next.startsWith(prefix);
+        ListObjectsV2Response.Builder response = ListObjectsV2Response.builder()
+                .prefix(prefix)
+                .delimiter(delimiter)
+                .keyCount(count)
+                .isTruncated(truncated)
+                .nextContinuationToken(truncated ? next : null);
+        // Like the real service, leave empty lists unset so hasContents() is false
+        if (!contents.isEmpty()) {
+            response.contents(contents);
+        }
+        if (!commonPrefixes.isEmpty()) {
+            response.commonPrefixes(commonPrefixes);
+        }
+        return response.build();
+    }
+
+    @Override
+    public CompletableFuture<ResponseInputStream<GetObjectResponse>> getObject(GetObjectRequest request) {
+        return respond("GetObject", () -> {
+            StoredObject object = existing(request.key());
+            checkMatch(request.ifMatch(), object);
+            long[] range = parseRange(request.range(), object.data.length);
+            int offset = (int) range[0];
+            int length = (int) (range[1] - range[0] + 1);
+            GetObjectResponse response = GetObjectResponse.builder()
+                    .contentLength((long) length)
+                    .contentRange(request.range() != null
+                            ? "bytes " + range[0] + "-" + range[1] + "/" + object.data.length : null)
+                    .lastModified(object.lastModified)
+                    .eTag(object.eTag)
+                    .contentType(object.contentType)
+                    .metadata(object.metadata)
+                    .build();
+            return new ResponseInputStream<>(response,
+                    AbortableInputStream.create(new ByteArrayInputStream(object.data, offset, length)));
+        });
+    }
+
+    @Override
+    public CompletableFuture<PutObjectResponse> putObject(PutObjectRequest request, ByteBuffer body) {
+        return respond("PutObject", () -> {
+            String eTag = nextETag();
+            objects.put(request.key(), new StoredObject(toBytes(body), eTag, request.contentType(),
+                    request.metadata(), request.storageClassAsString()));
+            return PutObjectResponse.builder().eTag(eTag).build();
+        });
+    }
+
+    @Override
+    public CompletableFuture<CopyObjectResponse> copyObject(CopyObjectRequest request) {
+        return respond("CopyObject", () -> {
+            StoredObject source = existing(request.sourceKey());
+            String eTag = nextETag();
+            objects.put(request.destinationKey(), new StoredObject(source.data, eTag, source.contentType,
+                    source.metadata, source.storageClass));
+            return CopyObjectResponse.builder()
+                    .copyObjectResult(CopyObjectResult.builder().eTag(eTag).build())
+                    .build();
+        });
+    }
+
+    @Override
+    public CompletableFuture<DeleteObjectResponse> deleteObject(DeleteObjectRequest request) {
+        return respond("DeleteObject", () -> {
+            objects.remove(request.key());
+            return DeleteObjectResponse.builder().build();
+        });
+    }
+
+    @Override
+    public CompletableFuture<DeleteObjectsResponse> deleteObjects(DeleteObjectsRequest request) {
+        return respond("DeleteObjects", () -> {
+            List<DeletedObject> deleted = new ArrayList<>();
+            for (ObjectIdentifier identifier : request.delete().objects()) {
+                objects.remove(identifier.key());
+                deleted.add(DeletedObject.builder().key(identifier.key()).build());
+            }
+            boolean quiet = Boolean.TRUE.equals(request.delete().quiet());
+            return DeleteObjectsResponse.builder()
+                    .deleted(quiet ? List.of() : deleted)
+                    .build();
+        });
+    }
+
+    @Override
+    public CompletableFuture<CreateMultipartUploadResponse> createMultipartUpload(CreateMultipartUploadRequest request) {
+        return respond("CreateMultipartUpload", () -> {
+            String uploadId = "upload-" + UUID.randomUUID();
+            uploads.put(uploadId, new PendingUpload(request));
+            return CreateMultipartUploadResponse.builder()
+                    .bucket(request.bucket())
+                    .key(request.key())
+                    .uploadId(uploadId)
+                    .build();
+        });
+    }
+
+    @Override
+    public CompletableFuture<UploadPartResponse> uploadPart(UploadPartRequest request, ByteBuffer body) {
+        return respond("UploadPart", () -> {
+            StoredObject part = storePart(upload(request.uploadId()), request.partNumber(), toBytes(body));
+            return UploadPartResponse.builder()
+                    .eTag(part.eTag)
+                    .build();
+        });
+    }
+
+    @Override
+    public CompletableFuture<UploadPartCopyResponse> uploadPartCopy(UploadPartCopyRequest request) {
+        return respond("UploadPartCopy", () -> {
+            PendingUpload upload = upload(request.uploadId());
+            StoredObject source = existing(request.sourceKey());
+            checkMatch(request.copySourceIfMatch(), source);
+            long[] range = parseRange(request.copySourceRange(), source.data.length);
+            byte[] data = new byte[(int) (range[1] - range[0] + 1)];
+            System.arraycopy(source.data, (int) range[0], data, 0, data.length);
+            StoredObject part = storePart(upload, request.partNumber(), data);
+            return UploadPartCopyResponse.builder()
+                    .copyPartResult(CopyPartResult.builder().eTag(part.eTag).build())
+                    .build();
+        });
+    }
+
+    @Override
+    public CompletableFuture<CompleteMultipartUploadResponse> completeMultipartUpload(CompleteMultipartUploadRequest request) {
+        return respond("CompleteMultipartUpload", () -> {
+            PendingUpload upload = upload(request.uploadId());
+            ByteArrayOutputStream assembled = new ByteArrayOutputStream();
+            List<CompletedPart> completed = request.multipartUpload().parts();
+            for (int i = 0; i < completed.size(); i++) {
+                CompletedPart part = completed.get(i);
+                StoredObject stored = upload.parts.get(part.partNumber());
+                if (stored == null || !stored.eTag.equals(part.eTag())) {
+                    throw error(400, "InvalidPart", "Part " + part.partNumber() + " was not found or its ETag differs");
+                }
+                if (i > 0 && part.partNumber() <= completed.get(i - 1).partNumber()) {
+                    throw error(400, "InvalidPartOrder", "Parts must be listed in ascending order");
+                }
+                if (i < completed.size() - 1 && stored.data.length < MIN_PART_SIZE) {
+                    throw error(400, "EntityTooSmall", "Part " + part.partNumber() + " is smaller than "
+                            + MIN_PART_SIZE + " bytes");
+                }
+                assembled.writeBytes(stored.data);
+            }
+            uploads.remove(request.uploadId());
+            String eTag = nextETag();
+            objects.put(request.key(), new StoredObject(assembled.toByteArray(), eTag,
+                    upload.request.contentType(), upload.request.metadata(), upload.request.storageClassAsString()));
+            return CompleteMultipartUploadResponse.builder()
+                    .bucket(request.bucket())
+                    .key(request.key())
+                    .eTag(eTag)
+                    .build();
+        });
+    }
+
+    @Override
+    public CompletableFuture<ListPartsResponse> listParts(ListPartsRequest request) {
+        return respond("ListParts", () -> {
+            Map<Integer, StoredObject> parts = upload(request.uploadId()).parts;
+            int marker = request.partNumberMarker() != null ? request.partNumberMarker() : 0;
+            int maxParts = request.maxParts() != null ? request.maxParts() : 1000;
+            List<Part> listed = new ArrayList<>();
+            int next = marker;
+            boolean truncated = false;
+            for (Integer number : new TreeSet<>(parts.keySet()).tailSet(marker, false)) {
+                if (listed.size() == maxParts) {
+                    truncated = true;
+                    break;
+                }
+                listed.add(Part.builder()
+                        .partNumber(number)
+                        .eTag(parts.get(number).eTag)
+                        .size((long) parts.get(number).data.length)
+                        .build());
+                next = number;
+            }
+            return ListPartsResponse.builder()
+                    .bucket(request.bucket())
+                    .key(request.key())
+                    .uploadId(request.uploadId())
+                    .parts(listed)
+                    .isTruncated(truncated)
+                    .nextPartNumberMarker(next)
+                    .build();
+        });
+    }
+
+    @Override
+    public CompletableFuture<AbortMultipartUploadResponse> abortMultipartUpload(AbortMultipartUploadRequest request) {
+        return respond("AbortMultipartUpload", () -> {
+            uploads.remove(request.uploadId());
+            return AbortMultipartUploadResponse.builder().build();
+        });
+    }
+
+    @Override
+    public CompletableFuture<ListBucketsResponse> listBuckets() {
+        return respond("ListBuckets", () -> ListBucketsResponse.builder()
+                .buckets(Bucket.builder().name("in-memory").creationDate(Instant.EPOCH).build())
+                .build());
+    }
+
+    @Override
+    public void close() {
+        responses.shutdown();
+    }
+
+    /**
+     * Counts the request and runs it, immediately or once the injected latency has
+     * elapsed; failures thrown by the call complete the future exceptionally.
+     */
+    private <T> CompletableFuture<T> respond(String operation, Supplier<T> call) {
+        requestCounts.computeIfAbsent(operation, ignored -> new LongAdder()).increment();
+        long delay = latencyNanos;
+        long jitter = jitterNanos;
+        if (jitter > 0) {
+            delay += ThreadLocalRandom.current().nextLong(jitter + 1);
+        }
+        if (delay <= 0) {
+            try {
+                return CompletableFuture.completedFuture(call.get());
+            } catch (RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        return CompletableFuture.supplyAsync(call,
+                CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS, responses));
+    }
+
+    private StoredObject existing(String key) {
+        StoredObject object = objects.get(key);
+        if (object == null) {
+            throw NoSuchKeyException.builder()
+                    .message("The specified key does not exist: " + key)
+                    .statusCode(404)
+                    .build();
+        }
+        return object;
+    }
+
+    private static StoredObject storePart(PendingUpload upload, int partNumber, byte[] data) {
+        StoredObject part = new StoredObject(data, md5ETag(data));
+        upload.parts.put(partNumber, part);
+        return part;
+    }
+
+    private static void checkMatch(String eTag, StoredObject object) {
+        if (eTag != null && !eTag.equals(object.eTag)) {
+            throw error(412, "PreconditionFailed", "At least one of the pre-conditions you specified did not hold");
+        }
+    }
+
+    private static S3Exception error(int statusCode, String code, String message) {
+        return (S3Exception) S3Exception.builder()
+                .message(code + ": " + message)
+                .statusCode(statusCode)
+                .awsErrorDetails(AwsErrorDetails.builder()
+                        .errorCode(code)
+                        .errorMessage(message)
+                        .build())
+                .build();
+    }
+
+    private PendingUpload upload(String uploadId) {
+        PendingUpload upload = uploads.get(uploadId);
+        if (upload == null) {
+            throw NoSuchUploadException.builder()
+                    .message("The specified upload does not exist: " + uploadId)
+                    .statusCode(404)
+                    .build();
+        }
+        return upload;
+    }
+
+    private String nextETag() {
+        return "\"" + Long.toHexString(versions.incrementAndGet()) + "\"";
+    }
+
+    private static String md5ETag(byte[] data) {
+        try {
+            return "\"" + HexFormat.of().formatHex(MessageDigest.getInstance("MD5").digest(data)) + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] toBytes(ByteBuffer body) {
+        ByteBuffer source = body.duplicate();
+        byte[] data = new byte[source.remaining()];
+        source.get(data);
+        return data;
+    }
+
+    /**
+     * Parses {@code bytes=first-last} or {@code bytes=first-} into an inclusive range
+     * clamped to the object; a null header means the whole object.
+     */
+    private static long[] parseRange(String header, long size) {
+        if (header == null) {
+            return new long[] {0, size - 1};
+        }
+        String spec = header.substring(header.indexOf('=') + 1);
+        int dash = spec.indexOf('-');
+        long first = Long.parseLong(spec.substring(0, dash));
+        long last = dash + 1 < spec.length() ? Long.parseLong(spec.substring(dash + 1)) : size - 1;
+        return new long[] {first, Math.min(last, size - 1)};
+    }
+}
@@ -0,0 +1,162 @@
+package com.example.sftp;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Backend decorator that records latency and errors per S3 API call, bytes moved, and
+ * which SFTP request each call was made for. GET latency is time to response headers;
+ * the body streams afterwards. A 404 is an expected answer to existence probes, so it
+ * is counted separately from errors.
+ */
+class MeteredS3Backend implements S3Backend {
+    private static final Api HEAD_OBJECT = new Api("HeadObject");
+    private static final Api LIST_OBJECTS = new Api("ListObjectsV2");
+    private static final Api GET_OBJECT = new Api("GetObject");
+    private static final Api PUT_OBJECT = new Api("PutObject");
+    private static final Api COPY_OBJECT = new Api("CopyObject");
+    private static final Api DELETE_OBJECT = new Api("DeleteObject");
+    private static final Api DELETE_OBJECTS = new Api("DeleteObjects");
+    private static final Api CREATE_UPLOAD = new Api("CreateMultipartUpload");
+    private static final Api UPLOAD_PART = new Api("UploadPart");
+    private static final Api UPLOAD_PART_COPY = new Api("UploadPartCopy");
+    private static final Api COMPLETE_UPLOAD = new Api("CompleteMultipartUpload");
+    private static final Api ABORT_UPLOAD = new Api("AbortMultipartUpload");
+    private static final Api LIST_PARTS = new Api("ListParts");
+    private static final Api LIST_BUCKETS = new Api("ListBuckets");
+    private static final LongAdder BYTES_UPLOADED = S3Metrics.counter("s3_bytes", "direction", "upload");
+    private static final LongAdder BYTES_DOWNLOADED = S3Metrics.counter("s3_bytes", "direction", "download");
+
+    private final S3Backend delegate;
+
+    MeteredS3Backend(S3Backend delegate) {
+        this.delegate = delegate;
+    }
+
+    private static final class Api {
+        final S3Metrics.Histogram latency;
+        final LongAdder errors;
+        final LongAdder notFound;
+
+        Api(String name) {
+            this.latency = S3Metrics.s3Latency(name);
+            this.errors = S3Metrics.counter("s3_errors", "api", name);
+            this.notFound = S3Metrics.counter("s3_not_found", "api", name);
+        }
+
+        void failed(Throwable error) {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (cause instanceof S3Exception && ((S3Exception) cause).statusCode() == 404) {
+                notFound.increment();
+            } else {
+                errors.increment();
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<HeadObjectResponse> headObject(HeadObjectRequest request) {
+        return call(HEAD_OBJECT, () -> delegate.headObject(request));
+    }
+
+    @Override
+    public CompletableFuture<ListObjectsV2Response> listObjectsV2(ListObjectsV2Request request) {
+        return call(LIST_OBJECTS, () -> delegate.listObjectsV2(request));
+    }
+
+    @Override
+    public CompletableFuture<ResponseInputStream<GetObjectResponse>> getObject(GetObjectRequest request) {
+        return call(GET_OBJECT, () -> delegate.getObject(request)).whenComplete((response, error) -> {
+            if (response != null && response.response().contentLength() != null) {
+                BYTES_DOWNLOADED.add(response.response().contentLength());
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<PutObjectResponse> putObject(PutObjectRequest request, ByteBuffer body) {
+        BYTES_UPLOADED.add(body.remaining());
+        return call(PUT_OBJECT, () -> delegate.putObject(request, body));
+    }
+
+    @Override
+    public CompletableFuture<CopyObjectResponse> copyObject(CopyObjectRequest request) {
+        return call(COPY_OBJECT, () -> delegate.copyObject(request));
+    }
+
+    @Override
+    public CompletableFuture<DeleteObjectResponse> deleteObject(DeleteObjectRequest request) {
+        return call(DELETE_OBJECT, () -> delegate.deleteObject(request));
+    }
+
+    @Override
+    public CompletableFuture<DeleteObjectsResponse> deleteObjects(DeleteObjectsRequest request) {
+        return call(DELETE_OBJECTS, () -> delegate.deleteObjects(request));
+    }
+
+    @Override
+    public CompletableFuture<CreateMultipartUploadResponse> createMultipartUpload(CreateMultipartUploadRequest request) {
+        return call(CREATE_UPLOAD, () -> delegate.createMultipartUpload(request));
+    }
+
+    @Override
+    public CompletableFuture<UploadPartResponse> uploadPart(UploadPartRequest request, ByteBuffer body) {
+        BYTES_UPLOADED.add(body.remaining());
+        return call(UPLOAD_PART, () -> delegate.uploadPart(request, body));
+    }
+
+    @Override
+    public CompletableFuture<UploadPartCopyResponse> uploadPartCopy(UploadPartCopyRequest request) {
+        return call(UPLOAD_PART_COPY, () -> delegate.uploadPartCopy(request));
+    }
+
+    @Override
+    public CompletableFuture<CompleteMultipartUploadResponse> completeMultipartUpload(CompleteMultipartUploadRequest request) {
+        return call(COMPLETE_UPLOAD, () -> delegate.completeMultipartUpload(request));
+    }
+
+    @Override
+    public CompletableFuture<AbortMultipartUploadResponse> abortMultipartUpload(AbortMultipartUploadRequest request) {
+        return call(ABORT_UPLOAD, () -> delegate.abortMultipartUpload(request));
+    }
+
+    @Override
+    public CompletableFuture<ListPartsResponse> listParts(ListPartsRequest request) {
+        return call(LIST_PARTS, () -> delegate.listParts(request));
+    }
+
+    @Override
+    public CompletableFuture<ListBucketsResponse> listBuckets() {
+        return call(LIST_BUCKETS, delegate::listBuckets);
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    private static <T> CompletableFuture<T> call(Api api, Supplier<CompletableFuture<T>> request) {
+        S3Metrics.counter("s3_requests_by_sftp_op", "op", S3Metrics.currentSftpOperation()).increment();
+        long start = System.nanoTime();
+        CompletableFuture<T> future;
+        try {
+            future = request.get();
+        } catch (RuntimeException e) {
+            api.latency.recordSince(start);
+            api.failed(e);
+            throw e;
+        }
+        return future.whenComplete((response, error) -> {
+            api.latency.recordSince(start);
+            if (error != null) {
+                api.failed(error);
+            }
+        });
+    }
+}
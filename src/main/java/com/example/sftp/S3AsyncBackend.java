@@ -0,0 +1,98 @@
+package com.example.sftp;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Backend over the non-blocking {@link S3AsyncClient}. Requests wait for a connection
+ * in the client's pool rather than on a thread, and bodies are sent straight from the
+ * caller's buffers.
+ */
+class S3AsyncBackend implements S3Backend {
+    private final S3AsyncClient client;
+
+    S3AsyncBackend(S3AsyncClient client) {
+        this.client = client;
+    }
+
+    @Override
+    public CompletableFuture<HeadObjectResponse> headObject(HeadObjectRequest request) {
+        return client.headObject(request);
+    }
+
+    @Override
+    public CompletableFuture<ListObjectsV2Response> listObjectsV2(ListObjectsV2Request request) {
+        return client.listObjectsV2(request);
+    }
+
+    @Override
+    public CompletableFuture<ResponseInputStream<GetObjectResponse>> getObject(GetObjectRequest request) {
+        return client.getObject(request, AsyncResponseTransformer.toBlockingInputStream());
+    }
+
+    @Override
+    public CompletableFuture<PutObjectResponse> putObject(PutObjectRequest request, ByteBuffer body) {
+        return client.putObject(request, AsyncRequestBody.fromRemainingByteBufferUnsafe(body));
+    }
+
+    @Override
+    public CompletableFuture<CopyObjectResponse> copyObject(CopyObjectRequest request) {
+        return client.copyObject(request);
+    }
+
+    @Override
+    public CompletableFuture<DeleteObjectResponse> deleteObject(DeleteObjectRequest request) {
+        return client.deleteObject(request);
+    }
+
+    @Override
+    public CompletableFuture<DeleteObjectsResponse> deleteObjects(DeleteObjectsRequest request) {
+        return client.deleteObjects(request);
+    }
+
+    @Override
+    public CompletableFuture<CreateMultipartUploadResponse> createMultipartUpload(CreateMultipartUploadRequest request) {
+        return client.createMultipartUpload(request);
+    }
+
+    @Override
+    public CompletableFuture<UploadPartResponse> uploadPart(UploadPartRequest request, ByteBuffer body) {
+        return client.uploadPart(request, AsyncRequestBody.fromRemainingByteBufferUnsafe(body));
+    }
+
+    @Override
+    public CompletableFuture<UploadPartCopyResponse> uploadPartCopy(UploadPartCopyRequest request) {
+        return client.uploadPartCopy(request);
+    }
+
+    @Override
+    public CompletableFuture<ListPartsResponse> listParts(ListPartsRequest request) {
+        return client.listParts(request);
+    }
+
+    @Override
+    public CompletableFuture<CompleteMultipartUploadResponse> completeMultipartUpload(CompleteMultipartUploadRequest request) {
+        return client.completeMultipartUpload(request);
+    }
+
+    @Override
+    public CompletableFuture<AbortMultipartUploadResponse> abortMultipartUpload(AbortMultipartUploadRequest request) {
+        return client.abortMultipartUpload(request);
+    }
+
+    @Override
+    public CompletableFuture<ListBucketsResponse> listBuckets() {
+        return client.listBuckets();
+    }
+
+    @Override
+    public void close() {
+        client.close();
+    }
+}
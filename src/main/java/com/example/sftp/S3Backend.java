@@ -0,0 +1,80 @@
+package com.example.sftp;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * The S3 operations used by the provider, channels and transfer engines. Every call
+ * returns a future: {@link S3ClientBackend} runs the synchronous client on a bounded
+ * request pool, while {@link S3AsyncBackend} uses the non-blocking client so that
+ * in-flight requests do not hold a thread each.
+ */
+public interface S3Backend extends AutoCloseable {
+
+    CompletableFuture<HeadObjectResponse> headObject(HeadObjectRequest request);
+
+    CompletableFuture<ListObjectsV2Response> listObjectsV2(ListObjectsV2Request request);
+
+    /**
+     * Starts a GET and completes once the response headers are in; the body is read
+     * through the returned stream.
+     */
+    CompletableFuture<ResponseInputStream<GetObjectResponse>> getObject(GetObjectRequest request);
+
+    /**
+     * Uploads the remaining bytes of {@code body}, which must not change until the
+     * future completes.
+     */
+    CompletableFuture<PutObjectResponse> putObject(PutObjectRequest request, ByteBuffer body);
+
+    CompletableFuture<CopyObjectResponse> copyObject(CopyObjectRequest request);
+
+    CompletableFuture<DeleteObjectResponse> deleteObject(DeleteObjectRequest request);
+
+    CompletableFuture<DeleteObjectsResponse> deleteObjects(DeleteObjectsRequest request);
+
+    CompletableFuture<CreateMultipartUploadResponse> createMultipartUpload(CreateMultipartUploadRequest request);
+
+    /**
+     * Uploads the remaining bytes of {@code body} as one part, under the same rules as
+     * {@link #putObject}.
+     */
+    CompletableFuture<UploadPartResponse> uploadPart(UploadPartRequest request, ByteBuffer body);
+
+    CompletableFuture<UploadPartCopyResponse> uploadPartCopy(UploadPartCopyRequest request);
+
+    CompletableFuture<CompleteMultipartUploadResponse> completeMultipartUpload(CompleteMultipartUploadRequest request);
+
+    CompletableFuture<AbortMultipartUploadResponse> abortMultipartUpload(AbortMultipartUploadRequest request);
+
+    CompletableFuture<ListPartsResponse> listParts(ListPartsRequest request);
+
+    CompletableFuture<ListBucketsResponse> listBuckets();
+
+    @Override
+    void close();
+
+    /**
+     * Waits for a backend call, rethrowing SDK exceptions as themselves so callers can
+     * keep catching {@code NoSuchKeyException} and {@code S3Exception}.
+     */
+    static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw SdkClientException.create(String.valueOf(cause.getMessage()), cause);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.example.sftp;
+
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Recursive delete built on {@code DeleteObjects}. Keys are grouped into batches of up
+ * to 1,000 and the batches are issued through the backend in parallel, at most
+ * {@code concurrency} at a time; listing the next page overlaps with deleting the
+ * previous ones. Keys S3 refuses to delete are collected rather than aborting the run.
+ */
+class S3BatchDelete {
+    static final int MAX_BATCH = 1000;
+    private static final int DEFAULT_CONCURRENCY = Integer.getInteger("s3sftp.delete.concurrency", 8);
+
+    private final S3Backend backend;
+    private final String bucket;
+    private final Semaphore permits;
+    private final List<CompletableFuture<Void>> pending = new ArrayList<>();
+    private final Map<String, String> failures = new ConcurrentHashMap<>();
+    private final AtomicLong deleted = new AtomicLong();
+
+    S3BatchDelete(S3Backend backend, String bucket) {
+        this(backend, bucket, DEFAULT_CONCURRENCY);
+    }
+
+    S3BatchDelete(S3Backend backend, String bucket, int concurrency) {
+        this.backend = backend;
+        this.bucket = bucket;
+        this.permits = new Semaphore(Math.max(1, concurrency));
+    }
+
+    /**
+     * Deletes every object whose key starts with {@code prefix}, across all listing pages.
+     */
+    void deletePrefix(String prefix) throws IOException {
+        String continuationToken = null;
+        do {
+            ListObjectsV2Request.Builder requestBuilder = ListObjectsV2Request.builder()
+                    .bucket(bucket)
+                    .prefix(prefix)
+                    .maxKeys(MAX_BATCH);
+            if (continuationToken != null) {
+                requestBuilder.continuationToken(continuationToken);
+            }
+
+            ListObjectsV2Response listing;
+            try {
+                listing = S3Backend.await(backend.listObjectsV2(requestBuilder.build()));
+            } catch (S3Exception e) {
+                awaitBatches();
+                throw new IOException("Failed to list objects under " + prefix + ": " + e.getMessage(), e);
+            }
+            submit(listing.contents().stream().map(S3Object::key).collect(Collectors.toList()));
+            continuationToken = listing.isTruncated() ? listing.nextContinuationToken() : null;
+        } while (continuationToken != null);
+    }
+
+    /**
+     * Queues the given keys for deletion in batches of up to 1,000.
+     */
+    void deleteKeys(Collection<String> keys) throws IOException {
+        List<String> batch = new ArrayList<>(Math.min(keys.size(), MAX_BATCH));
+        for (String key : keys) {
+            batch.add(key);
+            if (batch.size() == MAX_BATCH) {
+                submit(batch);
+                batch = new ArrayList<>(MAX_BATCH);
+            }
+        }
+        submit(batch);
+    }
+
+    /**
+     * Waits for all queued batches and returns the keys that could not be deleted,
+     * mapped to the reason S3 gave.
+     */
+    Map<String, String> await() {
+        awaitBatches();
+        return failures;
+    }
+
+    long deletedCount() {
+        return deleted.get();
+    }
+
+    /**
+     * Waits for all queued batches and fails with a summary if any key was not deleted.
+     */
+    void awaitOrThrow(String what) throws IOException {
+        Map<String, String> failed = await();
+        if (!failed.isEmpty()) {
+            String sample = failed.entrySet().stream()
+                    .limit(10)
+                    .map(e -> e.getKey() + " (" + e.getValue() + ")")
+                    .collect(Collectors.joining(", "));
+            throw new IOException("Failed to delete " + failed.size() + " object(s) under " + what + ": " + sample
+                    + (failed.size() > 10 ? ", ..." : ""));
+        }
+    }
+
+    private void submit(List<String> keys) throws IOException {
+        if (keys.isEmpty()) {
+            return;
+        }
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            awaitBatches();
+            throw new InterruptedIOException("Interrupted while deleting objects");
+        }
+
+        try {
+            pending.add(deleteBatch(keys).whenComplete((ignored, error) -> permits.release()));
+        } catch (RuntimeException e) {
+            permits.release();
+            recordFailure(keys, e);
+        }
+    }
+
+    private CompletableFuture<Void> deleteBatch(List<String> keys) {
+        List<ObjectIdentifier> objects = keys.stream()
+                .map(key -> ObjectIdentifier.builder().key(key).build())
+                .collect(Collectors.toList());
+        return backend.deleteObjects(DeleteObjectsRequest.builder()
+                        .bucket(bucket)
+                        .delete(Delete.builder().objects(objects).quiet(true).build())
+                        .build())
+                .handle((response, error) -> {
+                    if (error != null) {
+                        recordFailure(keys, error instanceof CompletionException ? error.getCause() : error);
+                        return null;
+                    }
+                    for (S3Error s3Error : response.errors()) {
+                        failures.put(s3Error.key(), s3Error.code() + ": " + s3Error.message());
+                    }
+                    deleted.addAndGet(keys.size() - response.errors().size());
+                    return null;
+                });
+    }
+
+    private void recordFailure(List<String> keys, Throwable error) {
+        for (String key : keys) {
+            failures.put(key, String.valueOf(error.getMessage()));
+        }
+    }
+
+    private void awaitBatches() {
+        for (CompletableFuture<Void> future : pending) {
+            try {
+                future.join();
+            } catch (CompletionException | CancellationException e) {
+                // deleteBatch records its own failures
+            }
+        }
+        pending.clear();
+    }
+}
@@ -0,0 +1,247 @@
+package com.example.sftp;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Random access to one version of an S3 object in fixed-size blocks. Blocks are fetched
+ * on demand with ranged GETs conditional on the object's ETag, and the most recently
+ * used {@code s3sftp.fileChannel.cachedBlocks} of them are kept in pooled buffers. When
+ * reads move through the object block by block, the next block is fetched in the
+ * background. Safe for concurrent readers; a block being fetched is shared by everyone
+ * who asks for it. Blocks are read from and added to the shared {@link S3DiskCache}.
+ */
+final class S3BlockReader implements Closeable {
+    static final int BLOCK_SIZE = Integer.getInteger("s3sftp.fileChannel.blockSize", 1024 * 1024);
+    private static final int CACHED_BLOCKS = Math.max(2, Integer.getInteger("s3sftp.fileChannel.cachedBlocks", 8));
+
+    private final S3Backend backend;
+    private final String bucket;
+    private final String key;
+    private final String eTag;
+    private final long size;
+    private final S3BufferPool.Tracker buffers;
+    private final S3DiskCache.Version cache;
+    private final Map<Long, CompletableFuture<ByteBuffer>> blocks;
+    private long lastBlock = -1;
+    private boolean closed;
+
+    S3BlockReader(S3Backend backend, String bucket, String key, long size, String eTag) {
+        this.backend = backend;
+        this.bucket = bucket;
+        this.key = key;
+        this.size = size;
+        this.eTag = eTag;
+        this.buffers = S3BufferPool.tracker("block reader for " + key);
+        this.cache = S3DiskCache.version(bucket, key, eTag, size);
+        this.blocks = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    long size() {
+        return size;
+    }
+
+    String eTag() {
+        return eTag;
+    }
+
+    /**
+     * Copies bytes from {@code position} into {@code dst}, returning the number copied,
+     * or -1 at or beyond the end of the object.
+     */
+    int read(long position, ByteBuffer dst) throws IOException {
+        if (position >= size) {
+            return -1;
+        }
+        int total = (int) Math.min(dst.remaining(), size - position);
+        int copied = 0;
+        while (copied < total) {
+            long offset = position + copied;
+            long index = offset / BLOCK_SIZE;
+            CompletableFuture<ByteBuffer> pending = block(index);
+            ByteBuffer block = await(pending);
+            synchronized (this) {
+                // The block may have been evicted, and its buffer recycled, while we waited
+                if (blocks.get(index) != pending) {
+                    continue;
+                }
+                int start = (int) (offset - index * BLOCK_SIZE);
+                int count = Math.min(total - copied, block.limit() - start);
+                if (count <= 0) {
+                    throw new EOFException("Unexpected end of S3 object: " + key);
+                }
+                dst.put(dst.position(), block, start, count);
+                dst.position(dst.position() + count);
+                copied += count;
+            }
+        }
+        return copied;
+    }
+
+    private CompletableFuture<ByteBuffer> block(long index) throws IOException {
+        CompletableFuture<ByteBuffer> pending;
+        boolean fetch = false;
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Block reader is closed: " + key);
+            }
+            pending = blocks.get(index);
+            if (pending == null) {
+                pending = new CompletableFuture<>();
+                cache(index, pending);
+                fetch = true;
+            }
+            if (index == lastBlock + 1) {
+                prefetch(index + 1);
+            }
+            lastBlock = index;
+        }
+        if (fetch) {
+            try {
+                pending.complete(fetch(index));
+            } catch (IOException | RuntimeException e) {
+                forget(index, pending);
+                pending.completeExceptionally(e);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Starts fetching a block on the read-ahead pool. Must hold the lock.
+     */
+    private void prefetch(long index) {
+        if (index * BLOCK_SIZE >= size || blocks.containsKey(index)) {
+            return;
+        }
+        CompletableFuture<ByteBuffer> pending = new CompletableFuture<>();
+        try {
+            S3Executors.readAhead().execute(() -> {
+                try {
+                    pending.complete(fetch(index));
+                } catch (IOException | RuntimeException e) {
+                    forget(index, pending);
+                    pending.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Read-ahead pool is saturated; the block is fetched when it is read
+            return;
+        }
+        cache(index, pending);
+    }
+
+    /**
+     * Adds a block, evicting the least recently used one beyond the limit. Must hold the lock.
+     */
+    private void cache(long index, CompletableFuture<ByteBuffer> pending) {
+        blocks.put(index, pending);
+        Iterator<CompletableFuture<ByteBuffer>> eldest = blocks.values().iterator();
+        while (blocks.size() > CACHED_BLOCKS) {
+            release(eldest.next());
+            eldest.remove();
+        }
+    }
+
+    private synchronized void forget(long index, CompletableFuture<ByteBuffer> pending) {
+        blocks.remove(index, pending);
+    }
+
+    private void release(CompletableFuture<ByteBuffer> pending) {
+        pending.whenComplete((block, error) -> {
+            if (block != null) {
+                buffers.release(block);
+            }
+        });
+    }
+
+    private ByteBuffer fetch(long index) throws IOException {
+        long start = index * BLOCK_SIZE;
+        int length = (int) Math.min(BLOCK_SIZE, size - start);
+        ByteBuffer block = buffers.acquire(length);
+        if (cache != null && cache.read(start, block) == length) {
+            return block.flip();
+        }
+
+        // Fetch whatever the disk cache did not have
+        int cached = block.position();
+        GetObjectRequest request = GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .range("bytes=" + (start + cached) + "-" + (start + length - 1))
+                .ifMatch(eTag)
+                .build();
+        try (ResponseInputStream<GetObjectResponse> response = S3Backend.await(backend.getObject(request));
+             ReadableByteChannel body = Channels.newChannel(response)) {
+            while (block.hasRemaining()) {
+                if (body.read(block) < 0) {
+                    break;
+                }
+            }
+            block.flip();
+            if (cache != null) {
+                cache.write(start + cached, block.duplicate().position(cached));
+            }
+            return block;
+        } catch (S3Exception e) {
+            buffers.release(block);
+            if (e.statusCode() == 412) {
+                throw new IOException("Object changed while reading: " + key, e);
+            }
+            throw new IOException("Failed to read block " + index + " of " + key + ": " + e.getMessage(), e);
+        } catch (IOException | RuntimeException e) {
+            buffers.release(block);
+            throw e;
+        }
+    }
+
+    private ByteBuffer await(CompletableFuture<ByteBuffer> pending) throws IOException {
+        try {
+            return pending.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            throw new IOException("Failed to read " + key + ": " + cause.getMessage(), cause);
+        }
+    }
+
+    @Override
+    public void close() {
+        List<CompletableFuture<ByteBuffer>> pending;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pending = new ArrayList<>(blocks.values());
+            blocks.clear();
+        }
+        // Let background fetches land so their buffers go back to the pool
+        for (CompletableFuture<ByteBuffer> block : pending) {
+            block.handle((buffer, error) -> buffer).join();
+            release(block);
+        }
+        buffers.close();
+    }
+}
@@ -0,0 +1,189 @@
+package com.example.sftp;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shared pool of direct buffers for the channel data paths, in power-of-two size
+ * classes from 4 KB to 16 MB. Each platform thread keeps a small cache per class in
+ * front of the shared free lists; virtual threads, which are too many and too short-lived
+ * to each hold buffers back, go to the shared lists directly. Requests above the largest
+ * class are allocated unpooled.
+ * Channels lease buffers through a {@link Tracker}, which reports any buffer still
+ * leased when the channel closes.
+ */
+final class S3BufferPool {
+    private static final int MIN_SHIFT = 12;
+    private static final int MAX_SHIFT = 24;
+    private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+    private static final int THREAD_CACHE_SLOTS = 8;
+    private static final int THREAD_CACHE_BYTES = Integer.getInteger("s3sftp.buffers.threadCacheBytes", 1024 * 1024);
+    private static final long MAX_POOLED_BYTES = Long.getLong("s3sftp.buffers.maxPooledBytes", 512L * 1024 * 1024);
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final ConcurrentLinkedDeque<ByteBuffer>[] SHARED = new ConcurrentLinkedDeque[CLASSES];
+    private static final AtomicLong pooledBytes = new AtomicLong();
+    private static final LongAdder allocations = new LongAdder();
+    private static final LongAdder leaks = new LongAdder();
+    private static final ThreadLocal<ThreadCache> CACHE = ThreadLocal.withInitial(ThreadCache::new);
+
+    static {
+        for (int i = 0; i < CLASSES; i++) {
+            SHARED[i] = new ConcurrentLinkedDeque<>();
+        }
+    }
+
+    private S3BufferPool() {
+    }
+
+    /**
+     * Returns a cleared direct buffer with at least {@code size} bytes of capacity and
+     * its limit set to {@code size}.
+     */
+    static ByteBuffer acquire(int size) {
+        if (size > 1 << MAX_SHIFT) {
+            allocations.increment();
+            return ByteBuffer.allocateDirect(size);
+        }
+
+        int index = classIndex(size);
+        ThreadCache cache = threadCache();
+        ByteBuffer buffer = cache != null ? cache.pop(index) : null;
+        if (buffer == null) {
+            buffer = SHARED[index].pollFirst();
+            if (buffer != null) {
+                pooledBytes.addAndGet(-buffer.capacity());
+            }
+        }
+        if (buffer == null) {
+            allocations.increment();
+            buffer = ByteBuffer.allocateDirect(1 << (index + MIN_SHIFT));
+        }
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    static void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (!buffer.isDirect() || Integer.bitCount(capacity) != 1
+                || capacity < 1 << MIN_SHIFT || capacity > 1 << MAX_SHIFT) {
+            return;
+        }
+
+        int index = Integer.numberOfTrailingZeros(capacity) - MIN_SHIFT;
+        buffer.clear();
+        ThreadCache cache = threadCache();
+        if (cache != null && cache.push(index, buffer)) {
+            return;
+        }
+        if (pooledBytes.addAndGet(capacity) <= MAX_POOLED_BYTES) {
+            SHARED[index].offerFirst(buffer);
+        } else {
+            pooledBytes.addAndGet(-capacity);
+        }
+    }
+
+    static long allocationCount() {
+        return allocations.sum();
+    }
+
+    static long leakCount() {
+        return leaks.sum();
+    }
+
+    static Tracker tracker(String owner) {
+        return new Tracker(owner);
+    }
+
+    private static ThreadCache threadCache() {
+        return Thread.currentThread().isVirtual() ? null : CACHE.get();
+    }
+
+    private static int classIndex(int size) {
+        int shift = size <= 1 << MIN_SHIFT ? MIN_SHIFT : 32 - Integer.numberOfLeadingZeros(size - 1);
+        return shift - MIN_SHIFT;
+    }
+
+    private static final class ThreadCache {
+        private final ByteBuffer[][] stacks = new ByteBuffer[CLASSES][];
+        private final int[] counts = new int[CLASSES];
+
+        ThreadCache() {
+            for (int i = 0; i < CLASSES; i++) {
+                int slots = Math.min(THREAD_CACHE_SLOTS, THREAD_CACHE_BYTES >> (i + MIN_SHIFT));
+                stacks[i] = new ByteBuffer[slots];
+            }
+        }
+
+        ByteBuffer pop(int index) {
+            if (counts[index] == 0) {
+                return null;
+            }
+            ByteBuffer buffer = stacks[index][--counts[index]];
+            stacks[index][counts[index]] = null;
+            return buffer;
+        }
+
+        boolean push(int index, ByteBuffer buffer) {
+            if (counts[index] == stacks[index].length) {
+                return false;
+            }
+            stacks[index][counts[index]++] = buffer;
+            return true;
+        }
+    }
+
+    /**
+     * Per-channel view of the pool that remembers which buffers the channel still holds.
+     */
+    static final class Tracker {
+        private final String owner;
+        private final Set<ByteBuffer> leased = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        private Tracker(String owner) {
+            this.owner = owner;
+        }
+
+        ByteBuffer acquire(int size) {
+            ByteBuffer buffer = S3BufferPool.acquire(size);
+            synchronized (this) {
+                leased.add(buffer);
+            }
+            return buffer;
+        }
+
+        void release(ByteBuffer buffer) {
+            if (buffer == null) {
+                return;
+            }
+            boolean removed;
+            synchronized (this) {
+                removed = leased.remove(buffer);
+            }
+            if (removed) {
+                S3BufferPool.release(buffer);
+            }
+        }
+
+        /**
+         * Forgets all leased buffers, reporting them as leaks. Leaked buffers are left to
+         * the garbage collector since their holder may still be using them.
+         */
+        void close() {
+            int count;
+            synchronized (this) {
+                count = leased.size();
+                leased.clear();
+            }
+            if (count > 0) {
+                leaks.add(count);
+                S3Trace.warn("S3BufferPool: {} closed with {} leased buffer(s)", owner, count);
+            }
+        }
+    }
+}
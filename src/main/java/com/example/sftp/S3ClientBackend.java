@@ -0,0 +1,144 @@
+package com.example.sftp;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
+
+/**
+ * Backend over the synchronous {@link S3Client}. Calls run on a dedicated request
+ * pool sized to the HTTP connection pool, so each in-flight request holds a thread.
+ */
+class S3ClientBackend implements S3Backend {
+    private final S3Client s3Client;
+    private final ExecutorService requests;
+
+    S3ClientBackend(S3Client s3Client, int maxConcurrency) {
+        this.s3Client = s3Client;
+        this.requests = S3Executors.newRequestPool("s3-request", maxConcurrency);
+    }
+
+    @Override
+    public CompletableFuture<HeadObjectResponse> headObject(HeadObjectRequest request) {
+        return call(() -> s3Client.headObject(request));
+    }
+
+    @Override
+    public CompletableFuture<ListObjectsV2Response> listObjectsV2(ListObjectsV2Request request) {
+        return call(() -> s3Client.listObjectsV2(request));
+    }
+
+    @Override
+    public CompletableFuture<ResponseInputStream<GetObjectResponse>> getObject(GetObjectRequest request) {
+        return call(() -> s3Client.getObject(request));
+    }
+
+    @Override
+    public CompletableFuture<PutObjectResponse> putObject(PutObjectRequest request, ByteBuffer body) {
+        return call(() -> s3Client.putObject(request, bodyOf(body)));
+    }
+
+    @Override
+    public CompletableFuture<CopyObjectResponse> copyObject(CopyObjectRequest request) {
+        return call(() -> s3Client.copyObject(request));
+    }
+
+    @Override
+    public CompletableFuture<DeleteObjectResponse> deleteObject(DeleteObjectRequest request) {
+        return call(() -> s3Client.deleteObject(request));
+    }
+
+    @Override
+    public CompletableFuture<DeleteObjectsResponse> deleteObjects(DeleteObjectsRequest request) {
+        return call(() -> s3Client.deleteObjects(request));
+    }
+
+    @Override
+    public CompletableFuture<CreateMultipartUploadResponse> createMultipartUpload(CreateMultipartUploadRequest request) {
+        return call(() -> s3Client.createMultipartUpload(request));
+    }
+
+    @Override
+    public CompletableFuture<UploadPartResponse> uploadPart(UploadPartRequest request, ByteBuffer body) {
+        return call(() -> s3Client.uploadPart(request, bodyOf(body)));
+    }
+
+    @Override
+    public CompletableFuture<UploadPartCopyResponse> uploadPartCopy(UploadPartCopyRequest request) {
+        return call(() -> s3Client.uploadPartCopy(request));
+    }
+
+    @Override
+    public CompletableFuture<ListPartsResponse> listParts(ListPartsRequest request) {
+        return call(() -> s3Client.listParts(request));
+    }
+
+    @Override
+    public CompletableFuture<CompleteMultipartUploadResponse> completeMultipartUpload(CompleteMultipartUploadRequest request) {
+        return call(() -> s3Client.completeMultipartUpload(request));
+    }
+
+    @Override
+    public CompletableFuture<AbortMultipartUploadResponse> abortMultipartUpload(AbortMultipartUploadRequest request) {
+        return call(() -> s3Client.abortMultipartUpload(request));
+    }
+
+    @Override
+    public CompletableFuture<ListBucketsResponse> listBuckets() {
+        return call(s3Client::listBuckets);
+    }
+
+    @Override
+    public void close() {
+        requests.shutdown();
+        s3Client.close();
+    }
+
+    private <T> CompletableFuture<T> call(Supplier<T> request) {
+        return CompletableFuture.supplyAsync(request, requests);
+    }
+
+    /**
+     * Request body that streams straight from the buffer; each attempt gets its own view,
+     * so SDK retries re-read the same bytes without copying them.
+     */
+    static RequestBody bodyOf(ByteBuffer data) {
+        ByteBuffer source = data.duplicate();
+        return RequestBody.fromContentProvider(() -> new ByteBufferInputStream(source.duplicate()),
+                source.remaining(), "application/octet-stream");
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
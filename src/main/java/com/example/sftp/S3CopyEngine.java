@@ -0,0 +1,214 @@
+package com.example.sftp;
+
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+/**
+ * Server-side copies within the bucket. Objects below the multipart threshold use a
+ * single {@code CopyObject}; larger ones are split into {@code UploadPartCopy} ranges
+ * that run in parallel, which also lifts the 5 GB CopyObject limit. A multipart copy
+ * takes the source's content type, user metadata, storage class and encryption from a
+ * HEAD, as CopyObject would, and only copies parts of the version that HEAD saw. Directory trees
+ * are copied object by object with bounded concurrency; small objects are issued as
+ * plain backend requests and only multipart copies take a batch-pool thread to
+ * orchestrate their parts. A move deletes each
+ * source in batches as soon as its copy has landed.
+ */
+class S3CopyEngine {
+    private static final long MULTIPART_THRESHOLD = Long.getLong("s3sftp.copy.multipartThreshold", 256L * 1024 * 1024);
+    private static final long PART_SIZE = Long.getLong("s3sftp.copy.partSize", 128L * 1024 * 1024);
+    private static final int PART_CONCURRENCY = Integer.getInteger("s3sftp.copy.partConcurrency", 8);
+    private static final int OBJECT_CONCURRENCY = Integer.getInteger("s3sftp.copy.concurrency", 16);
+    private static final long MAX_PART_SIZE = 5L * 1024 * 1024 * 1024;
+    private static final int MAX_PARTS = 10_000;
+
+    private final S3Backend backend;
+    private final String bucket;
+
+    S3CopyEngine(S3Backend backend, String bucket) {
+        this.backend = backend;
+        this.bucket = bucket;
+    }
+
+    void copyObject(String sourceKey, String targetKey) throws IOException {
+        HeadObjectResponse source = head(sourceKey);
+        if (source.contentLength() < MULTIPART_THRESHOLD) {
+            copyObject(sourceKey, targetKey, source.contentLength());
+        } else {
+            copyMultipart(sourceKey, targetKey, source);
+        }
+    }
+
+    void copyObject(String sourceKey, String targetKey, long size) throws IOException {
+        if (size < MULTIPART_THRESHOLD) {
+            try {
+                S3Backend.await(copySingle(sourceKey, targetKey));
+            } catch (S3Exception e) {
+                throw new IOException("Failed to copy " + sourceKey + " to " + targetKey + ": " + e.getMessage(), e);
+            }
+            return;
+        }
+        // Parts carry none of the source's settings, so they are read up front
+        copyMultipart(sourceKey, targetKey, head(sourceKey));
+    }
+
+    private HeadObjectResponse head(String sourceKey) throws IOException {
+        try {
+            return S3Backend.await(backend.headObject(HeadObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(sourceKey)
+                    .build()));
+        } catch (S3Exception e) {
+            throw new IOException("Failed to read " + sourceKey + " for copy: " + e.getMessage(), e);
+        }
+    }
+
+    private void copyMultipart(String sourceKey, String targetKey, HeadObjectResponse source) throws IOException {
+        long size = source.contentLength();
+        long partSize = partSize(size);
+        S3MultipartUpload upload = new S3MultipartUpload(backend, bucket, targetKey, PART_CONCURRENCY);
+        upload.startCopyOf(source);
+        try {
+            int partNumber = 0;
+            for (long first = 0; first < size; first += partSize) {
+                upload.copyPart(++partNumber, sourceKey, source.eTag(), first, Math.min(first + partSize, size) - 1);
+            }
+        } catch (IOException e) {
+            upload.abort();
+            throw e;
+        }
+        upload.complete();
+    }
+
+    /**
+     * The size of the parts a multipart copy of {@code size} bytes is split into.
+     */
+    static long partSize(long size) {
+        // Stay within the 10,000 part limit and the 5 GB part limit
+        return Math.min(MAX_PART_SIZE, Math.max(PART_SIZE, (size + MAX_PARTS - 1) / MAX_PARTS));
+    }
+
+    private CompletableFuture<CopyObjectResponse> copySingle(String sourceKey, String targetKey) {
+        return backend.copyObject(CopyObjectRequest.builder()
+                .sourceBucket(bucket)
+                .sourceKey(sourceKey)
+                .destinationBucket(bucket)
+                .destinationKey(targetKey)
+                .build());
+    }
+
+    /**
+     * Copies every object under {@code sourcePrefix} to the same relative key under
+     * {@code targetPrefix}. With {@code deleteSource} set, each source object is deleted
+     * once its copy succeeded; sources whose copy failed are left in place.
+     */
+    void copyTree(String sourcePrefix, String targetPrefix, boolean deleteSource) throws IOException {
+        if (targetPrefix.startsWith(sourcePrefix)) {
+            // The listing would pick up the copies and never finish
+            throw new IOException("Cannot copy " + sourcePrefix + " into itself: " + targetPrefix);
+        }
+
+        Semaphore permits = new Semaphore(Math.max(1, OBJECT_CONCURRENCY));
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        Map<String, String> failures = new ConcurrentHashMap<>();
+        Queue<String> copied = new ConcurrentLinkedQueue<>();
+        S3BatchDelete deletes = deleteSource ? new S3BatchDelete(backend, bucket) : null;
+
+        try {
+            String continuationToken = null;
+            do {
+                ListObjectsV2Request.Builder requestBuilder = ListObjectsV2Request.builder()
+                        .bucket(bucket)
+                        .prefix(sourcePrefix);
+                if (continuationToken != null) {
+                    requestBuilder.continuationToken(continuationToken);
+                }
+                ListObjectsV2Response listing = S3Backend.await(backend.listObjectsV2(requestBuilder.build()));
+
+                for (S3Object s3Object : listing.contents()) {
+                    String sourceKey = s3Object.key();
+                    String targetKey = targetPrefix + sourceKey.substring(sourcePrefix.length());
+                    permits.acquire();
+                    if (s3Object.size() < MULTIPART_THRESHOLD) {
+                        pending.add(copySingle(sourceKey, targetKey).handle((response, error) -> {
+                            if (error != null) {
+                                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                                failures.put(sourceKey, String.valueOf(cause.getMessage()));
+                            } else {
+                                copied.add(sourceKey);
+                            }
+                            permits.release();
+                            return null;
+                        }));
+                        continue;
+                    }
+                    Runnable copy = () -> {
+                        try {
+                            copyObject(sourceKey, targetKey, s3Object.size());
+                            copied.add(sourceKey);
+                        } catch (IOException | RuntimeException e) {
+                            failures.put(sourceKey, String.valueOf(e.getMessage()));
+                        } finally {
+                            permits.release();
+                        }
+                    };
+                    try {
+                        pending.add(CompletableFuture.runAsync(copy, S3Executors.batch()));
+                    } catch (RejectedExecutionException e) {
+                        copy.run();
+                    }
+                }
+
+                if (deletes != null) {
+                    drainDeletes(copied, deletes, false);
+                }
+                continuationToken = listing.isTruncated() ? listing.nextContinuationToken() : null;
+            } while (continuationToken != null);
+        } catch (S3Exception e) {
+            failures.put(sourcePrefix, "listing failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while copying " + sourcePrefix);
+        } finally {
+            for (CompletableFuture<Void> future : pending) {
+                future.join();
+            }
+        }
+
+        if (deletes != null) {
+            drainDeletes(copied, deletes, true);
+            deletes.awaitOrThrow(sourcePrefix);
+        }
+        if (!failures.isEmpty()) {
+            String sample = failures.entrySet().stream()
+                    .limit(10)
+                    .map(e -> e.getKey() + " (" + e.getValue() + ")")
+                    .collect(Collectors.joining(", "));
+            throw new IOException("Failed to copy " + failures.size() + " object(s) from " + sourcePrefix
+                    + " to " + targetPrefix + ": " + sample + (failures.size() > 10 ? ", ..." : ""));
+        }
+    }
+
+    /**
+     * Hands copied source keys to the batch deleter, in full batches unless this is the
+     * final drain.
+     */
+    private static void drainDeletes(Queue<String> copied, S3BatchDelete deletes, boolean all) throws IOException {
+        while (copied.size() >= S3BatchDelete.MAX_BATCH || (all && !copied.isEmpty())) {
+            List<String> batch = new ArrayList<>(S3BatchDelete.MAX_BATCH);
+            String key;
+            while (batch.size() < S3BatchDelete.MAX_BATCH && (key = copied.poll()) != null) {
+                batch.add(key);
+            }
+            deletes.deleteKeys(batch);
+        }
+    }
+}
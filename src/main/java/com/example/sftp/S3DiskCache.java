@@ -0,0 +1,297 @@
+package com.example.sftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Read-through cache of object data on local disk, shared by every session. Objects are
+ * cached in fixed-size segments of {@code s3sftp.diskCache.segmentSize} bytes, stored in
+ * the slots of one memory-mapped file in {@code s3sftp.diskCache.dir} whose size is the
+ * {@code s3sftp.diskCache.maxBytes} budget; the least recently used segment gives up its
+ * slot when the file is full. Segments are keyed by bucket, key and ETag, so a reader
+ * that has confirmed the current ETag with a HEAD only ever sees data of that version,
+ * and segments of replaced versions simply age out. Channels fill segments from the
+ * start as they download, so a segment can be partly cached. Setting
+ * {@code s3sftp.diskCache.maxBytes} to 0 disables the cache.
+ * <p>
+ * The cache lives for the life of the process; its file is unlinked as soon as it is opened.
+ */
+final class S3DiskCache {
+    private static final long MAX_BYTES = Long.getLong("s3sftp.diskCache.maxBytes", 1024L * 1024 * 1024);
+    private static final int SEGMENT_SIZE = Integer.getInteger("s3sftp.diskCache.segmentSize", 1024 * 1024);
+    private static final Path DIR = Path.of(System.getProperty("s3sftp.diskCache.dir",
+            Path.of(System.getProperty("java.io.tmpdir"), "s3sftp-cache").toString()));
+
+    private static final LongAdder HIT_BYTES = S3Metrics.counter("disk_cache_bytes", "result", "hit");
+    private static final LongAdder FILL_BYTES = S3Metrics.counter("disk_cache_bytes", "result", "fill");
+    private static final LongAdder EVICTIONS = S3Metrics.counter("disk_cache_evictions", "reason", "lru");
+
+    private static final ReentrantLock INIT_LOCK = new ReentrantLock();
+    private static volatile S3DiskCache shared;
+    private static volatile boolean disabled = MAX_BYTES < SEGMENT_SIZE;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final int segmentSize;
+    private final int slots;
+    // Written by the filler that holds the slot, read only after the segment is found under the lock
+    private final MappedByteBuffer[] mapped;
+    // Not a monitor: every session's reads and fills pass through it
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+    private int nextSlot;
+    private final LinkedHashMap<SegmentId, Segment> segments = new LinkedHashMap<>(64, 0.75f, true);
+
+    private S3DiskCache(Path dir, long maxBytes, int segmentSize) throws IOException {
+        Files.createDirectories(dir);
+        this.file = Files.createTempFile(dir, "s3sftp-", ".cache");
+        this.channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.segmentSize = segmentSize;
+        this.slots = (int) Math.min(Integer.MAX_VALUE, maxBytes / segmentSize);
+        this.mapped = new MappedByteBuffer[slots];
+        // Keep only the open channel, so the space is reclaimed however the process ends
+        Files.deleteIfExists(file);
+        S3Metrics.gauge("disk_cache_segments", this::size);
+        S3Trace.event("Disk cache of {} segments of {} bytes in {}", slots, segmentSize, file);
+    }
+
+    /**
+     * Returns the cache view of one version of an object, or null when the cache is
+     * disabled or the version cannot be identified.
+     */
+    static Version version(String bucket, String key, String eTag, long size) {
+        if (eTag == null || size <= 0) {
+            return null;
+        }
+        S3DiskCache cache = shared();
+        return cache == null ? null : cache.new Version(bucket + "/" + key + "@" + eTag, size);
+    }
+
+    private static S3DiskCache shared() {
+        S3DiskCache cache = shared;
+        if (cache != null || disabled) {
+            return cache;
+        }
+        INIT_LOCK.lock();
+        try {
+            if (shared == null && !disabled) {
+                try {
+                    shared = new S3DiskCache(DIR, MAX_BYTES, SEGMENT_SIZE);
+                } catch (IOException e) {
+                    S3Trace.warn("Failed to create disk cache in {}, caching disabled: {}", DIR, e.getMessage());
+                    disabled = true;
+                }
+            }
+            return shared;
+        } finally {
+            INIT_LOCK.unlock();
+        }
+    }
+
+    private long size() {
+        lock.lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private record SegmentId(String version, long index) {
+    }
+
+    private static final class Segment {
+        final int slot;
+        // Bytes cached from the start of the segment; only grows
+        int filled;
+        int pins;
+        boolean filling;
+        boolean evicted;
+
+        Segment(int slot) {
+            this.slot = slot;
+        }
+    }
+
+    /**
+     * One version of an object. Reads and fills are addressed by object offset.
+     */
+    final class Version {
+        private final String id;
+        private final long size;
+
+        private Version(String id, long size) {
+            this.id = id;
+            this.size = size;
+        }
+
+        /**
+         * Copies the cached bytes that follow {@code position} into {@code dst}, stopping
+         * at the first byte not cached, and returns how many were copied.
+         */
+        int read(long position, ByteBuffer dst) {
+            int copied = 0;
+            while (dst.hasRemaining() && position + copied < size) {
+                long offset = position + copied;
+                SegmentId segmentId = new SegmentId(id, offset / segmentSize);
+                int start = (int) (offset % segmentSize);
+                Segment segment;
+                int available;
+                lock.lock();
+                try {
+                    segment = segments.get(segmentId);
+                    if (segment == null || segment.filled <= start) {
+                        break;
+                    }
+                    segment.pins++;
+                    available = segment.filled - start;
+                } finally {
+                    lock.unlock();
+                }
+                try {
+                    int count = Math.min(dst.remaining(), available);
+                    dst.put(dst.position(), mapped[segment.slot], start, count);
+                    dst.position(dst.position() + count);
+                    copied += count;
+                } finally {
+                    unpin(segment);
+                }
+            }
+            HIT_BYTES.add(copied);
+            return copied;
+        }
+
+        /**
+         * Offers bytes fetched from S3 at {@code position}. Only bytes that extend a
+         * segment's cached prefix are kept; anything else is ignored, as is everything
+         * when no slot can be freed.
+         */
+        void write(long position, ByteBuffer src) {
+            ByteBuffer data = src.duplicate();
+            long offset = position;
+            while (data.hasRemaining()) {
+                SegmentId segmentId = new SegmentId(id, offset / segmentSize);
+                int start = (int) (offset % segmentSize);
+                int count = Math.min(data.remaining(), segmentSize - start);
+                Segment segment = claim(segmentId, start);
+                if (segment != null) {
+                    int filled = start;
+                    try {
+                        MappedByteBuffer region = map(segment.slot);
+                        if (region != null) {
+                            region.put(start, data, data.position(), count);
+                            filled += count;
+                            FILL_BYTES.add(count);
+                        }
+                    } finally {
+                        release(segment, filled);
+                    }
+                }
+                data.position(data.position() + count);
+                offset += count;
+            }
+        }
+    }
+
+    /**
+     * Takes the right to append to a segment at {@code start}, allocating the segment
+     * when {@code start} is 0, or returns null if this write cannot extend it.
+     */
+    private Segment claim(SegmentId segmentId, int start) {
+        lock.lock();
+        try {
+            Segment segment = segments.get(segmentId);
+            if (segment == null) {
+                if (start != 0) {
+                    return null;
+                }
+                int slot = allocateSlot();
+                if (slot < 0) {
+                    return null;
+                }
+                segment = new Segment(slot);
+                segments.put(segmentId, segment);
+            } else if (segment.filling || segment.filled != start) {
+                return null;
+            }
+            segment.filling = true;
+            segment.pins++;
+            return segment;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(Segment segment, int filled) {
+        lock.lock();
+        try {
+            segment.filled = filled;
+            segment.filling = false;
+            unpin(segment);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void unpin(Segment segment) {
+        lock.lock();
+        try {
+            if (--segment.pins == 0 && segment.evicted) {
+                freeSlots.push(segment.slot);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a free slot, evicting the least recently used idle segment when every slot
+     * is taken, or -1 if none can be had. Must hold the lock.
+     */
+    private int allocateSlot() {
+        Integer slot = freeSlots.poll();
+        if (slot == null && nextSlot < slots) {
+            slot = nextSlot++;
+        }
+        if (slot == null) {
+            Iterator<Segment> eldest = segments.values().iterator();
+            while (eldest.hasNext() && slot == null) {
+                Segment segment = eldest.next();
+                if (segment.pins == 0) {
+                    eldest.remove();
+                    segment.evicted = true;
+                    EVICTIONS.increment();
+                    slot = segment.slot;
+                }
+            }
+        }
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     * Returns the mapping of a slot claimed by the caller, mapping it on first use outside
+     * the lock, or null if it cannot be mapped.
+     */
+    private MappedByteBuffer map(int slot) {
+        MappedByteBuffer region = mapped[slot];
+        if (region == null) {
+            try {
+                region = channel.map(FileChannel.MapMode.READ_WRITE, (long) slot * segmentSize, segmentSize);
+                mapped[slot] = region;
+            } catch (IOException e) {
+                S3Trace.warn("Failed to map disk cache segment in {}: {}", file, e.getMessage());
+            }
+        }
+        return region;
+    }
+}
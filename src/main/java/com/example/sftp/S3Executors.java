@@ -0,0 +1,91 @@
+package com.example.sftp;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared background executors for S3 transfers. The read-ahead pool rejects work
+ * when saturated, so callers are expected to fall back to doing it inline; the
+ * batch pool queues, as each batch operation already bounds its own in-flight
+ * requests. Individual S3 requests run on the backend, never on these pools.
+ * <p>
+ * With {@code s3sftp.virtualThreads} each SFTP subsystem runs on a virtual thread, so an
+ * idle session costs a parked virtual thread rather than an OS thread, and its blocking
+ * waits on S3 release the carrier. The pools here stay on platform threads: they are
+ * bounded independently of the number of sessions, and sshd calls into the file system
+ * while holding monitors, so a pinned session thread must never wait on work that
+ * itself needs a free carrier.
+ */
+final class S3Executors {
+    private static final int READ_AHEAD_THREADS = Integer.getInteger("s3sftp.readahead.threads", 64);
+    static final boolean VIRTUAL_THREADS = Boolean.getBoolean("s3sftp.virtualThreads");
+
+    private static final int BATCH_THREADS = Integer.getInteger("s3sftp.batch.threads", 16);
+
+    private static final ExecutorService READ_AHEAD = newBoundedPool("s3-read-ahead", READ_AHEAD_THREADS);
+    private static final ExecutorService BATCH = newQueuedPool("s3-batch", BATCH_THREADS);
+
+    private S3Executors() {
+    }
+
+    static ExecutorService readAhead() {
+        return READ_AHEAD;
+    }
+
+    static ExecutorService batch() {
+        return BATCH;
+    }
+
+    /**
+     * Creates a dedicated queued pool for blocking S3 requests. It must not be shared
+     * with work that waits on those requests.
+     */
+    static ExecutorService newRequestPool(String name, int threads) {
+        return newQueuedPool(name, threads);
+    }
+
+    private static ExecutorService newBoundedPool(String name, int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), daemonThreads(name), new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static ExecutorService newQueuedPool(String name, int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), daemonThreads(name));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Creates a single-threaded scheduler for periodic background work.
+     */
+    static ScheduledExecutorService newScheduler(String name) {
+        return Executors.newSingleThreadScheduledExecutor(daemonThreads(name));
+    }
+
+    /**
+     * Thread factory for per-session work: virtual threads when enabled, daemon
+     * platform threads otherwise.
+     */
+    static ThreadFactory sessionThreads(String name) {
+        return VIRTUAL_THREADS ? Thread.ofVirtual().name(name + "-", 1).factory() : daemonThreads(name);
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
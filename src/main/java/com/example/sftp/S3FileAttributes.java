@@ -6,20 +6,35 @@ import java.nio.file.attribute.FileTime;
 import java.time.Instant;
 
 public class S3FileAttributes implements BasicFileAttributes {
-    private final HeadObjectResponse objectResponse;
+    private final long size;
+    private final Instant lastModified;
     private final String path;
     private final boolean isDirectory;
+    private final String eTag;
 
     public S3FileAttributes(HeadObjectResponse objectResponse, String path, boolean isDirectory) {
-        this.objectResponse = objectResponse;
+        this(objectResponse != null ? objectResponse.contentLength() : 0L,
+                objectResponse != null ? objectResponse.lastModified() : null,
+                path, isDirectory,
+                objectResponse != null ? objectResponse.eTag() : null);
+    }
+
+    public S3FileAttributes(long size, Instant lastModified, String path, boolean isDirectory) {
+        this(size, lastModified, path, isDirectory, null);
+    }
+
+    public S3FileAttributes(long size, Instant lastModified, String path, boolean isDirectory, String eTag) {
+        this.size = size;
+        this.lastModified = lastModified;
         this.path = path;
         this.isDirectory = isDirectory;
+        this.eTag = eTag;
     }
 
     @Override
     public FileTime lastModifiedTime() {
-        if (objectResponse != null) {
-            return FileTime.from(objectResponse.lastModified());
+        if (lastModified != null) {
+            return FileTime.from(lastModified);
         }
         return FileTime.from(Instant.now()); // Default for directories
     }
@@ -56,14 +71,15 @@ public class S3FileAttributes implements BasicFileAttributes {
 
     @Override
     public long size() {
-        if (objectResponse != null) {
-            return objectResponse.contentLength();
-        }
-        return 0L; // Directories have size 0
+        return size; // Directories have size 0
     }
 
     @Override
     public Object fileKey() {
         return path;
     }
-}
\ No newline at end of file
+
+    public String eTag() {
+        return eTag;
+    }
+}
@@ -1,6 +1,5 @@
 package com.example.sftp;
 
-import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.*;
 
 import java.nio.file.*;
@@ -9,21 +8,56 @@ import java.nio.file.spi.FileSystemProvider;
 import java.util.Collections;
 import java.util.Set;
 
-public class S3FileSystem extends FileSystem {
-    private final S3Client s3Client;
+public final class S3FileSystem extends FileSystem {
+    private final S3Backend backend;
     private final String bucketName;
     private final S3FileSystemProvider provider;
     private final Path rootDirectory;
+    private final Path defaultDirectory;
+    // The SSH user of a session view, or null
+    private final String user;
     private boolean isOpen;
 
-    public S3FileSystem(S3Client s3Client, String bucketName) {
-        this.s3Client = s3Client;
+    public S3FileSystem(S3Backend backend, String bucketName) {
+        this.backend = backend;
         this.bucketName = bucketName;
-        this.provider = new S3FileSystemProvider(s3Client, bucketName);
+        this.provider = new S3FileSystemProvider(backend, bucketName);
         this.rootDirectory = new S3Path(this, "/");
+        this.defaultDirectory = rootDirectory;
+        this.user = null;
         this.isOpen = true;
     }
 
+    /**
+     * A view of {@code shared} for {@code user}, whose relative paths resolve against
+     * {@code defaultDirectory}. The provider, and with it the backend and metadata cache,
+     * is shared.
+     */
+    private S3FileSystem(S3FileSystem shared, String user, String defaultDirectory) {
+        this.backend = shared.backend;
+        this.bucketName = shared.bucketName;
+        this.provider = shared.provider;
+        this.rootDirectory = new S3Path(this, "/");
+        this.defaultDirectory = new S3Path(this, defaultDirectory).normalize();
+        this.user = user;
+        this.isOpen = true;
+    }
+
+    /**
+     * Returns a view of this file system for one session of {@code user}, with the given
+     * absolute directory as its working directory.
+     */
+    S3FileSystem forUser(String user, String directory) {
+        return new S3FileSystem(this, user, directory);
+    }
+
+    /**
+     * The user whose session this view belongs to, or null for the shared file system.
+     */
+    String getUser() {
+        return user;
+    }
+
     @Override
     public FileSystemProvider provider() {
         return provider;
@@ -31,13 +65,12 @@ public class S3FileSystem extends FileSystem {
 
     @Override
     public void close() {
-        System.out.println("S3FileSystem.close() called from: " +
-                Thread.currentThread().getStackTrace()[2].getClassName() + "." +
-                Thread.currentThread().getStackTrace()[2].getMethodName() +
-                "() line: " + Thread.currentThread().getStackTrace()[2].getLineNumber());
+        if (S3Trace.ENABLED) {
+            S3Trace.event("S3FileSystem.close() called from: {}", S3Trace.caller());
+        }
 
-        // Do not close the S3Client here as it's managed by the factory
-        System.out.println("S3FileSystem.close() - NOT closing S3Client");
+        // Do not close the backend here as it's managed by the factory
+        S3Trace.event("S3FileSystem.close() - NOT closing S3 backend");
     }
 
 
@@ -59,7 +92,7 @@ public class S3FileSystem extends FileSystem {
 
     @Override
     public Iterable<Path> getRootDirectories() {
-        return Collections.singletonList(new S3Path(this, "/"));
+        return Collections.singletonList(rootDirectory);
     }
 
     @Override
@@ -74,21 +107,24 @@ public class S3FileSystem extends FileSystem {
 
     @Override
     public Path getPath(String first, String... more) {
-        System.out.println("GetPath called with: " + first);
+        S3Trace.event("GetPath called with: {}", first);
+        if (more.length > 0) {
+            first = String.join("/", first, String.join("/", more));
+        }
 
-        // Handle empty path
+        // The empty path is the working directory, which sshd uses as its default directory
         if (first == null || first.isEmpty()) {
-            return new S3Path(this, "/");
+            return defaultDirectory;
         }
 
         // For relative paths, don't add leading slash
         if (!first.startsWith("/")) {
-            System.out.println("Creating relative path: " + first);
+            S3Trace.event("Creating relative path: {}", first);
             return new S3Path(this, first);
         }
 
         // For absolute paths, preserve the leading slash
-        System.out.println("Creating absolute path: " + first);
+        S3Trace.event("Creating absolute path: {}", first);
         return new S3Path(this, first);
     }
 
@@ -107,8 +143,8 @@ public class S3FileSystem extends FileSystem {
         throw new UnsupportedOperationException();
     }
 
-    public S3Client getS3Client() {
-        return s3Client;
+    public S3Backend getBackend() {
+        return backend;
     }
 
     public String getBucketName() {
@@ -118,4 +154,11 @@ public class S3FileSystem extends FileSystem {
     public Path getRootDirectory() {
         return rootDirectory;
     }
+
+    /**
+     * The directory relative paths resolve against: the root, or a session's home.
+     */
+    public Path getDefaultDirectory() {
+        return defaultDirectory;
+    }
 }
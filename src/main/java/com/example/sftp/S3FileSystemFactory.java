@@ -2,111 +2,140 @@ package com.example.sftp;
 
 import org.apache.sshd.common.file.FileSystemFactory;
 import org.apache.sshd.common.session.SessionContext;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3AsyncClientBuilder;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.S3ClientBuilder;
 
 import java.io.IOException;
 import java.nio.file.FileSystem;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class S3FileSystemFactory implements FileSystemFactory {
+    private static final String BACKEND = System.getProperty("s3sftp.backend", "sync");
+    private static final int MAX_CONCURRENCY = Integer.getInteger("s3sftp.s3.maxConcurrency", 128);
+    private static final int MAX_PENDING_ACQUIRES = Integer.getInteger("s3sftp.s3.maxPendingAcquires", 10_000);
+    private static final long ACQUIRE_TIMEOUT_MILLIS = Long.getLong("s3sftp.s3.acquireTimeoutMillis", 60_000);
+
     private final String bucketName;
-    private volatile S3Client s3Client;
-    private volatile S3FileSystem fileSystem;
+    // Health checked in the background, so sessions never wait on S3 to start
+    private final S3Backend backend;
+    private final S3FileSystem fileSystem;
     private final Map<String, String> userHomeDirectories;
-    private final Object lock = new Object();
+    private final Set<String> preparedHomes = ConcurrentHashMap.newKeySet();
 
     public S3FileSystemFactory(String bucketName) {
-        System.out.println("Initializing S3FileSystemFactory for bucket: " + bucketName);
+        this(bucketName, null);
+    }
+
+    /**
+     * Creates a factory over an existing backend, such as {@link InMemoryS3Backend};
+     * with a null backend one is built from the {@code s3sftp.*} properties.
+     */
+    public S3FileSystemFactory(String bucketName, S3Backend backend) {
+        S3Trace.event("Initializing S3FileSystemFactory for bucket: {}", bucketName);
         this.bucketName = bucketName;
         this.userHomeDirectories = new ConcurrentHashMap<>();
         userHomeDirectories.put("admin", "/home/admin");
-        initializeS3Client();
+        // Only a client built here can be rebuilt when it stops working
+        this.backend = backend != null
+                ? new HealthCheckedS3Backend(bucketName, backend, null)
+                : new HealthCheckedS3Backend(bucketName, buildBackend(), S3FileSystemFactory::buildBackend);
+        this.fileSystem = new S3FileSystem(this.backend, bucketName);
     }
 
-
-
-    private void ensureValidS3Client() {
-        if (s3Client == null) {
-            initializeS3Client();
+    /**
+     * Builds the S3 backend selected by {@code s3sftp.backend}: {@code sync} runs the
+     * blocking client on a request pool, {@code async} uses the Netty-based client.
+     * Both size their connection pool from {@code s3sftp.s3.maxConcurrency}; the region
+     * comes from {@code s3sftp.region} or the SDK's default provider chain.
+     */
+    private static S3Backend buildBackend() {
+        S3Backend backend;
+        String region = System.getProperty("s3sftp.region");
+        if ("async".equalsIgnoreCase(BACKEND)) {
+            S3AsyncClientBuilder builder = S3AsyncClient.builder()
+                    .httpClientBuilder(NettyNioAsyncHttpClient.builder()
+                            .maxConcurrency(MAX_CONCURRENCY)
+                            .maxPendingConnectionAcquires(MAX_PENDING_ACQUIRES)
+                            .connectionAcquisitionTimeout(Duration.ofMillis(ACQUIRE_TIMEOUT_MILLIS)));
+            if (region != null) {
+                builder.region(Region.of(region));
+            }
+            backend = new S3AsyncBackend(builder.build());
         } else {
-            try {
-                // Test the client with a simple operation
-                s3Client.listBuckets();
-            } catch (Exception e) {
-                System.out.println("S3Client test failed, recreating: " + e.getMessage());
-                synchronized (lock) {
-                    try {
-                        if (s3Client != null) {
-                            s3Client.close();
-                        }
-                    } catch (Exception ce) {
-                        System.out.println("Error closing old S3Client: " + ce.getMessage());
-                    }
-                    s3Client = null;
-                    initializeS3Client();
-                }
+            S3ClientBuilder builder = S3Client.builder()
+                    .httpClientBuilder(ApacheHttpClient.builder()
+                            .maxConnections(MAX_CONCURRENCY)
+                            .connectionAcquisitionTimeout(Duration.ofMillis(ACQUIRE_TIMEOUT_MILLIS)));
+            if (region != null) {
+                builder.region(Region.of(region));
             }
+            backend = new S3ClientBackend(builder.build(), MAX_CONCURRENCY);
         }
+        S3Trace.event("Initialized {} S3 backend with max concurrency {}", BACKEND, MAX_CONCURRENCY);
+        return backend;
     }
 
     @Override
     public FileSystem createFileSystem(SessionContext session) throws IOException {
-        System.out.println("Creating FileSystem for session: " + session);
+        S3Trace.event("Creating FileSystem for session: {}", session);
 
         try {
-            synchronized (lock) {
-                ensureValidS3Client();
+            S3FileSystem shared = fileSystem;
 
-                if (fileSystem == null) {
-                    fileSystem = new S3FileSystem(s3Client, bucketName);
-                    System.out.println("Created new S3FileSystem");
-                }
-
-                // Don't initialize directories here - move it to a separate method
-                return fileSystem;
+            // Each session sees the shared file system from its own home directory
+            String home = homeDirectory(session.getUsername());
+            // Remembered only once it exists, so a failed attempt is retried at the next login
+            if (!preparedHomes.contains(home) && createDirectoryIfNotExists(shared, home)) {
+                preparedHomes.add(home);
             }
+            return session.computeAttributeIfAbsent(S3SessionView.KEY,
+                    key -> new S3SessionView(shared.forUser(session.getUsername(), home))).getFileSystem();
         } catch (Exception e) {
-            System.err.println("Error in createFileSystem: " + e.getMessage());
+            S3Trace.warn("Error in createFileSystem: {}", e.getMessage());
             throw new IOException("Failed to create filesystem", e);
         }
     }
 
     public S3FileSystem getFileSystem() {
-        synchronized (lock) {
-            if (fileSystem == null) {
-                ensureValidS3Client();
-                fileSystem = new S3FileSystem(s3Client, bucketName);
-            }
-            return fileSystem;
-        }
+        return fileSystem;
     }
 
     public void initializeDirectoryStructure() {
-        System.out.println("Initializing directory structure");
+        S3Trace.event("Initializing directory structure");
         try {
             S3FileSystem fs = getFileSystem();
             createDirectoryIfNotExists(fs, "/home");
             createDirectoryIfNotExists(fs, "/home/admin");
         } catch (Exception e) {
-            System.err.println("Error initializing directory structure: " + e.getMessage());
+            S3Trace.warn("Error initializing directory structure: {}", e.getMessage());
         }
     }
 
-    private void createDirectoryIfNotExists(S3FileSystem fs, String pathStr) {
+    /**
+     * Returns whether the directory exists afterwards.
+     */
+    private boolean createDirectoryIfNotExists(S3FileSystem fs, String pathStr) {
         try {
             Path path = fs.getPath(pathStr);
             if (!exists(fs, path)) {
                 fs.provider().createDirectory(path);
-                System.out.println("Created directory: " + pathStr);
+                S3Trace.event("Created directory: {}", pathStr);
             } else {
-                System.out.println("Directory already exists: " + pathStr);
+                S3Trace.event("Directory already exists: {}", pathStr);
             }
+            return true;
         } catch (Exception e) {
-            System.out.println("Note: Error handling directory " + pathStr + ": " + e.getMessage());
+            S3Trace.event("Note: Error handling directory {}: {}", pathStr, e.getMessage());
+            return false;
         }
     }
 
@@ -122,30 +151,33 @@ public class S3FileSystemFactory implements FileSystemFactory {
     @Override
     public Path getUserHomeDir(SessionContext session) throws IOException {
         String username = session.getUsername();
-        String homePath = userHomeDirectories.getOrDefault(username, "/home/" + username);
-        System.out.println("Getting home directory for user: " + username + " -> " + homePath);
+        String homePath = homeDirectory(username);
+        S3Trace.event("Getting home directory for user: {} -> {}", username, homePath);
         return getFileSystem().getPath(homePath);
     }
 
+    /**
+     * Maps a user to a home directory other than {@code /home/<username>}.
+     */
+    public void addUserHomeDirectory(String username, String homePath) {
+        userHomeDirectories.put(username, homePath);
+    }
+
+    private String homeDirectory(String username) {
+        return userHomeDirectories.getOrDefault(username, "/home/" + username);
+    }
+
     // Call this method when shutting down the server
     public void shutdown() {
-        System.out.println("S3FileSystemFactory shutdown called from:");
-        Thread.dumpStack();
-
-        synchronized (lock) {
-            if (s3Client != null) {
-                try {
-                    System.out.println("Closing S3Client during factory shutdown");
-                    s3Client.close();
-                } catch (Exception e) {
-                    System.err.println("Error closing S3Client: " + e.getMessage());
-                } finally {
-                    s3Client = null;
-                    fileSystem = null;
-                }
-            } else {
-                System.out.println("S3Client was already null during shutdown");
-            }
+        if (S3Trace.ENABLED) {
+            S3Trace.event("S3FileSystemFactory shutdown called from: {}", S3Trace.caller());
+        }
+
+        try {
+            S3Trace.event("Closing S3 backend during factory shutdown");
+            backend.close();
+        } catch (Exception e) {
+            S3Trace.warn("Error closing S3 backend: {}", e.getMessage());
         }
     }
 }
\ No newline at end of file
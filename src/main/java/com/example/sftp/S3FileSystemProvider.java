@@ -1,8 +1,6 @@
 package com.example.sftp;
-import software.amazon.awssdk.core.sync.RequestBody;
-import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.services.s3.model.*;
-import software.amazon.awssdk.core.sync.ResponseTransformer;
 
 import java.io.*;
 import java.net.URI;
@@ -13,14 +11,24 @@ import java.nio.file.*;
 import java.nio.file.attribute.*;
 import java.nio.file.spi.FileSystemProvider;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class S3FileSystemProvider extends FileSystemProvider {
-    private final S3Client s3Client;
+    private final S3Backend backend;
     private final String bucketName;
+    private final S3MetadataCache metadataCache;
 
-    public S3FileSystemProvider(S3Client s3Client, String bucketName) {
-        this.s3Client = s3Client;
+    public S3FileSystemProvider(S3Backend backend, String bucketName) {
+        this.backend = CoalescingS3Backend.wrap(new MeteredS3Backend(backend));
         this.bucketName = bucketName;
+        this.metadataCache = new S3MetadataCache();
+        metadataCache.monitor();
+    }
+
+    S3MetadataCache getMetadataCache() {
+        return metadataCache;
     }
 
     @Override
@@ -47,11 +55,21 @@ public class S3FileSystemProvider extends FileSystemProvider {
 
     @Override
     public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs) throws IOException {
-        String key = path.toString();
+        String key = keyOf(path);
         if (options.contains(StandardOpenOption.READ)) {
-            return new S3SeekableByteChannel(s3Client, bucketName, key);
+            return new S3SeekableByteChannel(backend, bucketName, key);
         } else if (options.contains(StandardOpenOption.WRITE) || options.contains(StandardOpenOption.CREATE)) {
-            return new S3OutputByteChannel(s3Client, bucketName, key);
+            S3OutputByteChannel channel = new S3OutputByteChannel(backend, bucketName, key, metadataCache,
+                    ownerOf(path));
+            boolean append = options.contains(StandardOpenOption.APPEND);
+            if (!options.contains(StandardOpenOption.TRUNCATE_EXISTING) && channel.resume()) {
+                if (append) {
+                    channel.position(channel.size());
+                }
+            } else if (append) {
+                channel.append();
+            }
+            return channel;
         }
         throw new UnsupportedOperationException();
     }
@@ -66,31 +84,40 @@ public class S3FileSystemProvider extends FileSystemProvider {
         boolean create = options.contains(StandardOpenOption.CREATE);
         boolean createNew = options.contains(StandardOpenOption.CREATE_NEW);
         boolean append = options.contains(StandardOpenOption.APPEND);
+        boolean truncate = options.contains(StandardOpenOption.TRUNCATE_EXISTING);
 
-        String key = path.toString();
-        if (key.startsWith("/")) {
-            key = key.substring(1);
-        }
+        String key = keyOf(path);
 
         // Create custom FileChannel implementation
-        return new S3FileChannel(s3Client, bucketName, key, read, write, create, createNew, append);
+        return new S3FileChannel(backend, bucketName, key, ownerOf(path), metadataCache, read, write, create,
+                createNew, append, truncate);
     }
 
-    private static class S3FileChannel extends FileChannel {
-        private final S3Client s3Client;
+    private static class S3FileChannel extends FileChannel implements S3WriteAssembler.Resumable {
+        private static final int TRANSFER_BUFFER_SIZE = 256 * 1024;
+        private final S3Backend backend;
+        private final S3MetadataCache metadataCache;
         private final String bucket;
         private final String key;
         private final boolean read;
         private final boolean write;
         private final boolean create;
-        private ByteBuffer buffer;
+        private final ReentrantLock positionLock = new ReentrantLock();
+        // Read-only channels fetch blocks on demand. Write-only channels stream parts
+        // as they fill; read-write contents are staged and uploaded when forced or
+        // closed if changed since
+        private S3BlockReader reader;
+        private S3WriteAssembler assembler;
+        private S3StagingBuffer staging;
+        private boolean dirty;
         private long position;
         private boolean closed;
 
-        public S3FileChannel(S3Client s3Client, String bucket, String key,
-                             boolean read, boolean write, boolean create,
-                             boolean createNew, boolean append) throws IOException {
-            this.s3Client = s3Client;
+        public S3FileChannel(S3Backend backend, String bucket, String key, String owner,
+                             S3MetadataCache metadataCache, boolean read, boolean write, boolean create,
+                             boolean createNew, boolean append, boolean truncate) throws IOException {
+            this.backend = backend;
+            this.metadataCache = metadataCache;
             this.bucket = bucket;
             this.key = key;
             this.read = read;
@@ -99,93 +126,186 @@ public class S3FileSystemProvider extends FileSystemProvider {
             this.position = 0;
             this.closed = false;
 
-            if (read) {
-                // For read operations, load the content into buffer
+            if (write && !read) {
+                assembler = new S3WriteAssembler(backend, bucket, key, owner);
+                // Unless told to start over, a client reopening an interrupted upload picks it up;
+                // otherwise appends build on the existing object without sending it again
                 try {
-                    byte[] data = s3Client.getObject(GetObjectRequest.builder()
-                                    .bucket(bucket)
-                                    .key(key)
-                                    .build(),
-                            ResponseTransformer.toBytes()).asByteArray();
-
-                    buffer = ByteBuffer.wrap(data);
+                    boolean resumed = !truncate && assembler.resume();
+                    if (!resumed && append) {
+                        assembler.append();
+                    }
+                } catch (IOException e) {
+                    assembler.close();
+                    throw e;
+                }
+                if (append) {
+                    position = assembler.size();
+                }
+            } else if (write) {
+                staging = new S3StagingBuffer("file channel for " + key, S3MultipartUpload.PART_SIZE);
+                dirty = true;
+                try {
+                    loadInto(staging);
+                    dirty = false;
+                } catch (NoSuchFileException e) {
+                    if (!create) {
+                        staging.close();
+                        throw e;
+                    }
+                }
+                if (append) {
+                    position = staging.size();
+                }
+            } else if (read) {
+                // Only the size and version are needed up front; data is fetched as it is read
+                try {
+                    HeadObjectResponse response = S3Backend.await(backend.headObject(HeadObjectRequest.builder()
+                            .bucket(bucket)
+                            .key(key)
+                            .build()));
+                    reader = new S3BlockReader(backend, bucket, key, response.contentLength(), response.eTag());
                 } catch (NoSuchKeyException e) {
                     if (!create) {
                         throw new NoSuchFileException(key);
                     }
-                    buffer = ByteBuffer.allocate(0);
+                    reader = new S3BlockReader(backend, bucket, key, 0, null);
+                } catch (S3Exception e) {
+                    throw new IOException("Failed to open " + key + ": " + e.getMessage(), e);
                 }
-            } else {
-                buffer = ByteBuffer.allocate(8192); // Initial buffer size
             }
         }
 
-        @Override
-        public int read(ByteBuffer dst) throws IOException {
+        private void loadInto(S3StagingBuffer staging) throws IOException {
+            try (ResponseInputStream<GetObjectResponse> response = S3Backend.await(backend.getObject(GetObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .build()));
+                 ReadableByteChannel body = Channels.newChannel(response)) {
+                ByteBuffer buffer = S3BufferPool.acquire(TRANSFER_BUFFER_SIZE);
+                try {
+                    long offset = 0;
+                    while (body.read(buffer.clear()) >= 0) {
+                        offset += staging.write(offset, buffer.flip());
+                    }
+                } finally {
+                    S3BufferPool.release(buffer);
+                }
+            } catch (NoSuchKeyException e) {
+                throw new NoSuchFileException(key);
+            }
+        }
+
+        private int readAt(long position, ByteBuffer dst) throws IOException {
             if (!read) throw new NonReadableChannelException();
             if (closed) throw new ClosedChannelException();
+            if (!dst.hasRemaining()) return 0;
+            return staging != null ? staging.read(position, dst) : reader.read(position, dst);
+        }
 
-            buffer.position((int) position);
-            if (buffer.remaining() == 0) return -1;
+        private int writeAt(long position, ByteBuffer src) throws IOException {
+            if (!write) throw new NonWritableChannelException();
+            if (closed) throw new ClosedChannelException();
+            dirty = true;
+            return assembler != null ? assembler.write(position, src) : staging.write(position, src);
+        }
 
-            int bytesRead = Math.min(dst.remaining(), buffer.remaining());
-            byte[] data = new byte[bytesRead];
-            buffer.get(data);
-            dst.put(data);
-            position += bytesRead;
-            return bytesRead;
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            positionLock.lock();
+            try {
+                int bytesRead = readAt(position, dst);
+                if (bytesRead > 0) {
+                    position += bytesRead;
+                }
+                return bytesRead;
+            } finally {
+                positionLock.unlock();
+            }
         }
 
         @Override
         public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
-            return 0;
+            Objects.checkFromIndexSize(offset, length, dsts.length);
+            positionLock.lock();
+            try {
+                long total = 0;
+                for (int i = offset; i < offset + length; i++) {
+                    int wanted = dsts[i].remaining();
+                    int bytesRead = readAt(position, dsts[i]);
+                    if (bytesRead < 0) {
+                        return total == 0 ? -1 : total;
+                    }
+                    position += bytesRead;
+                    total += bytesRead;
+                    if (bytesRead < wanted) {
+                        break;
+                    }
+                }
+                return total;
+            } finally {
+                positionLock.unlock();
+            }
         }
 
         @Override
         public int write(ByteBuffer src) throws IOException {
-            if (!write) throw new NonWritableChannelException();
-            if (closed) throw new ClosedChannelException();
-
-            int bytesWritten = src.remaining();
-            byte[] data = new byte[bytesWritten];
-            src.get(data);
-
-            // Ensure buffer has enough capacity
-            if (buffer.remaining() < bytesWritten) {
-                ByteBuffer newBuffer = ByteBuffer.allocate(buffer.capacity() * 2);
-                buffer.flip();
-                newBuffer.put(buffer);
-                buffer = newBuffer;
+            positionLock.lock();
+            try {
+                int bytesWritten = writeAt(position, src);
+                position += bytesWritten;
+                return bytesWritten;
+            } finally {
+                positionLock.unlock();
             }
-
-            buffer.put(data);
-            position += bytesWritten;
-            return bytesWritten;
         }
 
         @Override
         public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
-            return 0;
+            Objects.checkFromIndexSize(offset, length, srcs.length);
+            positionLock.lock();
+            try {
+                long total = 0;
+                for (int i = offset; i < offset + length; i++) {
+                    int bytesWritten = writeAt(position, srcs[i]);
+                    position += bytesWritten;
+                    total += bytesWritten;
+                }
+                return total;
+            } finally {
+                positionLock.unlock();
+            }
         }
 
         @Override
         public long position() throws IOException {
             if (closed) throw new ClosedChannelException();
-            return position;
+            positionLock.lock();
+            try {
+                return position;
+            } finally {
+                positionLock.unlock();
+            }
         }
 
         @Override
         public FileChannel position(long newPosition) throws IOException {
             if (closed) throw new ClosedChannelException();
             if (newPosition < 0) throw new IllegalArgumentException("Negative position");
-            this.position = newPosition;
+            positionLock.lock();
+            try {
+                this.position = newPosition;
+            } finally {
+                positionLock.unlock();
+            }
             return this;
         }
 
         @Override
         public long size() throws IOException {
             if (closed) throw new ClosedChannelException();
-            return buffer.capacity();
+            if (assembler != null) return assembler.size();
+            return write ? staging.size() : reader.size();
         }
 
         @Override
@@ -193,57 +313,166 @@ public class S3FileSystemProvider extends FileSystemProvider {
             if (!write) throw new NonWritableChannelException();
             if (closed) throw new ClosedChannelException();
 
-            ByteBuffer newBuffer = ByteBuffer.allocate((int) size);
-            buffer.flip();
-            if (buffer.remaining() > size) {
-                byte[] data = new byte[(int) size];
-                buffer.get(data);
-                newBuffer.put(data);
-            } else {
-                newBuffer.put(buffer);
+            if (assembler != null) {
+                assembler.truncate(size);
+            } else if (size < staging.size()) {
+                staging.truncate(size);
+                dirty = true;
+            }
+            positionLock.lock();
+            try {
+                position = Math.min(position, size);
+            } finally {
+                positionLock.unlock();
             }
-            buffer = newBuffer;
-            position = Math.min(position, size);
             return this;
         }
 
         @Override
         public void force(boolean metaData) throws IOException {
             if (closed) throw new ClosedChannelException();
-            if (write) {
-                // Upload to S3
-                buffer.flip();
-                byte[] data = new byte[buffer.remaining()];
-                buffer.get(data);
+            // A streamed upload can only be published by completing it on close
+            if (write && dirty && assembler == null) {
+                // Upload straight from the staged blocks; nothing is sent again until the next change
+                S3MultipartUpload.uploadStaged(backend, bucket, key, staging);
+                dirty = false;
+            }
+        }
 
-                s3Client.putObject(PutObjectRequest.builder()
-                                .bucket(bucket)
-                                .key(key)
-                                .build(),
-                        RequestBody.fromBytes(data));
+        @Override
+        public void suspendOnClose() {
+            if (assembler != null) {
+                assembler.suspendOnClose();
             }
         }
 
         @Override
         public long transferTo(long position, long count, WritableByteChannel target)
                 throws IOException {
-            throw new UnsupportedOperationException("Transfer operations not supported");
+            if (position < 0 || count < 0) throw new IllegalArgumentException("Negative position or count");
+            if (!read) throw new NonReadableChannelException();
+            if (closed) throw new ClosedChannelException();
+
+            if (target instanceof S3FileChannel) {
+                S3FileChannel s3Target = (S3FileChannel) target;
+                s3Target.positionLock.lock();
+                try {
+                    long copied = copyServerSide(this, position, s3Target, s3Target.position, count);
+                    if (copied >= 0) {
+                        s3Target.position += copied;
+                        return copied;
+                    }
+                } finally {
+                    s3Target.positionLock.unlock();
+                }
+            }
+
+            long remaining = Math.min(count, size() - position);
+            if (remaining <= 0) {
+                return 0;
+            }
+            ByteBuffer buffer = S3BufferPool.acquire((int) Math.min(TRANSFER_BUFFER_SIZE, remaining));
+            long transferred = 0;
+            try {
+                while (transferred < remaining) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), remaining - transferred));
+                    int bytesRead = readAt(position + transferred, buffer);
+                    if (bytesRead <= 0) {
+                        break;
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        if (target.write(buffer) == 0) {
+                            // A non-blocking target is full; stop where it stopped
+                            break;
+                        }
+                    }
+                    transferred += bytesRead - buffer.remaining();
+                    if (buffer.hasRemaining()) {
+                        break;
+                    }
+                }
+            } finally {
+                S3BufferPool.release(buffer);
+            }
+            return transferred;
         }
 
         @Override
         public long transferFrom(ReadableByteChannel src, long position, long count)
                 throws IOException {
-            throw new UnsupportedOperationException("Transfer operations not supported");
+            if (position < 0 || count < 0) throw new IllegalArgumentException("Negative position or count");
+            if (!write) throw new NonWritableChannelException();
+            if (closed) throw new ClosedChannelException();
+            if (position > size() || count == 0) {
+                return 0;
+            }
+
+            if (src instanceof S3FileChannel) {
+                S3FileChannel s3Source = (S3FileChannel) src;
+                s3Source.positionLock.lock();
+                try {
+                    long copied = copyServerSide(s3Source, s3Source.position, this, position, count);
+                    if (copied >= 0) {
+                        s3Source.position += copied;
+                        return copied;
+                    }
+                } finally {
+                    s3Source.positionLock.unlock();
+                }
+            }
+
+            ByteBuffer buffer = S3BufferPool.acquire((int) Math.min(TRANSFER_BUFFER_SIZE, count));
+            long transferred = 0;
+            try {
+                while (transferred < count) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), count - transferred));
+                    int bytesRead = src.read(buffer);
+                    if (bytesRead <= 0) {
+                        break;
+                    }
+                    buffer.flip();
+                    writeAt(position + transferred, buffer);
+                    transferred += bytesRead;
+                }
+            } finally {
+                S3BufferPool.release(buffer);
+            }
+            return transferred;
+        }
+
+        /**
+         * Copies up to {@code count} bytes of the source's object at {@code sourcePosition}
+         * into the target's upload at {@code targetPosition} without the data leaving S3.
+         * Returns the number of bytes copied, or -1 when the channels or the range do not
+         * allow it and the bytes must be streamed instead.
+         */
+        private static long copyServerSide(S3FileChannel source, long sourcePosition,
+                                           S3FileChannel target, long targetPosition, long count)
+                throws IOException {
+            if (source.reader == null || source.reader.eTag() == null || target.assembler == null
+                    || source.closed || target.closed || !source.bucket.equals(target.bucket)) {
+                return -1;
+            }
+            long length = Math.min(count, source.reader.size() - sourcePosition);
+            if (length <= 0 || !target.assembler.copyFrom(targetPosition, source.key, source.reader.eTag(),
+                    sourcePosition, length)) {
+                return -1;
+            }
+            S3Trace.event("Copied {} bytes of {} into {} server-side", length, source.key, target.key);
+            return length;
         }
 
         @Override
         public int read(ByteBuffer dst, long position) throws IOException {
-            throw new UnsupportedOperationException("Positioned read not supported");
+            if (position < 0) throw new IllegalArgumentException("Negative position");
+            return readAt(position, dst);
         }
 
         @Override
         public int write(ByteBuffer src, long position) throws IOException {
-            throw new UnsupportedOperationException("Positioned write not supported");
+            if (position < 0) throw new IllegalArgumentException("Negative position");
+            return writeAt(position, src);
         }
 
         @Override
@@ -263,39 +492,48 @@ public class S3FileSystemProvider extends FileSystemProvider {
 
         @Override
         protected void implCloseChannel() throws IOException {
-            if (write) {
-                force(false); // Upload any remaining data
+            try {
+                if (assembler != null) {
+                    assembler.finish();
+                } else if (write) {
+                    force(false); // Upload any remaining data
+                }
+            } finally {
+                if (write) {
+                    metadataCache.invalidate(key);
+                }
+                closed = true;
+                if (reader != null) {
+                    reader.close();
+                }
+                if (assembler != null) {
+                    assembler.close();
+                }
+                if (staging != null) {
+                    staging.close();
+                }
             }
-            closed = true;
         }
     }
 
     @Override
     public void createDirectory(Path dir, FileAttribute<?>... attrs) throws IOException {
-        String key = dir.toString();
-        System.out.println("\n=== Create Directory Debug ===");
-        System.out.println("Original path: " + key);
-
-        // Normalize the key
-        if (key.startsWith("/")) {
-            key = key.substring(1);
-        }
-        if (!key.endsWith("/")) {
-            key += "/";
-        }
+        String key = keyOf(dir) + "/";
+        S3Trace.event("=== Create Directory Debug ===");
+        S3Trace.event("Original path: {}", dir);
 
-        System.out.println("Normalized key: " + key);
+        S3Trace.event("Normalized key: {}", key);
 
         try {
             // First check if directory already exists
 
             if (directoryExists(key)) {
-                System.out.println("Directory already exists: " + key);
+                S3Trace.event("Directory already exists: {}", key);
                 throw new FileAlreadyExistsException(dir.toString());
             }
 
             // Create directory marker
-            System.out.println("Creating directory marker: " + key);
+            S3Trace.event("Creating directory marker: {}", key);
 
             try {
                 // Check direct match
@@ -305,12 +543,12 @@ public class S3FileSystemProvider extends FileSystemProvider {
                         .build();
 
                 try {
-                    s3Client.headObject(headRequest);
-                    System.out.println("Directory marker already exists: " + key);
+                    S3Backend.await(backend.headObject(headRequest));
+                    S3Trace.event("Directory marker already exists: {}", key);
                     throw new FileAlreadyExistsException(dir.toString());
                 } catch (NoSuchKeyException e) {
                     // Key doesn't exist, which is what we want
-                    System.out.println("Directory marker doesn't exist, proceeding with creation");
+                    S3Trace.event("Directory marker doesn't exist, proceeding with creation");
                 }
 
                 // Also check if there are any objects with this prefix
@@ -320,33 +558,34 @@ public class S3FileSystemProvider extends FileSystemProvider {
                         .maxKeys(1)
                         .build();
 
-                ListObjectsV2Response response = s3Client.listObjectsV2(listRequest);
+                ListObjectsV2Response response = S3Backend.await(backend.listObjectsV2(listRequest));
                 if (response.hasContents()) {
-                    System.out.println("Objects exist with prefix: " + key);
+                    S3Trace.event("Objects exist with prefix: {}", key);
                     throw new FileAlreadyExistsException(dir.toString());
                 }
 
                 // Create directory marker
-                System.out.println("Creating directory marker: " + key);
+                S3Trace.event("Creating directory marker: {}", key);
                 PutObjectRequest request = PutObjectRequest.builder()
                         .bucket(bucketName)
                         .key(key)
                         .contentLength(0L)
                         .build();
 
-                s3Client.putObject(request, RequestBody.empty());
-                System.out.println("Successfully created directory marker");
+                S3Backend.await(backend.putObject(request, ByteBuffer.allocate(0)));
+                metadataCache.invalidate(key);
+                S3Trace.event("Successfully created directory marker");
 
             } catch (S3Exception e) {
                 if (e instanceof NoSuchKeyException) {
                     throw new FileNotFoundException(dir.toString());
                 }
-                System.out.println("S3 error during directory creation: " + e.getMessage());
+                S3Trace.event("S3 error during directory creation: {}", e.getMessage());
                 throw new IOException("Failed to create directory: " + dir, e);
             }
         } catch (Exception e) {
             if (!(e instanceof FileAlreadyExistsException)) {
-                System.out.println("Unexpected error: " + e.getMessage());
+                S3Trace.event("Unexpected error: {}", e.getMessage());
                 throw new IOException("Failed to create directory: " + dir, e);
             }
             throw e;
@@ -354,7 +593,7 @@ public class S3FileSystemProvider extends FileSystemProvider {
     }
 
     private boolean directoryExists(String key) {
-        System.out.println("Checking if directory exists: " + key);
+        S3Trace.event("Checking if directory exists: {}", key);
 
         try {
             // Ensure key ends with / for directory check
@@ -369,8 +608,8 @@ public class S3FileSystemProvider extends FileSystemProvider {
                     .build();
 
             try {
-                s3Client.headObject(request);
-                System.out.println("Found directory marker");
+                S3Backend.await(backend.headObject(request));
+                S3Trace.event("Found directory marker");
                 return true;
             } catch (NoSuchKeyException e) {
                 // Method 2: Check for any objects with this prefix
@@ -380,13 +619,13 @@ public class S3FileSystemProvider extends FileSystemProvider {
                         .maxKeys(1)
                         .build();
 
-                ListObjectsV2Response response = s3Client.listObjectsV2(listRequest);
+                ListObjectsV2Response response = S3Backend.await(backend.listObjectsV2(listRequest));
                 boolean hasContents = response.hasContents();
-                System.out.println("Prefix check result: " + (hasContents ? "directory exists" : "directory does not exist"));
+                S3Trace.event("Prefix check result: {}", hasContents ? "directory exists" : "directory does not exist");
                 return hasContents;
             }
         } catch (S3Exception e) {
-            System.out.println("S3 error while checking directory existence: " + e.getMessage());
+            S3Trace.event("S3 error while checking directory existence: {}", e.getMessage());
             return false;
         }
     }
@@ -395,27 +634,15 @@ public class S3FileSystemProvider extends FileSystemProvider {
     @Override
     public void delete(Path path) throws IOException {
         try {
-            String key = path.toString();
-            if (key.startsWith("/")) {
-                key = key.substring(1);
-            }
+            String key = keyOf(path);
 
             // Check if it's a directory
             if (exists(path) && isDirectory(path)) {
-                // List and delete all objects under this prefix
-                ListObjectsV2Request listRequest = ListObjectsV2Request.builder()
-                        .bucket(bucketName)
-                        .prefix(key.endsWith("/") ? key : key + "/")
-                        .build();
-
-                ListObjectsV2Response listResponse = s3Client.listObjectsV2(listRequest);
-                for (S3Object s3Object : listResponse.contents()) {
-                    DeleteObjectRequest deleteRequest = DeleteObjectRequest.builder()
-                            .bucket(bucketName)
-                            .key(s3Object.key())
-                            .build();
-                    s3Client.deleteObject(deleteRequest);
-                }
+                // Delete every object under this prefix, across all listing pages
+                String prefix = key.endsWith("/") ? key : key + "/";
+                S3BatchDelete batchDelete = new S3BatchDelete(backend, bucketName);
+                batchDelete.deletePrefix(prefix);
+                batchDelete.awaitOrThrow(prefix);
             }
 
             // Delete the object/directory marker
@@ -423,37 +650,100 @@ public class S3FileSystemProvider extends FileSystemProvider {
                     .bucket(bucketName)
                     .key(key)
                     .build();
-            s3Client.deleteObject(deleteRequest);
+            S3Backend.await(backend.deleteObject(deleteRequest));
+            S3UploadJournal.discard(backend, bucketName, key);
         } catch (S3Exception e) {
             throw new IOException("Failed to delete: " + path, e);
+        } finally {
+            metadataCache.invalidateTree(keyOf(path));
         }
     }
 
     @Override
     public void copy(Path source, Path target, CopyOption... options) throws IOException {
-        try {
-            String sourceKey = source.toString();
-            String targetKey = target.toString();
-            if (sourceKey.startsWith("/")) sourceKey = sourceKey.substring(1);
-            if (targetKey.startsWith("/")) targetKey = targetKey.substring(1);
-
-            CopyObjectRequest request = CopyObjectRequest.builder()
-                    .sourceBucket(bucketName)
-                    .sourceKey(sourceKey)
-                    .destinationBucket(bucketName)
-                    .destinationKey(targetKey)
-                    .build();
+        String sourceKey = keyOf(source);
+        String targetKey = keyOf(target);
 
-            s3Client.copyObject(request);
+        try {
+            S3CopyEngine copyEngine = new S3CopyEngine(backend, bucketName);
+            if (isDirectory(source)) {
+                // Directories are prefixes, so copying one copies everything below it
+                copyEngine.copyTree(directoryPrefix(sourceKey), directoryPrefix(targetKey), false);
+            } else {
+                copyEngine.copyObject(sourceKey, targetKey);
+            }
         } catch (S3Exception e) {
             throw new IOException("Failed to copy from " + source + " to " + target, e);
+        } finally {
+            metadataCache.invalidateTree(targetKey);
         }
     }
 
     @Override
     public void move(Path source, Path target, CopyOption... options) throws IOException {
-        copy(source, target, options);
-        delete(source);
+        String sourceKey = keyOf(source);
+        String targetKey = keyOf(target);
+
+        boolean directory;
+        try {
+            directory = isDirectory(source);
+        } catch (S3Exception e) {
+            throw new IOException("Failed to move from " + source + " to " + target, e);
+        }
+        if (!directory) {
+            copy(source, target, options);
+            delete(source);
+            return;
+        }
+
+        try {
+            // Copy every child and delete each source in batches as its copy lands
+            new S3CopyEngine(backend, bucketName).copyTree(directoryPrefix(sourceKey), directoryPrefix(targetKey), true);
+        } finally {
+            metadataCache.invalidateTree(sourceKey);
+            metadataCache.invalidateTree(targetKey);
+        }
+    }
+
+    /**
+     * The S3 key for a path, without leading or trailing slash. Relative paths are
+     * resolved against their file system's default directory first.
+     */
+    private static String keyOf(Path path) {
+        if (path instanceof S3Path) {
+            return ((S3Path) path.toAbsolutePath()).getKey();
+        }
+        String key = path.toString();
+        int start = 0;
+        int end = key.length();
+        while (start < end && key.charAt(start) == '/') {
+            start++;
+        }
+        while (end > start && key.charAt(end - 1) == '/') {
+            end--;
+        }
+        return key.substring(start, end);
+    }
+
+    /**
+     * The SSH user a path is accessed by, or null outside a session.
+     */
+    private static String ownerOf(Path path) {
+        return path.getFileSystem() instanceof S3FileSystem ? ((S3FileSystem) path.getFileSystem()).getUser() : null;
+    }
+
+    /**
+     * The upload of {@code key} that the user accessing {@code path} left suspended, or
+     * null. That user sees the key at the upload's durable size, so that a client resuming
+     * by size, as {@code reput -a} does, continues exactly where the upload can.
+     */
+    private S3UploadJournal suspendedUpload(Path path, String key) {
+        String owner = ownerOf(path);
+        return owner == null ? null : S3UploadJournal.suspended(bucketName, key, owner);
+    }
+
+    private static String directoryPrefix(String key) {
+        return key.isEmpty() || key.endsWith("/") ? key : key + "/";
     }
 
     @Override
@@ -473,15 +763,24 @@ public class S3FileSystemProvider extends FileSystemProvider {
 
     @Override
     public void checkAccess(Path path, AccessMode... modes) throws IOException {
-        String key = path.toString();
-        if (key.startsWith("/")) {
-            key = key.substring(1);
+        String key = keyOf(path);
+
+        S3Trace.event("=== CheckAccess Debug ===");
+        S3Trace.event("Original path: {}", path);
+        S3Trace.event("Normalized key: {}", key);
+        S3Trace.event("Bucket: {}", bucketName);
+
+        if (suspendedUpload(path, key) != null) {
+            return;
         }
 
-        System.out.println("\n=== CheckAccess Debug ===");
-        System.out.println("Original path: " + path);
-        System.out.println("Normalized key: " + key);
-        System.out.println("Bucket: " + bucketName);
+        S3MetadataCache.Entry cached = metadataCache.get(key);
+        if (cached != null) {
+            if (cached.kind == S3MetadataCache.Kind.MISSING) {
+                throw new NoSuchFileException(path.toString());
+            }
+            return;
+        }
 
         try {
             // First check if it's a directory marker
@@ -493,13 +792,14 @@ public class S3FileSystemProvider extends FileSystemProvider {
                         .maxKeys(1)
                         .build();
 
-                ListObjectsV2Response response = s3Client.listObjectsV2(listRequest);
-                System.out.println("Directory check - Has contents: " + response.hasContents());
+                ListObjectsV2Response response = S3Backend.await(backend.listObjectsV2(listRequest));
+                S3Trace.event("Directory check - Has contents: {}", response.hasContents());
                 if (response.hasContents()) {
+                    metadataCache.putDirectory(key);
                     return; // Directory exists
                 }
             } catch (Exception e) {
-                System.out.println("Directory check failed: " + e.getMessage());
+                S3Trace.event("Directory check failed: {}", e.getMessage());
             }
 
             // Then check as a file
@@ -508,16 +808,18 @@ public class S3FileSystemProvider extends FileSystemProvider {
                         .bucket(bucketName)
                         .key(key)
                         .build();
-                s3Client.headObject(request);
-                System.out.println("File exists: " + key);
+                HeadObjectResponse response = S3Backend.await(backend.headObject(request));
+                metadataCache.putFile(key, response.contentLength(), response.lastModified());
+                S3Trace.event("File exists: {}", key);
                 return;
             } catch (NoSuchKeyException e) {
-                System.out.println("File does not exist: " + key);
+                S3Trace.event("File does not exist: {}", key);
+                metadataCache.putMissing(key);
                 // Only throw if both file and directory checks failed
                 throw new NoSuchFileException(path.toString());
             }
         } catch (S3Exception e) {
-            System.err.println("S3 error: " + e.getMessage());
+            S3Trace.warn("S3 error: {}", e.getMessage());
             throw new IOException("Failed to check access: " + path, e);
         }
     }
@@ -530,25 +832,35 @@ public class S3FileSystemProvider extends FileSystemProvider {
 
 
     @Override
+    @SuppressWarnings("unchecked")
     public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type, LinkOption... options)
             throws IOException {
         if (type != BasicFileAttributes.class && type != PosixFileAttributes.class) {
             throw new UnsupportedOperationException("Only BasicFileAttributes and PosixFileAttributes are supported");
         }
 
-        String key = path.toString();
-        System.out.println("\n=== Reading Attributes ===");
-        System.out.println("Path: " + path);
-        System.out.println("Original key: " + key);
+        // Paths handed out by a directory listing already know their attributes
+        if (path instanceof S3Path && ((S3Path) path).getListingAttributes() != null) {
+            return (A) ((S3Path) path).getListingAttributes();
+        }
+
+        // Relative paths resolve against the working directory of the session's file system
+        String key = keyOf(path);
+        S3Trace.event("=== Reading Attributes ===");
+        S3Trace.event("Path: {}", path);
+        S3Trace.event("Key: {}", key);
 
-        // Handle relative paths by prepending current directory
-        if (!key.startsWith("/")) {
-            String currentDir = "home/admin/";  // You might want to make this configurable
-            key = currentDir + key;
-            System.out.println("Adjusted key for relative path: " + key);
-        } else if (key.startsWith("/")) {
-            key = key.substring(1);
-            System.out.println("Removed leading slash: " + key);
+        S3UploadJournal suspended = suspendedUpload(path, key);
+        if (suspended != null) {
+            return (A) suspended.attributes();
+        }
+
+        S3MetadataCache.Entry cached = metadataCache.get(key);
+        if (cached != null) {
+            if (cached.kind == S3MetadataCache.Kind.MISSING) {
+                throw new NoSuchFileException(path.toString());
+            }
+            return (A) cached.toAttributes(key);
         }
 
         try {
@@ -561,14 +873,14 @@ public class S3FileSystemProvider extends FileSystemProvider {
                         .bucket(bucketName)
                         .key(key)
                         .build();
-                System.out.println("Checking file at key: " + key);
-                response = s3Client.headObject(request);
-                System.out.println("Found file object");
+                S3Trace.event("Checking file at key: {}", key);
+                response = S3Backend.await(backend.headObject(request));
+                S3Trace.event("Found file object");
 
             } catch (NoSuchKeyException e) {
                 // If not found as file, try as directory
                 String dirKey = key.endsWith("/") ? key : key + "/";
-                System.out.println("File not found, checking directory at: " + dirKey);
+                S3Trace.event("File not found, checking directory at: {}", dirKey);
 
                 try {
                     ListObjectsV2Request listRequest = ListObjectsV2Request.builder()
@@ -577,25 +889,31 @@ public class S3FileSystemProvider extends FileSystemProvider {
                             .maxKeys(1)
                             .build();
 
-                    ListObjectsV2Response listing = s3Client.listObjectsV2(listRequest);
+                    ListObjectsV2Response listing = S3Backend.await(backend.listObjectsV2(listRequest));
                     if (listing.hasContents()) {
                         isDirectory = true;
-                        System.out.println("Found as directory");
+                        S3Trace.event("Found as directory");
                     } else {
-                        System.out.println("Not found as directory either");
+                        S3Trace.event("Not found as directory either");
+                        metadataCache.putMissing(key);
                         throw new NoSuchFileException(path.toString());
                     }
                 } catch (S3Exception s3e) {
-                    System.out.println("S3 error checking directory: " + s3e.getMessage());
+                    S3Trace.event("S3 error checking directory: {}", s3e.getMessage());
                     throw new NoSuchFileException(path.toString());
                 }
             }
 
-            System.out.println("Creating attributes - isDirectory: " + isDirectory);
+            S3Trace.event("Creating attributes - isDirectory: {}", isDirectory);
+            if (isDirectory) {
+                metadataCache.putDirectory(key);
+            } else {
+                metadataCache.putFile(key, response.contentLength(), response.lastModified());
+            }
             return (A) new S3FileAttributes(response, key, isDirectory);
 
         } catch (S3Exception e) {
-            System.out.println("S3 error: " + e.getMessage());
+            S3Trace.event("S3 error: {}", e.getMessage());
             throw new IOException("Failed to read attributes: " + path, e);
         }
     }
@@ -603,9 +921,9 @@ public class S3FileSystemProvider extends FileSystemProvider {
     @Override
     public Map<String, Object> readAttributes(Path path, String attributes, LinkOption... options)
             throws IOException {
-        System.out.println("\n=== Reading Attributes Map ===");
-        System.out.println("Path: " + path);
-        System.out.println("Requested attributes: " + attributes);
+        S3Trace.event("=== Reading Attributes Map ===");
+        S3Trace.event("Path: {}", path);
+        S3Trace.event("Requested attributes: {}", attributes);
 
         BasicFileAttributes attr = readAttributes(path, BasicFileAttributes.class, options);
         Map<String, Object> map = new HashMap<>();
@@ -626,7 +944,7 @@ public class S3FileSystemProvider extends FileSystemProvider {
         map.put("owner", "admin");
         map.put("group", "admin");
 
-        System.out.println("Returning attributes map: " + map);
+        S3Trace.event("Returning attributes map: {}", map);
         return map;
     }
 
@@ -670,37 +988,38 @@ public class S3FileSystemProvider extends FileSystemProvider {
     }
 
     private boolean isDirectory(Path path) {
-        String key = path.toString();
-        if (key.startsWith("/")) {
-            key = key.substring(1);
-        }
+        String key = keyOf(path);
 
-        if (!key.endsWith("/")) {
-            key += "/";
+        S3MetadataCache.Entry cached = metadataCache.get(key);
+        if (cached != null) {
+            return cached.kind == S3MetadataCache.Kind.DIRECTORY;
         }
 
+        String prefix = key.endsWith("/") ? key : key + "/";
         ListObjectsV2Request request = ListObjectsV2Request.builder()
                 .bucket(bucketName)
-                .prefix(key)
+                .prefix(prefix)
                 .maxKeys(1)
                 .build();
 
-        ListObjectsV2Response response = s3Client.listObjectsV2(request);
-        return response.hasContents();
-    }
-
-    private String normalizeKey(String key) {
-        // Remove leading slash
-        if (key.startsWith("/")) {
-            key = key.substring(1);
+        ListObjectsV2Response response = S3Backend.await(backend.listObjectsV2(request));
+        if (response.hasContents()) {
+            metadataCache.putDirectory(key);
+            return true;
         }
 
-        // Ensure trailing slash for directories
-        if (!key.isEmpty() && !key.endsWith("/")) {
-            key += "/";
+        // Not a directory; record whether it is a file or nothing at all, so that the
+        // stat that usually follows is answered from the cache
+        try {
+            HeadObjectResponse head = S3Backend.await(backend.headObject(HeadObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(key)
+                    .build()));
+            metadataCache.putFile(key, head.contentLength(), head.lastModified());
+        } catch (NoSuchKeyException e) {
+            metadataCache.putMissing(key);
         }
-
-        return key;
+        return false;
     }
 
     private boolean isDirectory(String key) {
@@ -716,7 +1035,7 @@ public class S3FileSystemProvider extends FileSystemProvider {
                         .bucket(bucketName)
                         .key(key)
                         .build();
-                s3Client.headObject(request);
+                S3Backend.await(backend.headObject(request));
                 return true;
             } catch (NoSuchKeyException e) {
                 // If directory marker doesn't exist, check if there are any objects with this prefix
@@ -726,7 +1045,7 @@ public class S3FileSystemProvider extends FileSystemProvider {
                         .maxKeys(1)
                         .build();
 
-                ListObjectsV2Response response = s3Client.listObjectsV2(listRequest);
+                ListObjectsV2Response response = S3Backend.await(backend.listObjectsV2(listRequest));
                 return response.hasContents();
             }
         } catch (S3Exception e) {
@@ -735,174 +1054,180 @@ public class S3FileSystemProvider extends FileSystemProvider {
     }
 
     public void listS3Contents() {
-        System.out.println("\n=== Listing All S3 Contents ===");
+        S3Trace.event("=== Listing All S3 Contents ===");
         try {
             ListObjectsV2Request request = ListObjectsV2Request.builder()
                     .bucket(bucketName)
                     .build();
 
-            ListObjectsV2Response response = s3Client.listObjectsV2(request);
-            System.out.println("Total objects: " + response.keyCount());
+            ListObjectsV2Response response = S3Backend.await(backend.listObjectsV2(request));
+            S3Trace.event("Total objects: {}", response.keyCount());
 
             if (response.contents() != null) {
                 response.contents().forEach(obj -> {
-                    System.out.println("\nObject:");
-                    System.out.println("Key: " + obj.key());
-                    System.out.println("Size: " + obj.size());
-                    System.out.println("Last Modified: " + obj.lastModified());
-                    System.out.println("Storage Class: " + obj.storageClass());
+                    S3Trace.event("Object:");
+                    S3Trace.event("Key: {}", obj.key());
+                    S3Trace.event("Size: {}", obj.size());
+                    S3Trace.event("Last Modified: {}", obj.lastModified());
+                    S3Trace.event("Storage Class: {}", obj.storageClass());
                 });
             }
         } catch (S3Exception e) {
-            System.err.println("Failed to list bucket contents: " + e.getMessage());
+            S3Trace.warn("Failed to list bucket contents: {}", e.getMessage());
         }
     }
 
 
     @Override
     public DirectoryStream<Path> newDirectoryStream(Path dir, DirectoryStream.Filter<? super Path> filter) throws IOException {
-        String prefix = dir.toString();
-        if (prefix.startsWith("/")) {
-            prefix = prefix.substring(1);
-        }
-        if (!prefix.endsWith("/")) {
-            prefix += "/";
-        }
+        String prefix = directoryPrefix(keyOf(dir));
 
-        System.out.println("\n=== Directory Listing Debug ===");
-        System.out.println("Current directory: " + dir);
-        System.out.println("S3 prefix: " + prefix);
+        S3Trace.event("=== Directory Listing Debug ===");
+        S3Trace.event("Current directory: {}", dir);
+        S3Trace.event("S3 prefix: {}", prefix);
 
         try {
-            List<Path> paths = new ArrayList<>();
-            String continuationToken = null;
+            // Only the first page is fetched up front; the rest is paged in as the client reads
+            S3DirectoryStream stream = new S3DirectoryStream(backend, bucketName, prefix,
+                    (S3FileSystem) dir.getFileSystem(), filter);
+            S3Trace.event("Creating DirectoryStream for prefix: {}", prefix);
+            return stream;
+        } catch (S3Exception e) {
+            S3Trace.warn("S3 error: {}", e.getMessage());
+            throw new IOException("Failed to list directory: " + dir, e);
+        }
+    }
 
-            do {
-                ListObjectsV2Request.Builder requestBuilder = ListObjectsV2Request.builder()
-                        .bucket(bucketName)
-                        .prefix(prefix)
-                        .delimiter("/");
+    /**
+     * Directory stream that pages through {@code ListObjectsV2} on demand. Entries are
+     * filtered one at a time as the iterator reaches them, and with prefetching enabled
+     * the page after the current one is requested in the background, so at most one
+     * page is fetched ahead of the reader.
+     */
+    private static class S3DirectoryStream implements DirectoryStream<Path> {
+        private static final boolean PREFETCH = Boolean.parseBoolean(
+                System.getProperty("s3sftp.listing.prefetch", "true"));
 
-                if (continuationToken != null) {
-                    requestBuilder.continuationToken(continuationToken);
-                }
+        private final S3Backend backend;
+        private final String bucket;
+        private final String prefix;
+        private final S3FileSystem fs;
+        private final DirectoryStream.Filter<? super Path> filter;
+        private ListObjectsV2Response firstPage;
+        private CompletableFuture<ListObjectsV2Response> nextPage;
+        private volatile boolean closed;
+        private boolean iteratorReturned;
 
-                ListObjectsV2Response listing = s3Client.listObjectsV2(requestBuilder.build());
+        public S3DirectoryStream(S3Backend backend, String bucket, String prefix, S3FileSystem fs,
+                                 DirectoryStream.Filter<? super Path> filter) {
+            this.backend = backend;
+            this.bucket = bucket;
+            this.prefix = prefix;
+            this.fs = fs;
+            this.filter = filter;
+            this.closed = false;
+            this.iteratorReturned = false;
+            this.firstPage = fetchPage(null);
+            prefetchAfter(firstPage);
+        }
 
-                // Process files with debug logging
-                if (listing.contents() != null) {
-                    for (S3Object s3Object : listing.contents()) {
-                        String key = s3Object.key();
-                        System.out.println("\nProcessing S3 Object:");
-                        System.out.println("Found object key: " + key);
+        private CompletableFuture<ListObjectsV2Response> requestPage(String continuationToken) {
+            ListObjectsV2Request.Builder requestBuilder = ListObjectsV2Request.builder()
+                    .bucket(bucket)
+                    .prefix(prefix)
+                    .delimiter("/");
 
-                        // Skip directory markers
-                        if (!key.equals(prefix)) {
-                            // Extract relative path
-                            String relativeName = key.substring(prefix.length());
-                            System.out.println("Extracted relative name: " + relativeName);
-
-                            if (!relativeName.isEmpty()) {
-                                S3FileSystem fs = (S3FileSystem) dir.getFileSystem();
-                                Path filePath = fs.getPath(relativeName);
-
-                                // Debug the created path
-                                System.out.println("\nPath Debug Information:");
-                                ((S3Path) filePath).debugPath();
-
-                                try {
-                                    if (filter.accept(filePath)) {
-                                        paths.add(filePath);
-                                        System.out.println("Added to results: " + filePath);
-                                        System.out.println("Path toString(): " + filePath.toString());
-                                        System.out.println("Path class: " + filePath.getClass().getName());
-                                    } else {
-                                        System.out.println("Path filtered out: " + filePath);
-                                    }
-                                } catch (IOException e) {
-                                    System.out.println("Filter error for " + filePath + ": " + e.getMessage());
-                                }
-                            } else {
-                                System.out.println("Skipped empty relative name");
-                            }
-                        } else {
-                            System.out.println("Skipped directory marker: " + key);
-                        }
-                    }
-                }
+            if (continuationToken != null) {
+                requestBuilder.continuationToken(continuationToken);
+            }
+            return backend.listObjectsV2(requestBuilder.build());
+        }
 
-                // Process directories (common prefixes)
-                if (listing.commonPrefixes() != null) {
-                    for (CommonPrefix commonPrefix : listing.commonPrefixes()) {
-                        String prefixKey = commonPrefix.prefix();
-                        System.out.println("\nProcessing Directory:");
-                        System.out.println("Found prefix: " + prefixKey);
+        private ListObjectsV2Response fetchPage(String continuationToken) {
+            return S3Backend.await(requestPage(continuationToken));
+        }
+
+        private void prefetchAfter(ListObjectsV2Response listing) {
+            if (!PREFETCH || closed || !listing.isTruncated()) {
+                return;
+            }
+            nextPage = requestPage(listing.nextContinuationToken());
+        }
+
+        private ListObjectsV2Response nextPageAfter(ListObjectsV2Response listing) throws IOException {
+            CompletableFuture<ListObjectsV2Response> pending = nextPage;
+            nextPage = null;
+            try {
+                ListObjectsV2Response page = pending != null ? pending.join() : fetchPage(listing.nextContinuationToken());
+                prefetchAfter(page);
+                return page;
+            } catch (CompletionException e) {
+                throw new IOException("Failed to list directory page under: " + prefix, e.getCause());
+            } catch (S3Exception e) {
+                throw new IOException("Failed to list directory page under: " + prefix, e);
+            }
+        }
 
-                        // Extract relative directory name
+        private Iterator<Path> entriesOf(ListObjectsV2Response listing) {
+            Iterator<Path> files = listing.contents().stream()
+                    .filter(s3Object -> {
+                        // Skip directory markers
+                        if (s3Object.key().equals(prefix)) {
+                            S3Trace.event("Skipped directory marker: {}", s3Object.key());
+                            return false;
+                        }
+                        return true;
+                    })
+                    .map(s3Object -> {
+                        String key = s3Object.key();
+                        S3Trace.event("Found object key: {}", key);
+                        // Carry the listed metadata so READDIR does not HEAD every entry
+                        S3FileAttributes attributes = new S3FileAttributes(s3Object.size(),
+                                s3Object.lastModified(), key, false, s3Object.eTag());
+                        return (Path) new S3Path(fs, key.substring(prefix.length()), attributes);
+                    })
+                    .iterator();
+            Iterator<Path> directories = listing.commonPrefixes().stream()
+                    .map(CommonPrefix::prefix)
+                    .map(prefixKey -> {
+                        S3Trace.event("Found prefix: {}", prefixKey);
+                        return prefixKey;
+                    })
+                    .filter(prefixKey -> prefixKey.length() > prefix.length() + 1)
+                    .map(prefixKey -> {
                         String relativeName = prefixKey.substring(prefix.length());
                         if (relativeName.endsWith("/")) {
                             relativeName = relativeName.substring(0, relativeName.length() - 1);
                         }
-                        System.out.println("Extracted relative name: " + relativeName);
-
-                        if (!relativeName.isEmpty()) {
-                            S3FileSystem fs = (S3FileSystem) dir.getFileSystem();
-                            Path dirPath = fs.getPath(relativeName);
+                        return (Path) new S3Path(fs, relativeName,
+                                new S3FileAttributes(0L, null, prefixKey, true));
+                    })
+                    .iterator();
 
-                            // Debug the created directory path
-                            System.out.println("\nDirectory Path Debug Information:");
-                            ((S3Path) dirPath).debugPath();
-
-                            try {
-                                if (filter.accept(dirPath)) {
-                                    paths.add(dirPath);
-                                    System.out.println("Added to results: " + dirPath);
-                                    System.out.println("Path toString(): " + dirPath.toString());
-                                    System.out.println("Path class: " + dirPath.getClass().getName());
-                                } else {
-                                    System.out.println("Directory path filtered out: " + dirPath);
-                                }
-                            } catch (IOException e) {
-                                System.out.println("Filter error for directory " + dirPath + ": " + e.getMessage());
-                            }
-                        }
-                    }
+            return new Iterator<Path>() {
+                @Override
+                public boolean hasNext() {
+                    return files.hasNext() || directories.hasNext();
                 }
 
-                continuationToken = listing.isTruncated() ? listing.nextContinuationToken() : null;
-
-            } while (continuationToken != null);
-
-            System.out.println("\n=== Final Results ===");
-            System.out.println("Total paths found: " + paths.size());
-            paths.forEach(p -> {
-                System.out.println("- Path: " + p);
-                System.out.println("  Class: " + p.getClass().getName());
-                System.out.println("  ToString: " + p.toString());
-                if (p instanceof S3Path) {
-                    System.out.println("  Internal path: " + ((S3Path)p).getPathAsString());
+                @Override
+                public Path next() {
+                    return files.hasNext() ? files.next() : directories.next();
                 }
-            });
-
-            System.out.println("\nCreating DirectoryStream with paths:");
-            paths.forEach(p -> System.out.println("Path to be included: " + p + ", Class: " + p.getClass().getName()));
-            return new S3DirectoryStream(paths);
-
-        } catch (S3Exception e) {
-            System.err.println("S3 error: " + e.getMessage());
-            throw new IOException("Failed to list directory: " + dir, e);
+            };
         }
-    }
 
-    private static class S3DirectoryStream implements DirectoryStream<Path> {
-        private final List<Path> paths;
-        private boolean closed;
-        private boolean iteratorReturned;
-
-        public S3DirectoryStream(List<Path> paths) {
-            this.paths = Collections.unmodifiableList(new ArrayList<>(paths));
-            this.closed = false;
-            this.iteratorReturned = false;
+        private boolean accept(Path path) {
+            try {
+                if (filter.accept(path)) {
+                    S3Trace.event("Added to results: {}", path);
+                    return true;
+                }
+                S3Trace.event("Path filtered out: {}", path);
+            } catch (IOException e) {
+                S3Trace.event("Filter error for {}: {}", path, e.getMessage());
+            }
+            return false;
         }
 
         @Override
@@ -915,26 +1240,48 @@ public class S3FileSystemProvider extends FileSystemProvider {
             }
 
             iteratorReturned = true;
+            ListObjectsV2Response first = firstPage;
+            firstPage = null;
 
             return new Iterator<Path>() {
-                private final Iterator<Path> it = paths.iterator();
+                private ListObjectsV2Response listing = first;
+                private Iterator<Path> it = entriesOf(first);
+                private Path nextPath;
 
                 @Override
                 public boolean hasNext() {
                     if (closed) {
                         throw new IllegalStateException("Directory stream is closed");
                     }
-                    return it.hasNext();
+                    while (nextPath == null) {
+                        if (it.hasNext()) {
+                            Path candidate = it.next();
+                            if (accept(candidate)) {
+                                nextPath = candidate;
+                            }
+                        } else if (listing.isTruncated()) {
+                            try {
+                                listing = nextPageAfter(listing);
+                            } catch (IOException e) {
+                                throw new DirectoryIteratorException(e);
+                            }
+                            it = entriesOf(listing);
+                        } else {
+                            return false;
+                        }
+                    }
+                    return true;
                 }
 
                 @Override
                 public Path next() {
-                    if (closed) {
-                        throw new IllegalStateException("Directory stream is closed");
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
                     }
-                    Path nextPath = it.next();
-                    System.out.println("Returning next path from iterator: " + nextPath);
-                    return nextPath;
+                    Path result = nextPath;
+                    nextPath = null;
+                    S3Trace.event("Returning next path from iterator: {}", result);
+                    return result;
                 }
             };
         }
@@ -942,6 +1289,11 @@ public class S3FileSystemProvider extends FileSystemProvider {
         @Override
         public void close() {
             closed = true;
+            CompletableFuture<ListObjectsV2Response> pending = nextPage;
+            if (pending != null) {
+                pending.cancel(false);
+            }
+            nextPage = null;
         }
     }
 }
@@ -0,0 +1,242 @@
+package com.example.sftp;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Short-lived cache of object metadata keyed by S3 key, including negative results.
+ * Entries expire after a configurable TTL and the cache is bounded by an estimate of
+ * its heap footprint; when over budget, the entries closest to expiry go first.
+ * Writers invalidate the keys they touch together with their ancestors, whose implicit
+ * directory state may have changed.
+ * <p>
+ * The {@code metadata_cache_*} gauges sum over every cache that was {@link #monitor
+ * monitored} and is still reachable.
+ */
+final class S3MetadataCache {
+    enum Kind { FILE, DIRECTORY, MISSING }
+
+    private static final int ENTRY_OVERHEAD = 96;
+    // Weakly held, so the gauges never keep a discarded cache alive
+    private static final Set<S3MetadataCache> MONITORED =
+            Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+    static {
+        S3Metrics.gauge("metadata_cache_hits", () -> total(S3MetadataCache::hitCount));
+        S3Metrics.gauge("metadata_cache_misses", () -> total(S3MetadataCache::missCount));
+        S3Metrics.gauge("metadata_cache_evictions", () -> total(S3MetadataCache::evictionCount));
+        S3Metrics.gauge("metadata_cache_entries", () -> total(S3MetadataCache::size));
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong weight = new AtomicLong();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final long maxBytes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    S3MetadataCache() {
+        this(Long.getLong("s3sftp.metadata.ttlMillis", 5000),
+                Long.getLong("s3sftp.metadata.negativeTtlMillis", 1000),
+                Long.getLong("s3sftp.metadata.maxBytes", 32L * 1024 * 1024));
+    }
+
+    S3MetadataCache(long ttlMillis, long negativeTtlMillis, long maxBytes) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtlMillis);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Includes this cache in the {@code metadata_cache_*} gauges.
+     */
+    void monitor() {
+        MONITORED.add(this);
+    }
+
+    private static long total(ToLongFunction<S3MetadataCache> metric) {
+        synchronized (MONITORED) {
+            long total = 0;
+            for (S3MetadataCache cache : MONITORED) {
+                total += metric.applyAsLong(cache);
+            }
+            return total;
+        }
+    }
+
+    static final class Entry {
+        final Kind kind;
+        final long size;
+        final long lastModified;
+        final long expiresAt;
+        final int weight;
+
+        private Entry(Kind kind, long size, long lastModified, long expiresAt, int weight) {
+            this.kind = kind;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.expiresAt = expiresAt;
+            this.weight = weight;
+        }
+
+        S3FileAttributes toAttributes(String key) {
+            Instant modified = lastModified != Long.MIN_VALUE ? Instant.ofEpochMilli(lastModified) : null;
+            return new S3FileAttributes(size, modified, key, kind == Kind.DIRECTORY);
+        }
+    }
+
+    /**
+     * Returns the live entry for the key, or null on a miss.
+     */
+    Entry get(String key) {
+        String normalized = normalize(key);
+        Entry entry = entries.get(normalized);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (entry.expiresAt - System.nanoTime() <= 0) {
+            remove(normalized, entry);
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry;
+    }
+
+    void putFile(String key, long size, Instant lastModified) {
+        put(key, Kind.FILE, size, lastModified != null ? lastModified.toEpochMilli() : Long.MIN_VALUE, ttlNanos);
+    }
+
+    void putDirectory(String key) {
+        put(key, Kind.DIRECTORY, 0L, Long.MIN_VALUE, ttlNanos);
+    }
+
+    void putMissing(String key) {
+        put(key, Kind.MISSING, 0L, Long.MIN_VALUE, negativeTtlNanos);
+    }
+
+    /**
+     * Drops the key and all of its ancestors.
+     */
+    void invalidate(String key) {
+        String normalized = normalize(key);
+        removeKey(normalized);
+        for (int slash = normalized.lastIndexOf('/'); slash > 0; slash = normalized.lastIndexOf('/', slash - 1)) {
+            removeKey(normalized.substring(0, slash));
+        }
+        removeKey("");
+    }
+
+    /**
+     * Drops the key, its ancestors and everything below it.
+     */
+    void invalidateTree(String key) {
+        String normalized = normalize(key);
+        invalidate(normalized);
+        String prefix = normalized.isEmpty() ? "" : normalized + "/";
+        entries.forEach((cached, entry) -> {
+            if (cached.startsWith(prefix)) {
+                remove(cached, entry);
+            }
+        });
+    }
+
+    long hitCount() {
+        return hits.sum();
+    }
+
+    long missCount() {
+        return misses.sum();
+    }
+
+    long evictionCount() {
+        return evictions.sum();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long estimatedBytes() {
+        return weight.get();
+    }
+
+    private void put(String key, Kind kind, long size, long lastModified, long ttl) {
+        if (ttl <= 0) {
+            return;
+        }
+        String normalized = normalize(key);
+        Entry entry = new Entry(kind, size, lastModified, System.nanoTime() + ttl,
+                ENTRY_OVERHEAD + 2 * normalized.length());
+        Entry previous = entries.put(normalized, entry);
+        weight.addAndGet(entry.weight - (previous != null ? previous.weight : 0));
+        if (weight.get() > maxBytes) {
+            evict();
+        }
+    }
+
+    private void removeKey(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            weight.addAndGet(-entry.weight);
+        }
+    }
+
+    private void remove(String key, Entry entry) {
+        if (entries.remove(key, entry)) {
+            weight.addAndGet(-entry.weight);
+        }
+    }
+
+    /**
+     * Removes entries in order of expiry until the cache is back under 90% of its budget.
+     * Entries are swept in expiry bands rather than sorted, so each pass is one scan.
+     */
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long target = maxBytes - maxBytes / 10;
+            long band = Math.max(1, Math.max(ttlNanos, negativeTtlNanos) / 4);
+            long cutoff = System.nanoTime();
+            while (weight.get() > target && !entries.isEmpty()) {
+                long limit = cutoff;
+                entries.forEach((key, entry) -> {
+                    if (entry.expiresAt - limit <= 0 && entries.remove(key, entry)) {
+                        weight.addAndGet(-entry.weight);
+                        evictions.increment();
+                    }
+                });
+                cutoff += band;
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    private static String normalize(String key) {
+        int start = 0;
+        int end = key.length();
+        while (start < end && key.charAt(start) == '/') {
+            start++;
+        }
+        while (end > start && key.charAt(end - 1) == '/') {
+            end--;
+        }
+        return key.substring(start, end);
+    }
+}
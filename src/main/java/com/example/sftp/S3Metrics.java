@@ -0,0 +1,399 @@
+package com.example.sftp;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.*;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide metrics: latency histograms per SFTP operation and per S3 API call,
+ * counters for requests, errors and bytes moved, and gauges over the buffer pool and
+ * metadata cache. Counters and histogram buckets are {@link LongAdder}s, so recording
+ * is lock-free and striped across contending threads.
+ *
+ * <p>{@link #expose()} registers the registry as the JMX bean
+ * {@code com.example.sftp:type=S3Metrics} and, when {@code s3sftp.metrics.httpPort}
+ * is set, serves the same values in Prometheus text format at {@code /metrics}.
+ */
+public final class S3Metrics {
+    private static final String PREFIX = "s3sftp_";
+    private static final int HTTP_PORT = Integer.getInteger("s3sftp.metrics.httpPort", -1);
+    private static final String HTTP_HOST = System.getProperty("s3sftp.metrics.httpHost", "127.0.0.1");
+
+    // Families keyed by metric name, members keyed by label value
+    private static final Map<String, Map<String, Histogram>> HISTOGRAMS = new ConcurrentSkipListMap<>();
+    private static final Map<String, Map<String, LongAdder>> COUNTERS = new ConcurrentSkipListMap<>();
+    private static final Map<String, LongSupplier> GAUGES = new ConcurrentSkipListMap<>();
+    private static final Map<String, String> LABELS = new ConcurrentSkipListMap<>();
+    private static final ThreadLocal<String> SFTP_OPERATION = new ThreadLocal<>();
+    private static final Object EXPOSE_LOCK = new Object();
+    private static boolean exposed;
+    private static HttpServer httpServer;
+
+    static {
+        gauge("buffer_pool_allocations", S3BufferPool::allocationCount);
+        gauge("buffer_pool_leaks", S3BufferPool::leakCount);
+    }
+
+    private S3Metrics() {
+    }
+
+    /**
+     * Latency of one SFTP request type, such as {@code READ} or {@code OPEN}.
+     */
+    static Histogram sftpLatency(String operation) {
+        return histogram("sftp_seconds", "op", operation);
+    }
+
+    /**
+     * Latency of one S3 API call, such as {@code GetObject}.
+     */
+    static Histogram s3Latency(String api) {
+        return histogram("s3_seconds", "api", api);
+    }
+
+    static Histogram histogram(String name, String label, String value) {
+        LABELS.putIfAbsent(name, label);
+        return HISTOGRAMS.computeIfAbsent(name, ignored -> new ConcurrentSkipListMap<>())
+                .computeIfAbsent(value, ignored -> new Histogram());
+    }
+
+    static LongAdder counter(String name, String label, String value) {
+        LABELS.putIfAbsent(name, label);
+        return COUNTERS.computeIfAbsent(name, ignored -> new ConcurrentSkipListMap<>())
+                .computeIfAbsent(value, ignored -> new LongAdder());
+    }
+
+    static void gauge(String name, LongSupplier value) {
+        GAUGES.put(name, value);
+    }
+
+    /**
+     * Marks the SFTP request the current thread is serving, so S3 calls made while
+     * serving it are attributed to it.
+     */
+    static void enterSftpOperation(String operation) {
+        SFTP_OPERATION.set(operation);
+    }
+
+    /**
+     * The SFTP request the current thread is serving, or {@code background} for work
+     * on transfer pools.
+     */
+    static String currentSftpOperation() {
+        String operation = SFTP_OPERATION.get();
+        return operation != null ? operation : "background";
+    }
+
+    /**
+     * Registers the JMX bean and starts the HTTP endpoint if configured. Safe to call
+     * more than once.
+     */
+    public static void expose() {
+        synchronized (EXPOSE_LOCK) {
+            if (exposed) {
+                return;
+            }
+            exposed = true;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsBean(),
+                    new ObjectName("com.example.sftp:type=S3Metrics"));
+        } catch (JMException e) {
+            S3Trace.warn("Failed to register metrics MBean: {}", e.getMessage());
+        }
+        if (HTTP_PORT >= 0) {
+            startHttpEndpoint();
+        }
+    }
+
+    /**
+     * Stops the HTTP endpoint, whose dispatcher thread would otherwise keep the JVM
+     * alive. The JMX bean stays registered.
+     */
+    public static void shutdown() {
+        synchronized (EXPOSE_LOCK) {
+            if (httpServer != null) {
+                httpServer.stop(0);
+                httpServer = null;
+            }
+        }
+    }
+
+    /**
+     * Renders every metric in Prometheus text exposition format.
+     */
+    public static String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        HISTOGRAMS.forEach((name, members) -> {
+            String metric = PREFIX + name;
+            String label = LABELS.get(name);
+            out.append("# TYPE ").append(metric).append(" summary\n");
+            members.forEach((value, histogram) -> {
+                Histogram.Snapshot snapshot = histogram.snapshot();
+                for (double quantile : new double[] {0.5, 0.9, 0.99, 0.999}) {
+                    out.append(metric).append('{').append(label).append("=\"").append(value)
+                            .append("\",quantile=\"").append(quantile).append("\"} ")
+                            .append(seconds(snapshot.percentile(quantile))).append('\n');
+                }
+                out.append(metric).append("_count{").append(label).append("=\"").append(value).append("\"} ")
+                        .append(snapshot.count).append('\n');
+                out.append(metric).append("_sum{").append(label).append("=\"").append(value).append("\"} ")
+                        .append(seconds(snapshot.sum)).append('\n');
+            });
+        });
+        COUNTERS.forEach((name, members) -> {
+            String metric = PREFIX + name;
+            String label = LABELS.get(name);
+            out.append("# TYPE ").append(metric).append(" counter\n");
+            members.forEach((value, counter) -> out.append(metric).append('{').append(label).append("=\"")
+                    .append(value).append("\"} ").append(counter.sum()).append('\n'));
+        });
+        GAUGES.forEach((name, gauge) -> out.append("# TYPE ").append(PREFIX).append(name).append(" gauge\n")
+                .append(PREFIX).append(name).append(' ').append(gauge.getAsLong()).append('\n'));
+        return out.toString();
+    }
+
+    static void reset() {
+        HISTOGRAMS.values().forEach(members -> members.values().forEach(Histogram::reset));
+        COUNTERS.values().forEach(members -> members.values().forEach(LongAdder::reset));
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+
+    private static void startHttpEndpoint() {
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(HTTP_HOST, HTTP_PORT), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            // Scrapes are rare; the default executor runs them on the dispatcher thread
+            server.start();
+            synchronized (EXPOSE_LOCK) {
+                httpServer = server;
+            }
+            // Always shown: with port 0 this is the only way to learn where it listens
+            S3Trace.warn("Metrics endpoint listening on http://{}:{}/metrics", HTTP_HOST,
+                    server.getAddress().getPort());
+        } catch (IOException e) {
+            S3Trace.warn("Failed to start metrics endpoint: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Log-linear latency histogram over nanoseconds: each power of two is split into
+     * four sub-buckets, so any recorded value is reported within 25% of its true value.
+     */
+    static final class Histogram {
+        private static final int SUB_BITS = 2;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        Histogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            long value = Math.max(0, nanos);
+            buckets[indexOf(value)].increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        /**
+         * Records the time since {@code startNanos}, a {@link System#nanoTime()} reading.
+         */
+        void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        Snapshot snapshot() {
+            long[] counts = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+                count += counts[i];
+            }
+            return new Snapshot(counts, count, sum.sum(), max.get());
+        }
+
+        void reset() {
+            for (LongAdder bucket : buckets) {
+                bucket.reset();
+            }
+            sum.reset();
+            max.reset();
+        }
+
+        static int indexOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) ((value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        static long lowerBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+            long sub = index % SUB_BUCKETS;
+            return (1L << exponent) | (sub << (exponent - SUB_BITS));
+        }
+
+        static final class Snapshot {
+            final long[] counts;
+            final long count;
+            final long sum;
+            final long max;
+
+            Snapshot(long[] counts, long count, long sum, long max) {
+                this.counts = counts;
+                this.count = count;
+                this.sum = sum;
+                this.max = max;
+            }
+
+            /**
+             * Upper bound of the bucket holding the given quantile, capped at the maximum.
+             */
+            long percentile(double quantile) {
+                if (count == 0) {
+                    return 0;
+                }
+                long rank = Math.max(1, (long) Math.ceil(quantile * count));
+                long seen = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    seen += counts[i];
+                    if (seen >= rank) {
+                        long upper = i + 1 < counts.length ? lowerBound(i + 1) - 1 : Long.MAX_VALUE;
+                        return Math.min(upper, max);
+                    }
+                }
+                return max;
+            }
+
+            long mean() {
+                return count > 0 ? sum / count : 0;
+            }
+        }
+    }
+
+    /**
+     * Flattens the registry into read-only attributes such as
+     * {@code s3_seconds.GetObject.p99Micros} and {@code sftp_bytes.read}.
+     */
+    private static final class MetricsBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object value = attributes().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            Map<String, Object> values = attributes();
+            AttributeList list = new AttributeList();
+            for (String name : names) {
+                if (values.containsKey(name)) {
+                    list.add(new Attribute(name, values.get(name)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            switch (actionName) {
+                case "reset":
+                    reset();
+                    return null;
+                case "scrape":
+                    return scrape();
+                case "dumpTrace":
+                    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                    S3Trace.dump(new PrintStream(buffer, true, StandardCharsets.UTF_8));
+                    return buffer.toString(StandardCharsets.UTF_8);
+                default:
+                    throw new ReflectionException(new NoSuchMethodException(actionName));
+            }
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            attributes().forEach((name, value) -> attributes.add(new MBeanAttributeInfo(name, "long", name,
+                    true, false, false)));
+            MBeanOperationInfo[] operations = {
+                    new MBeanOperationInfo("reset", "Clears all counters and histograms",
+                            new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION),
+                    new MBeanOperationInfo("scrape", "Renders all metrics as Prometheus text",
+                            new MBeanParameterInfo[0], "java.lang.String", MBeanOperationInfo.INFO),
+                    new MBeanOperationInfo("dumpTrace", "Formats the trace rings, if tracing is enabled",
+                            new MBeanParameterInfo[0], "java.lang.String", MBeanOperationInfo.INFO)
+            };
+            return new MBeanInfo(S3Metrics.class.getName(), "S3 SFTP server metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, operations, null);
+        }
+
+        private static Map<String, Object> attributes() {
+            Map<String, Object> values = new ConcurrentSkipListMap<>();
+            HISTOGRAMS.forEach((name, members) -> members.forEach((value, histogram) -> {
+                Histogram.Snapshot snapshot = histogram.snapshot();
+                String base = name + "." + value + ".";
+                values.put(base + "count", snapshot.count);
+                values.put(base + "meanMicros", snapshot.mean() / 1000);
+                values.put(base + "p50Micros", snapshot.percentile(0.5) / 1000);
+                values.put(base + "p99Micros", snapshot.percentile(0.99) / 1000);
+                values.put(base + "p999Micros", snapshot.percentile(0.999) / 1000);
+                values.put(base + "maxMicros", snapshot.max / 1000);
+            }));
+            COUNTERS.forEach((name, members) -> members.forEach((value, counter) ->
+                    values.put(name + "." + value, counter.sum())));
+            GAUGES.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+            return values;
+        }
+    }
+}
@@ -0,0 +1,390 @@
+package com.example.sftp;
+
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * A single S3 multipart upload. Parts are uploaded concurrently through the backend,
+ * and at most {@code maxInFlight} parts are uploading at any time: further calls
+ * to {@link #uploadPart} block until a slot frees up, which bounds the memory held
+ * by the caller's part buffers. A part that fails with a transient error is sent again
+ * from the same buffer, up to {@code s3sftp.upload.partRetries} times.
+ * <p>
+ * Uploads are recorded in the {@link S3UploadJournal} as their parts complete. One that
+ * is {@link #suspend suspended} instead of completed can be picked up again with
+ * {@link #resume}, by this process or after a restart.
+ */
+class S3MultipartUpload {
+    static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+    static final int PART_SIZE = Math.max(MIN_PART_SIZE,
+            Integer.getInteger("s3sftp.upload.partSize", 8 * 1024 * 1024));
+    static final int MAX_IN_FLIGHT_PARTS = Integer.getInteger("s3sftp.upload.maxInFlightParts", 4);
+    private static final int RETRIES = Integer.getInteger("s3sftp.upload.partRetries", 2);
+    private static final long RETRY_DELAY_MILLIS = Long.getLong("s3sftp.upload.retryDelayMillis", 200);
+
+    private final S3Backend backend;
+    private final String bucket;
+    private final String key;
+    private final Semaphore inFlight;
+    private final Map<Integer, CompletedPart> completedParts = new ConcurrentHashMap<>();
+    private final List<CompletableFuture<Void>> pending = new ArrayList<>();
+    private volatile Throwable failure;
+    private String uploadId;
+    private S3UploadJournal journal;
+
+    S3MultipartUpload(S3Backend backend, String bucket, String key, int maxInFlight) {
+        this.backend = backend;
+        this.bucket = bucket;
+        this.key = key;
+        this.inFlight = new Semaphore(Math.max(1, maxInFlight));
+    }
+
+    void start() throws IOException {
+        start(null);
+    }
+
+    /**
+     * Creates the upload, journaled under {@code owner}, the user who may later resume it.
+     */
+    void start(String owner) throws IOException {
+        start(owner, CreateMultipartUploadRequest.builder());
+    }
+
+    /**
+     * Creates the upload for a copy of {@code source}, with its content headers, user
+     * metadata, storage class and server-side encryption, as CopyObject would keep them.
+     */
+    void startCopyOf(HeadObjectResponse source) throws IOException {
+        start(null, CreateMultipartUploadRequest.builder()
+                .contentType(source.contentType())
+                .contentEncoding(source.contentEncoding())
+                .contentDisposition(source.contentDisposition())
+                .contentLanguage(source.contentLanguage())
+                .cacheControl(source.cacheControl())
+                .metadata(source.metadata())
+                .storageClass(source.storageClassAsString())
+                .serverSideEncryption(source.serverSideEncryptionAsString())
+                .ssekmsKeyId(source.ssekmsKeyId())
+                .bucketKeyEnabled(source.bucketKeyEnabled()));
+    }
+
+    private void start(String owner, CreateMultipartUploadRequest.Builder request) throws IOException {
+        // Whatever was left of an earlier upload to this key is superseded. Dropped first,
+        // so that aborting it can never hit the new upload
+        S3UploadJournal.discard(backend, bucket, key);
+        try {
+            CreateMultipartUploadResponse response = S3Backend.await(backend.createMultipartUpload(
+                    request.bucket(bucket)
+                            .key(key)
+                            .build()));
+            uploadId = response.uploadId();
+        } catch (S3Exception e) {
+            throw new IOException("Failed to start multipart upload for " + key + ": " + e.getMessage(), e);
+        }
+        journal = S3UploadJournal.create(bucket, key, uploadId, owner);
+    }
+
+    /**
+     * Reattaches to the suspended upload recorded in {@code journal}, keeping the parts S3
+     * still has. Returns null, dropping the entry, if S3 no longer knows the upload or it
+     * has been claimed by someone else. The caller continues with the part after
+     * {@link S3UploadJournal#durableParts}; later parts are overwritten.
+     */
+    static S3MultipartUpload resume(S3Backend backend, String bucket, String key, int maxInFlight,
+                                    S3UploadJournal journal) throws IOException {
+        if (!journal.claim()) {
+            return null;
+        }
+        Map<Integer, String> listed = new HashMap<>();
+        try {
+            Integer marker = null;
+            ListPartsResponse response;
+            do {
+                response = S3Backend.await(backend.listParts(ListPartsRequest.builder()
+                        .bucket(bucket)
+                        .key(key)
+                        .uploadId(journal.uploadId())
+                        .partNumberMarker(marker)
+                        .build()));
+                for (Part part : response.parts()) {
+                    listed.put(part.partNumber(), part.eTag());
+                }
+                marker = response.nextPartNumberMarker();
+            } while (Boolean.TRUE.equals(response.isTruncated()));
+        } catch (NoSuchUploadException e) {
+            S3Trace.event("Upload {} for {} is gone, starting over", journal.uploadId(), key);
+            journal.delete();
+            return null;
+        } catch (S3Exception e) {
+            // Left suspended so a later attempt can try again
+            journal.suspend();
+            throw new IOException("Failed to resume upload of " + key + ": " + e.getMessage(), e);
+        }
+        journal.retain(listed);
+
+        S3MultipartUpload upload = new S3MultipartUpload(backend, bucket, key, maxInFlight);
+        upload.uploadId = journal.uploadId();
+        upload.journal = journal;
+        Map<Integer, String> parts = journal.parts();
+        for (int number = 1; number <= journal.durableParts(); number++) {
+            upload.completedParts.put(number, CompletedPart.builder()
+                    .partNumber(number)
+                    .eTag(parts.get(number))
+                    .build());
+        }
+        S3Trace.event("Resuming upload {} of {} after {} parts", upload.uploadId, key, journal.durableParts());
+        return upload;
+    }
+
+    /**
+     * Uploads the remaining bytes of {@code data} as part {@code partNumber}. The buffer
+     * must not be modified until {@code whenDone} runs, which happens exactly once when
+     * the part has finished, failed or could not be scheduled.
+     */
+    void uploadPart(int partNumber, ByteBuffer data, Runnable whenDone) throws IOException {
+        int length = data.remaining();
+        submitPart(partNumber, length, () -> retrying(() -> backend.uploadPart(UploadPartRequest.builder()
+                                .bucket(bucket)
+                                .key(key)
+                                .uploadId(uploadId)
+                                .partNumber(partNumber)
+                                .contentLength((long) length)
+                                .build(), data.duplicate()), "part " + partNumber + " of " + key)
+                .thenApply(UploadPartResponse::eTag), whenDone);
+    }
+
+    /**
+     * Copies bytes {@code first} to {@code last} (inclusive) of an existing object in the
+     * same bucket into part {@code partNumber}, without the data leaving S3. The part
+     * fails unless the source still has ETag {@code sourceETag}, when given.
+     */
+    void copyPart(int partNumber, String sourceKey, String sourceETag, long first, long last) throws IOException {
+        submitPart(partNumber, last - first + 1, () -> backend.uploadPartCopy(UploadPartCopyRequest.builder()
+                        .sourceBucket(bucket)
+                        .sourceKey(sourceKey)
+                        .copySourceIfMatch(sourceETag)
+                        .copySourceRange("bytes=" + first + "-" + last)
+                        .destinationBucket(bucket)
+                        .destinationKey(key)
+                        .uploadId(uploadId)
+                        .partNumber(partNumber)
+                        .build())
+                .thenApply(response -> response.copyPartResult().eTag()), () -> { });
+    }
+
+    private void submitPart(int partNumber, long length, Supplier<CompletableFuture<String>> transfer,
+                            Runnable whenDone) throws IOException {
+        try {
+            checkFailure();
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            whenDone.run();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for an upload slot: " + key);
+        } catch (IOException e) {
+            whenDone.run();
+            throw e;
+        }
+
+        CompletableFuture<String> future;
+        try {
+            future = transfer.get();
+        } catch (RuntimeException e) {
+            whenDone.run();
+            inFlight.release();
+            throw new IOException("Failed to submit part " + partNumber + " of " + key + ": " + e.getMessage(), e);
+        }
+
+        pending.add(future.handle((eTag, error) -> {
+            if (error != null) {
+                if (failure == null) {
+                    failure = error instanceof CompletionException ? error.getCause() : error;
+                }
+            } else {
+                completedParts.put(partNumber, CompletedPart.builder()
+                        .partNumber(partNumber)
+                        .eTag(eTag)
+                        .build());
+                if (journal != null) {
+                    journal.partCompleted(partNumber, eTag, length);
+                }
+            }
+            whenDone.run();
+            inFlight.release();
+            return null;
+        }));
+    }
+
+    /**
+     * Waits for all parts and completes the upload. The upload is aborted if any part
+     * failed or completing it fails, including on the client side.
+     */
+    void complete() throws IOException {
+        awaitParts();
+        try {
+            checkFailure();
+            List<CompletedPart> parts = new ArrayList<>(completedParts.values());
+            parts.sort(Comparator.comparing(CompletedPart::partNumber));
+
+            S3Backend.await(backend.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(parts).build())
+                    .build()));
+            if (journal != null) {
+                journal.delete();
+            }
+        } catch (IOException | RuntimeException e) {
+            abort();
+            throw e instanceof IOException ? (IOException) e
+                    : new IOException("Failed to complete multipart upload for " + key + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Waits for all parts and leaves the upload open to be {@link #resume resumed}. Without
+     * a journal it could never be found again, so it is aborted instead.
+     */
+    void suspend() {
+        awaitParts();
+        if (journal == null) {
+            abort();
+            return;
+        }
+        journal.suspend();
+        S3Trace.event("Suspended upload {} of {} at {} bytes", uploadId, key, journal.durableSize());
+    }
+
+    /**
+     * Waits for all parts and aborts the upload. Failing to abort is only reported; the
+     * bucket's lifecycle rules are left to clean up.
+     */
+    void abort() {
+        awaitParts();
+        if (journal != null) {
+            journal.delete();
+        }
+        try {
+            S3Backend.await(backend.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .build()));
+        } catch (RuntimeException e) {
+            S3Trace.warn("Failed to abort multipart upload {} for {}: {}", uploadId, key, e.getMessage());
+        }
+    }
+
+    private void awaitParts() {
+        for (CompletableFuture<Void> future : pending) {
+            try {
+                future.join();
+            } catch (CompletionException | CancellationException e) {
+                // Recorded in failure by the completion handler
+            }
+        }
+        pending.clear();
+    }
+
+    /**
+     * Uploads the whole of {@code staging} to {@code key}: as a single PUT when it fits
+     * in one part, otherwise as a multipart upload with parts read in place from the
+     * staged blocks.
+     */
+    static void uploadStaged(S3Backend backend, String bucket, String key, S3StagingBuffer staging)
+            throws IOException {
+        long size = staging.size();
+        if (size <= PART_SIZE) {
+            ByteBuffer data = staging.slice(0, (int) size);
+            PutObjectRequest request = PutObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .contentLength(size)
+                    .build();
+            try {
+                S3Backend.await(retrying(() -> backend.putObject(request, data.duplicate()), key));
+            } catch (S3Exception e) {
+                throw new IOException("Failed to upload to S3: " + e.getMessage(), e);
+            }
+            S3UploadJournal.discard(backend, bucket, key);
+            return;
+        }
+
+        S3MultipartUpload upload = new S3MultipartUpload(backend, bucket, key, MAX_IN_FLIGHT_PARTS);
+        upload.start();
+        try {
+            int partNumber = 0;
+            for (long offset = 0; offset < size; offset += PART_SIZE) {
+                upload.uploadPart(++partNumber, staging.slice(offset, (int) Math.min(PART_SIZE, size - offset)), () -> { });
+            }
+        } catch (IOException e) {
+            upload.abort();
+            throw e;
+        }
+        upload.complete();
+    }
+
+    /**
+     * Runs {@code request}, issuing it again after a short delay if it fails with an
+     * error worth retrying. The request must be safe to repeat.
+     */
+    static <T> CompletableFuture<T> retrying(Supplier<CompletableFuture<T>> request, String what) {
+        return retrying(request, what, 1);
+    }
+
+    private static <T> CompletableFuture<T> retrying(Supplier<CompletableFuture<T>> request, String what, int attempt) {
+        CompletableFuture<T> future;
+        try {
+            future = request.get();
+        } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        if (attempt > RETRIES) {
+            return future;
+        }
+        return future.handle((response, error) -> {
+            if (error == null) {
+                return CompletableFuture.completedFuture(response);
+            }
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (!isRetryable(cause)) {
+                return CompletableFuture.<T>failedFuture(cause);
+            }
+            S3Trace.event("Retrying {} after attempt {}: {}", what, attempt, cause.getMessage());
+            Executor delay = CompletableFuture.delayedExecutor(RETRY_DELAY_MILLIS * attempt, TimeUnit.MILLISECONDS);
+            return CompletableFuture.supplyAsync(() -> retrying(request, what, attempt + 1), delay)
+                    .thenCompose(retry -> retry);
+        }).thenCompose(result -> result);
+    }
+
+    /**
+     * Client-side failures, throttling and server errors may succeed when repeated;
+     * other 4xx answers will not.
+     */
+    private static boolean isRetryable(Throwable error) {
+        if (error instanceof S3Exception) {
+            int status = ((S3Exception) error).statusCode();
+            return status >= 500 || status == 408 || status == 429;
+        }
+        return error instanceof SdkException;
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable error = failure;
+        if (error != null) {
+            throw new IOException("Failed to upload part of " + key + ": " + error.getMessage(), error);
+        }
+    }
+}
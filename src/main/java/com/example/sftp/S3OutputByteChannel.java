@@ -1,48 +1,79 @@
 package com.example.sftp;
 
-import software.amazon.awssdk.core.sync.RequestBody;
-import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.model.*;
-
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.SeekableByteChannel;
 
 /**
  * Channel for writing files to S3. Used by SFTP for upload operations.
- * Buffers data in memory and uploads to S3 when the channel is closed.
+ * Writes may arrive at any position; an {@link S3WriteAssembler} stages them and uploads
+ * each part of a multipart upload as soon as the data from the start of the part to its
+ * end has arrived, completing the upload when the channel is closed. Files smaller than
+ * one part go up as a single PUT. Positions already uploaded cannot be written again.
+ * A channel can continue a suspended upload of the same key, see {@link #resume}, or
+ * append to the existing object, see {@link #append}.
  */
-public class S3OutputByteChannel implements SeekableByteChannel {
-    private final S3Client s3Client;
-    private final String bucket;
+public class S3OutputByteChannel implements SeekableByteChannel, S3WriteAssembler.Resumable {
     private final String key;
-    private final ByteArrayOutputStream buffer;
+    private final S3MetadataCache metadataCache;
+    private final S3WriteAssembler assembler;
     private boolean open;
     private long position;
 
-    public S3OutputByteChannel(S3Client s3Client, String bucket, String key) {
-        this.s3Client = s3Client;
-        this.bucket = bucket;
+    public S3OutputByteChannel(S3Backend backend, String bucket, String key) {
+        this(backend, bucket, key, null);
+    }
+
+    S3OutputByteChannel(S3Backend backend, String bucket, String key, S3MetadataCache metadataCache) {
+        this(backend, bucket, key, metadataCache, null);
+    }
+
+    /**
+     * A channel writing on behalf of {@code owner}, who alone can resume its upload.
+     */
+    S3OutputByteChannel(S3Backend backend, String bucket, String key, S3MetadataCache metadataCache,
+                        String owner) {
         this.key = key;
-        this.buffer = new ByteArrayOutputStream();
+        this.metadataCache = metadataCache;
+        this.assembler = new S3WriteAssembler(backend, bucket, key, owner);
         this.open = true;
         this.position = 0;
     }
 
+    /**
+     * Continues the owner's suspended upload of the key, if any, from its last durable part.
+     * Returns whether there was one; the channel's size is then the durable length.
+     */
+    boolean resume() throws IOException {
+        return assembler.resume();
+    }
+
+    /**
+     * Starts from the existing object, if any, and moves to its end. Large objects are
+     * copied server-side, so only the appended bytes are uploaded.
+     */
+    boolean append() throws IOException {
+        if (!assembler.append()) {
+            return false;
+        }
+        position = assembler.size();
+        return true;
+    }
+
+    @Override
+    public void suspendOnClose() {
+        assembler.suspendOnClose();
+    }
+
     @Override
     public int write(ByteBuffer src) throws IOException {
         if (!open) {
             throw new IOException("Channel is closed");
         }
 
-        // Copy data from the ByteBuffer to our internal buffer
-        byte[] data = new byte[src.remaining()];
-        src.get(data);
-        buffer.write(data);
-
-        // Update position and return number of bytes written
-        position += data.length;
-        return data.length;
+        int written = assembler.write(position, src);
+        position += written;
+        return written;
     }
 
     @Override
@@ -53,20 +84,14 @@ public class S3OutputByteChannel implements SeekableByteChannel {
     @Override
     public void close() throws IOException {
         if (open) {
+            open = false;
             try {
-                // Upload the buffered content to S3
-                byte[] data = buffer.toByteArray();
-                PutObjectRequest request = PutObjectRequest.builder()
-                        .bucket(bucket)
-                        .key(key)
-                        .build();
-
-                s3Client.putObject(request, RequestBody.fromBytes(data));
-                buffer.close();
-            } catch (S3Exception e) {
-                throw new IOException("Failed to upload to S3: " + e.getMessage(), e);
+                assembler.finish();
             } finally {
-                open = false;
+                assembler.close();
+                if (metadataCache != null) {
+                    metadataCache.invalidate(key);
+                }
             }
         }
     }
@@ -83,16 +108,25 @@ public class S3OutputByteChannel implements SeekableByteChannel {
 
     @Override
     public SeekableByteChannel position(long newPosition) {
-        throw new UnsupportedOperationException("Position not supported on write channel");
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        this.position = newPosition;
+        return this;
     }
 
     @Override
     public long size() {
-        return position;
+        return assembler.size();
     }
 
     @Override
-    public SeekableByteChannel truncate(long size) {
-        throw new UnsupportedOperationException("Truncate not supported");
+    public SeekableByteChannel truncate(long size) throws IOException {
+        if (!open) {
+            throw new IOException("Channel is closed");
+        }
+        assembler.truncate(size);
+        position = Math.min(position, size);
+        return this;
     }
 }
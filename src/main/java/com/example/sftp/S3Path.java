@@ -5,25 +5,121 @@ import java.net.URI;
 import java.nio.file.*;
 import java.util.*;
 
+/**
+ * Path in an {@link S3FileSystem}. The string is parsed once into the start offset of
+ * each name, and paths derived by {@link #getParent}, {@link #getName} or
+ * {@link #subpath} are views over the same string and offsets, so they need no
+ * re-parsing and their strings are only cut when asked for. The S3 key (the names
+ * joined by {@code /}, without a leading slash), string form, hash and parent are
+ * computed at most once per path.
+ */
 public class S3Path implements Path {
+    private static final int[] NO_OFFSETS = new int[0];
+
     private final S3FileSystem fileSystem;
-    private final String path;
+    // Normalized path text: no repeated or trailing separators
+    private final String source;
+    // Start of every name in source; names are separated by exactly one '/'
+    private final int[] offsets;
+    // Names of source covered by this path
+    private final int first;
+    private final int count;
     private final boolean isAbsolute;
+    // Attributes captured from the listing that produced this path, if any
+    private final S3FileAttributes listingAttributes;
+
+    // Computed on first use; racy but idempotent, like String.hashCode
+    private String string;
+    private String key;
+    private S3Path parent;
+    private int hash;
 
     public S3Path(S3FileSystem fileSystem, String path) {
+        this(fileSystem, path, null);
+    }
+
+    public S3Path(S3FileSystem fileSystem, String path, S3FileAttributes listingAttributes) {
         this.fileSystem = Objects.requireNonNull(fileSystem, "FileSystem cannot be null");
         this.isAbsolute = path.startsWith("/");
+        this.listingAttributes = listingAttributes;
+        this.source = normalizeSeparators(path);
+        this.offsets = parseOffsets(source);
+        this.first = 0;
+        this.count = offsets.length;
+
+        S3Trace.event("S3Path created - Original: {}, Stored: {}, isAbsolute: {}", path, source, isAbsolute);
+    }
+
+    private S3Path(S3Path base, int first, int count, boolean isAbsolute) {
+        this.fileSystem = base.fileSystem;
+        this.source = base.source;
+        this.offsets = base.offsets;
+        this.first = first;
+        this.count = count;
+        this.isAbsolute = isAbsolute;
+        this.listingAttributes = null;
+    }
+
+    /**
+     * Collapses repeated separators and drops a trailing one, returning the input
+     * itself when it is already in that form.
+     */
+    private static String normalizeSeparators(String path) {
+        int length = path.length();
+        boolean clean = length <= 1 || path.charAt(length - 1) != '/';
+        for (int i = 1; clean && i < length; i++) {
+            clean = path.charAt(i) != '/' || path.charAt(i - 1) != '/';
+        }
+        if (clean) {
+            return path;
+        }
+
+        StringBuilder normalized = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            char c = path.charAt(i);
+            if (c != '/' || normalized.length() == 0 || normalized.charAt(normalized.length() - 1) != '/') {
+                normalized.append(c);
+            }
+        }
+        if (normalized.length() > 1 && normalized.charAt(normalized.length() - 1) == '/') {
+            normalized.setLength(normalized.length() - 1);
+        }
+        return normalized.toString();
+    }
 
-        // Store path without leading slash for relative paths
-        if (isAbsolute) {
-            this.path = path;
-        } else {
-            this.path = path.startsWith("/") ? path.substring(1) : path;
+    private static int[] parseOffsets(String path) {
+        int start = path.startsWith("/") ? 1 : 0;
+        if (start == path.length()) {
+            return NO_OFFSETS;
         }
+        int names = 1;
+        for (int i = start; i < path.length(); i++) {
+            if (path.charAt(i) == '/') {
+                names++;
+            }
+        }
+        int[] offsets = new int[names];
+        int name = 0;
+        offsets[name++] = start;
+        for (int i = start; i < path.length(); i++) {
+            if (path.charAt(i) == '/') {
+                offsets[name++] = i + 1;
+            }
+        }
+        return offsets;
+    }
 
-        System.out.println("S3Path created - Original: " + path + ", Stored: " + this.path + ", isAbsolute: " + this.isAbsolute);
+    private int nameStart(int index) {
+        return offsets[index];
     }
 
+    private int nameEnd(int index) {
+        return index + 1 < offsets.length ? offsets[index + 1] - 1 : source.length();
+    }
+
+    private int nameLength(int index) {
+        return nameEnd(index) - nameStart(index);
+    }
 
     @Override
     public FileSystem getFileSystem() {
@@ -37,67 +133,52 @@ public class S3Path implements Path {
 
     @Override
     public Path getRoot() {
-        return new S3Path(fileSystem, "/");
+        return isAbsolute ? fileSystem.getRootDirectory() : null;
     }
 
     @Override
     public Path getFileName() {
-        if (path.equals("/")) {
+        if (count == 0) {
             return null;
         }
-        String name = path;
-        if (name.endsWith("/")) {
-            name = name.substring(0, name.length() - 1);
+        if (count == 1 && !isAbsolute) {
+            return this;
         }
-        int lastSeparator = name.lastIndexOf("/");
-        return lastSeparator == -1 ? this :
-                new S3Path(fileSystem, name.substring(lastSeparator + 1));
+        return new S3Path(this, first + count - 1, 1, false);
     }
 
     @Override
     public Path getParent() {
-        if (path.equals("/") || !path.contains("/")) {
-            return null;
-        }
-        String parent = path;
-        if (parent.endsWith("/")) {
-            parent = parent.substring(0, parent.length() - 1);
+        S3Path result = parent;
+        if (result == null) {
+            if (count == 0 || (count == 1 && !isAbsolute)) {
+                return null;
+            }
+            result = new S3Path(this, first, count - 1, isAbsolute);
+            parent = result;
         }
-        int lastSeparator = parent.lastIndexOf("/");
-        if (lastSeparator <= 0) {
-            return new S3Path(fileSystem, "/");
-        }
-        return new S3Path(fileSystem, parent.substring(0, lastSeparator));
+        return result;
     }
 
     @Override
     public int getNameCount() {
-        if (path.equals("/")) {
-            return 0;
-        }
-        return path.substring(1).split("/").length;
+        return count;
     }
 
     @Override
     public Path getName(int index) {
-        if (index < 0) {
-            throw new IllegalArgumentException();
-        }
-        String[] components = path.substring(1).split("/");
-        if (index >= components.length) {
+        if (index < 0 || index >= count) {
             throw new IllegalArgumentException();
         }
-        return new S3Path(fileSystem, components[index]);
+        return count == 1 && !isAbsolute ? this : new S3Path(this, first + index, 1, false);
     }
 
     @Override
     public Path subpath(int beginIndex, int endIndex) {
-        if (beginIndex < 0 || endIndex > getNameCount() || beginIndex >= endIndex) {
+        if (beginIndex < 0 || endIndex > count || beginIndex >= endIndex) {
             throw new IllegalArgumentException();
         }
-        String[] components = path.substring(1).split("/");
-        String subpath = String.join("/", Arrays.copyOfRange(components, beginIndex, endIndex));
-        return new S3Path(fileSystem, subpath);
+        return new S3Path(this, first + beginIndex, endIndex - beginIndex, false);
     }
 
     @Override
@@ -105,7 +186,8 @@ public class S3Path implements Path {
         if (!(other instanceof S3Path)) {
             return false;
         }
-        return path.startsWith(other.toString());
+        S3Path that = (S3Path) other;
+        return that.isAbsolute == isAbsolute && that.count <= count && namesMatch(0, that, that.count);
     }
 
     @Override
@@ -113,13 +195,58 @@ public class S3Path implements Path {
         if (!(other instanceof S3Path)) {
             return false;
         }
-        return path.endsWith(other.toString());
+        S3Path that = (S3Path) other;
+        if (that.isAbsolute) {
+            return equals(that);
+        }
+        return that.count <= count && namesMatch(count - that.count, that, that.count);
+    }
+
+    /**
+     * Compares {@code length} names of this path starting at {@code from} with the
+     * leading names of {@code other}.
+     */
+    private boolean namesMatch(int from, S3Path other, int length) {
+        for (int i = 0; i < length; i++) {
+            int mine = first + from + i;
+            int theirs = other.first + i;
+            int nameLength = nameLength(mine);
+            if (nameLength != other.nameLength(theirs)
+                    || !source.regionMatches(nameStart(mine), other.source, other.nameStart(theirs), nameLength)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override
     public Path normalize() {
-        // Already normalized in constructor
-        return this;
+        // Separators are normalized on construction; only . and .. names are left
+        boolean dotted = false;
+        for (int i = first; i < first + count && !dotted; i++) {
+            int length = nameLength(i);
+            dotted = source.charAt(nameStart(i)) == '.'
+                    && (length == 1 || (length == 2 && source.charAt(nameStart(i) + 1) == '.'));
+        }
+        if (!dotted) {
+            return this;
+        }
+
+        Deque<String> names = new ArrayDeque<>();
+        for (int i = first; i < first + count; i++) {
+            String name = source.substring(nameStart(i), nameEnd(i));
+            if (name.equals("..")) {
+                if (!names.isEmpty() && !names.peekLast().equals("..")) {
+                    names.removeLast();
+                } else if (!isAbsolute) {
+                    names.addLast(name);
+                }
+            } else if (!name.equals(".")) {
+                names.addLast(name);
+            }
+        }
+        String joined = String.join("/", names);
+        return new S3Path(fileSystem, isAbsolute ? "/" + joined : joined);
     }
 
     @Override
@@ -130,18 +257,35 @@ public class S3Path implements Path {
         if (other.startsWith("/")) {
             return new S3Path(fileSystem, other);
         }
-        String resolved = path;
-        if (!resolved.endsWith("/")) {
-            resolved += "/";
+        if (count == 0) {
+            return new S3Path(fileSystem, isAbsolute ? "/" + other : other);
         }
-        resolved += other;
-        return new S3Path(fileSystem, resolved);
+        return new S3Path(fileSystem, toString() + "/" + other);
     }
 
+    public String getPathAsString() {
+        return toString();
+    }
 
+    /**
+     * The S3 key for this path: its names joined by {@code /}, without a leading or
+     * trailing slash. The root maps to the empty key.
+     */
+    public String getKey() {
+        String result = key;
+        if (result == null) {
+            result = count == 0 ? "" : source.substring(nameStart(first), nameEnd(first + count - 1));
+            key = result;
+        }
+        return result;
+    }
 
-    public String getPathAsString() {
-        return path;
+    /**
+     * Attributes reported by the directory listing this path came from, or null for
+     * paths that were not produced by a listing.
+     */
+    public S3FileAttributes getListingAttributes() {
+        return listingAttributes;
     }
 
     @Override
@@ -149,15 +293,7 @@ public class S3Path implements Path {
         if (other.isAbsolute()) {
             return other;
         }
-        if (other.toString().isEmpty()) {
-            return this;
-        }
-        String resolved = path;
-        if (!resolved.endsWith("/")) {
-            resolved += "/";
-        }
-        resolved += other.toString();
-        return new S3Path(fileSystem, resolved);
+        return resolve(other.toString());
     }
 
     @Override
@@ -167,12 +303,12 @@ public class S3Path implements Path {
 
     @Override
     public URI toUri() {
-        return URI.create("s3://" + fileSystem.getBucketName() + path);
+        return URI.create("s3://" + fileSystem.getBucketName() + "/" + getKey());
     }
 
     @Override
     public Path toAbsolutePath() {
-        return isAbsolute() ? this : new S3Path(fileSystem, "/" + path);
+        return isAbsolute() ? this : fileSystem.getDefaultDirectory().resolve(this);
     }
 
 
@@ -193,20 +329,27 @@ public class S3Path implements Path {
 
     @Override
     public Iterator<Path> iterator() {
-        if (path.equals("/")) {
-            return Collections.emptyIterator();
-        }
-        List<Path> components = new ArrayList<>();
-        String[] parts = path.substring(1).split("/");
-        for (String part : parts) {
-            components.add(new S3Path(fileSystem, part));
-        }
-        return components.iterator();
+        return new Iterator<Path>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < count;
+            }
+
+            @Override
+            public Path next() {
+                if (next >= count) {
+                    throw new NoSuchElementException();
+                }
+                return getName(next++);
+            }
+        };
     }
 
     @Override
     public int compareTo(Path other) {
-        return path.compareTo(other.toString());
+        return toString().compareTo(other.toString());
     }
 
     @Override
@@ -214,29 +357,53 @@ public class S3Path implements Path {
         if (this == o) return true;
         if (!(o instanceof S3Path)) return false;
         S3Path other = (S3Path) o;
-        return Objects.equals(fileSystem, other.fileSystem) &&
-                Objects.equals(path, other.path);
+        return isAbsolute == other.isAbsolute
+                && count == other.count
+                && fileSystem.equals(other.fileSystem)
+                && (hash == 0 || other.hash == 0 || hash == other.hash)
+                && namesMatch(0, other, count);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(fileSystem, path);
+        int h = hash;
+        if (h == 0) {
+            h = isAbsolute ? 1 : 0;
+            for (int i = first; i < first + count; i++) {
+                h = 31 * h + '/';
+                for (int c = nameStart(i); c < nameEnd(i); c++) {
+                    h = 31 * h + source.charAt(c);
+                }
+            }
+            h = 31 * h + fileSystem.hashCode();
+            hash = h;
+        }
+        return h;
     }
 
     @Override
     public String toString() {
-        // For relative paths, don't include leading slash
-        if (!isAbsolute && path.startsWith("/")) {
-            return path.substring(1);
+        String result = string;
+        if (result == null) {
+            if (count == 0) {
+                result = isAbsolute ? "/" : "";
+            } else if (first == 0 && count == offsets.length && isAbsolute == source.startsWith("/")) {
+                // All of source, unless this is a relative view of an absolute path
+                result = source;
+            } else {
+                int start = isAbsolute ? 0 : nameStart(first);
+                result = source.substring(start, nameEnd(first + count - 1));
+            }
+            string = result;
         }
-        return path;
+        return result;
     }
 
     public void debugPath() {
-        System.out.println("S3Path Debug:");
-        System.out.println("- Original path: " + path);
-        System.out.println("- Is absolute: " + isAbsolute);
-        System.out.println("- toString(): " + toString());
-        System.out.println("- getFileName(): " + getFileName());
+        S3Trace.event("S3Path Debug:");
+        S3Trace.event("- Source: {}", source);
+        S3Trace.event("- Is absolute: {}", isAbsolute);
+        S3Trace.event("- toString(): {}", toString());
+        S3Trace.event("- getFileName(): {}", getFileName());
     }
-}
\ No newline at end of file
+}
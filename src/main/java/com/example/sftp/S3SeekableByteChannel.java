@@ -2,40 +2,77 @@ package com.example.sftp;
 
 
 
-import software.amazon.awssdk.core.sync.RequestBody;
-import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.services.s3.model.*;
-import software.amazon.awssdk.core.sync.ResponseTransformer;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SeekableByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
 
 
+/**
+ * Channel for reading files from S3. Used by SFTP for download operations.
+ * Sequential reads are served from one long-lived streaming GET that is read ahead
+ * into an adaptive window; a real seek drops the stream and falls back to ranged GETs
+ * until the access pattern turns sequential again. Windows are leased from
+ * {@link S3BufferPool} and response bodies are read straight into them. Bytes already
+ * in the shared {@link S3DiskCache} are served from it, and everything downloaded is
+ * offered to it; GETs are conditional on the ETag seen when the channel was opened.
+ */
 class S3SeekableByteChannel implements SeekableByteChannel {
-    private final S3Client s3Client;
+    private static final int MIN_WINDOW = Integer.getInteger("s3sftp.readahead.minWindow", 64 * 1024);
+    private static final int MAX_WINDOW = Integer.getInteger("s3sftp.readahead.maxWindow", 4 * 1024 * 1024);
+    private static final int SEQUENTIAL_READS = Integer.getInteger("s3sftp.readahead.sequentialReads", 2);
+    private static final long MAX_SKIP = Long.getLong("s3sftp.readahead.maxSkip", 1024 * 1024);
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final S3Backend backend;
     private final String bucket;
     private final String key;
     private long position;
     private boolean open;
     private final long size;
+    private final String eTag;
+    private final S3DiskCache.Version cache;
+    private final S3BufferPool.Tracker buffers;
+
+    // Streaming GET state; the stream is owned by the prefetch task while one is pending
+    private ResponseInputStream<GetObjectResponse> stream;
+    private ReadableByteChannel streamChannel;
+    private long streamPosition;
+    private ByteBuffer window = EMPTY;
+    private long windowOffset;
+    private int windowSize = MIN_WINDOW;
+    private ByteBuffer spare;
+    private CompletableFuture<ByteBuffer> prefetch;
+    private long prefetchOffset;
+    private long lastReadEnd;
+    private int sequentialReads = SEQUENTIAL_READS;
 
-    public S3SeekableByteChannel(S3Client s3Client, String bucket, String key) throws IOException {
-        this.s3Client = s3Client;
+    public S3SeekableByteChannel(S3Backend backend, String bucket, String key) throws IOException {
+        this.backend = backend;
         this.bucket = bucket;
         this.key = key;
         this.position = 0;
         this.open = true;
+        this.buffers = S3BufferPool.tracker("read channel for " + key);
 
         try {
-            HeadObjectResponse response = s3Client.headObject(HeadObjectRequest.builder()
+            HeadObjectResponse response = S3Backend.await(backend.headObject(HeadObjectRequest.builder()
                     .bucket(bucket)
                     .key(key)
-                    .build());
+                    .build()));
             this.size = response.contentLength();
+            this.eTag = response.eTag();
         } catch (S3Exception e) {
             throw new IOException("Failed to get object size", e);
         }
+        this.cache = S3DiskCache.version(bucket, key, eTag, size);
     }
 
     @Override
@@ -43,27 +80,243 @@ class S3SeekableByteChannel implements SeekableByteChannel {
         if (!open) {
             throw new IOException("Channel is closed");
         }
+        if (position >= size) {
+            return -1;
+        }
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
 
-        try {
-            GetObjectRequest request = GetObjectRequest.builder()
-                    .bucket(bucket)
-                    .key(key)
-                    .range("bytes=" + position + "-" + (position + dst.remaining() - 1))
-                    .build();
+        if (position == lastReadEnd) {
+            sequentialReads = Math.min(sequentialReads + 1, SEQUENTIAL_READS);
+        } else {
+            sequentialReads = 0;
+        }
 
-            byte[] data = s3Client.getObject(request, ResponseTransformer.toBytes()).asByteArray();
-            if (data.length == 0) {
-                return -1;
+        try {
+            int read;
+            if (inWindow(position)) {
+                read = copyFromWindow(dst);
+            } else if (cache != null && (read = cache.read(position, dst)) > 0) {
+                // Served from disk; the stream, if any, is left where it is
+            } else if (sequentialReads >= SEQUENTIAL_READS) {
+                advanceWindow();
+                read = copyFromWindow(dst);
+            } else {
+                // Real seek: a streaming GET would most likely be thrown away
+                closeStream();
+                windowSize = MIN_WINDOW;
+                read = readRange(dst);
             }
 
-            dst.put(data);
-            position += data.length;
-            return data.length;
+            position += read;
+            lastReadEnd = position;
+            if (sequentialReads >= SEQUENTIAL_READS) {
+                schedulePrefetch();
+            }
+            return read;
         } catch (S3Exception e) {
             throw new IOException("Failed to read from S3", e);
         }
     }
 
+    private boolean inWindow(long offset) {
+        return offset >= windowOffset && offset < windowOffset + window.limit();
+    }
+
+    private int copyFromWindow(ByteBuffer dst) {
+        ByteBuffer view = window.duplicate();
+        view.position((int) (position - windowOffset));
+        int count = Math.min(dst.remaining(), view.remaining());
+        view.limit(view.position() + count);
+        dst.put(view);
+        return count;
+    }
+
+    /**
+     * Moves the window to cover the current position, taking over the prefetched
+     * window when it covers the position and filling from the stream otherwise.
+     */
+    private void advanceWindow() throws IOException {
+        if (prefetch != null) {
+            ByteBuffer next = awaitPrefetch();
+            if (next != null && position >= prefetchOffset && position < prefetchOffset + next.limit()) {
+                recycle(window);
+                window = next;
+                windowOffset = prefetchOffset;
+                growWindow();
+                offerWindow();
+                return;
+            }
+            recycle(next);
+        }
+
+        ensureStreamAt(position);
+        ByteBuffer buffer = takeBuffer();
+        fillFromStream(buffer);
+        if (!buffer.hasRemaining()) {
+            abortStream();
+            buffers.release(buffer);
+            throw new EOFException("Unexpected end of S3 object: " + key);
+        }
+        recycle(window);
+        window = buffer;
+        windowOffset = position;
+        growWindow();
+        offerWindow();
+    }
+
+    private void offerWindow() {
+        if (cache != null) {
+            cache.write(windowOffset, window);
+        }
+    }
+
+    private void growWindow() {
+        windowSize = (int) Math.min((long) windowSize * 2, MAX_WINDOW);
+    }
+
+    private ByteBuffer takeBuffer() {
+        ByteBuffer buffer = spare;
+        spare = null;
+        if (buffer == null || buffer.capacity() < windowSize) {
+            buffers.release(buffer);
+            buffer = buffers.acquire(windowSize);
+        }
+        buffer.clear().limit(windowSize);
+        return buffer;
+    }
+
+    /**
+     * Keeps one released window around for the next fill and returns any other to the pool.
+     */
+    private void recycle(ByteBuffer buffer) {
+        if (buffer == null || buffer == EMPTY) {
+            return;
+        }
+        if (spare == null) {
+            spare = buffer;
+        } else {
+            buffers.release(buffer);
+        }
+    }
+
+    private void schedulePrefetch() {
+        if (prefetch != null || stream == null || streamPosition >= size) {
+            return;
+        }
+        long windowEnd = windowOffset + window.limit();
+        if (streamPosition != windowEnd || windowEnd - position > window.limit() / 2) {
+            return;
+        }
+
+        ByteBuffer buffer = takeBuffer();
+        try {
+            prefetchOffset = streamPosition;
+            prefetch = CompletableFuture.supplyAsync(() -> {
+                try {
+                    fillFromStream(buffer);
+                    return buffer;
+                } catch (IOException e) {
+                    // Nobody takes the buffer of a failed prefetch; the spare belongs to the reader
+                    buffers.release(buffer);
+                    throw new UncheckedIOException(e);
+                } catch (RuntimeException e) {
+                    buffers.release(buffer);
+                    throw e;
+                }
+            }, S3Executors.readAhead());
+        } catch (RejectedExecutionException e) {
+            // Read-ahead pool is saturated; the next window is filled inline instead
+            recycle(buffer);
+        }
+    }
+
+    private ByteBuffer awaitPrefetch() {
+        CompletableFuture<ByteBuffer> pending = prefetch;
+        prefetch = null;
+        try {
+            return pending.join();
+        } catch (CompletionException e) {
+            // The stream is in an unknown state after a failed fill
+            abortStream();
+            return null;
+        }
+    }
+
+    private void fillFromStream(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (streamChannel.read(buffer) < 0) {
+                break;
+            }
+        }
+        streamPosition += buffer.position() - start;
+        buffer.flip().position(start);
+    }
+
+    private void ensureStreamAt(long offset) throws IOException {
+        if (stream != null && offset >= streamPosition && offset - streamPosition <= MAX_SKIP) {
+            stream.skipNBytes(offset - streamPosition);
+            streamPosition = offset;
+            return;
+        }
+
+        abortStream();
+        GetObjectRequest request = GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .range("bytes=" + offset + "-")
+                .ifMatch(eTag)
+                .build();
+        stream = S3Backend.await(backend.getObject(request));
+        streamChannel = Channels.newChannel(stream);
+        streamPosition = offset;
+    }
+
+    private int readRange(ByteBuffer dst) throws IOException {
+        long end = Math.min(position + dst.remaining(), size) - 1;
+        GetObjectRequest request = GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .range("bytes=" + position + "-" + end)
+                .ifMatch(eTag)
+                .build();
+
+        int start = dst.position();
+        ByteBuffer target = dst.duplicate();
+        target.limit(start + (int) (end - position + 1));
+        try (ResponseInputStream<GetObjectResponse> response = S3Backend.await(backend.getObject(request));
+             ReadableByteChannel body = Channels.newChannel(response)) {
+            while (target.hasRemaining()) {
+                if (body.read(target) < 0) {
+                    break;
+                }
+            }
+        }
+        if (cache != null) {
+            cache.write(position, target.flip().position(start));
+        }
+        dst.position(target.limit());
+        return target.limit() - start;
+    }
+
+    private void closeStream() {
+        if (prefetch != null) {
+            recycle(awaitPrefetch());
+        }
+        abortStream();
+    }
+
+    private void abortStream() {
+        if (stream != null) {
+            // Abort rather than close so the SDK does not drain the rest of the object
+            stream.abort();
+            stream = null;
+            streamChannel = null;
+        }
+    }
+
     @Override
     public int write(ByteBuffer src) throws IOException {
         throw new UnsupportedOperationException("Write not supported on read channel");
@@ -97,6 +350,14 @@ class S3SeekableByteChannel implements SeekableByteChannel {
 
     @Override
     public void close() {
+        if (open) {
+            closeStream();
+            buffers.release(window);
+            buffers.release(spare);
+            window = EMPTY;
+            spare = null;
+            buffers.close();
+        }
         open = false;
     }
 }
@@ -0,0 +1,82 @@
+package com.example.sftp;
+
+import org.apache.sshd.common.AttributeRepository;
+
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per-session state, stored as an attribute of the SSH session: the user's file system
+ * view, home directory and a small LRU of remote paths already resolved and normalized,
+ * so the paths a client sends over and over are parsed once. With
+ * {@code s3sftp.session.confineToHome} any path that resolves outside the home directory
+ * is refused. This is a confinement check, not a chroot: the client still sees and sends
+ * full paths, and {@code /} is the bucket root rather than the home directory.
+ */
+final class S3SessionView {
+    static final AttributeRepository.AttributeKey<S3SessionView> KEY = new AttributeRepository.AttributeKey<>();
+
+    private static final boolean CONFINE_TO_HOME = Boolean.getBoolean("s3sftp.session.confineToHome");
+    private static final int PATH_CACHE_SIZE = Integer.getInteger("s3sftp.session.pathCacheSize", 128);
+
+    private final S3FileSystem fileSystem;
+    private final Path home;
+    private final boolean confineToHome;
+    private final Map<String, Path> resolved;
+
+    S3SessionView(S3FileSystem fileSystem) {
+        this(fileSystem, CONFINE_TO_HOME, PATH_CACHE_SIZE);
+    }
+
+    S3SessionView(S3FileSystem fileSystem, boolean confineToHome, int pathCacheSize) {
+        this.fileSystem = fileSystem;
+        this.home = fileSystem.getDefaultDirectory();
+        this.confineToHome = confineToHome;
+        this.resolved = new LinkedHashMap<String, Path>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Path> eldest) {
+                return size() > pathCacheSize;
+            }
+        };
+    }
+
+    S3FileSystem getFileSystem() {
+        return fileSystem;
+    }
+
+    Path getHome() {
+        return home;
+    }
+
+    /**
+     * Resolves a path sent by the client: absolute paths are taken as they are, relative
+     * ones against the home directory, and the result is normalized.
+     */
+    Path resolve(String remotePath) throws AccessDeniedException {
+        if (remotePath == null || remotePath.isEmpty() || remotePath.equals(".")) {
+            return home;
+        }
+
+        Path path;
+        synchronized (resolved) {
+            path = resolved.get(remotePath);
+        }
+        if (path == null) {
+            path = (remotePath.startsWith("/") ? fileSystem.getPath(remotePath) : home.resolve(remotePath)).normalize();
+            if (confineToHome && !path.startsWith(home)) {
+                throw new AccessDeniedException(remotePath, null, "Outside of home directory " + home);
+            }
+            synchronized (resolved) {
+                resolved.put(remotePath, path);
+            }
+        }
+        return path;
+    }
+
+    @Override
+    public String toString() {
+        return "S3SessionView[home=" + home + ", confineToHome=" + confineToHome + "]";
+    }
+}
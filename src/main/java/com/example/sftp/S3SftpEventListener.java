@@ -2,37 +2,195 @@ package com.example.sftp;
 
 
 import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.sftp.common.SftpConstants;
+import org.apache.sshd.sftp.server.DirectoryHandle;
+import org.apache.sshd.sftp.server.FileHandle;
+import org.apache.sshd.sftp.server.Handle;
 import org.apache.sshd.sftp.server.SftpEventListener;
 
-import org.apache.sshd.sftp.server.FileHandle;
+import java.nio.file.CopyOption;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 
 
+/**
+ * Records per-request SFTP metrics. Every request is counted by type, and requests
+ * with a before/after callback pair are timed; both callbacks run on the thread that
+ * serves the request, so the start time is kept per thread.
+ */
 public class S3SftpEventListener implements SftpEventListener {
+    private static final String[] REQUEST_NAMES = new String[256];
+    private static final LongAdder BYTES_READ = S3Metrics.counter("sftp_bytes", "direction", "read");
+    private static final LongAdder BYTES_WRITTEN = S3Metrics.counter("sftp_bytes", "direction", "write");
+    private static final ThreadLocal<long[]> STARTED = ThreadLocal.withInitial(() -> new long[Timed.values().length]);
+
+    private enum Timed {
+        OPEN, CLOSE, READ, WRITE, READDIR, MKDIR, RENAME, REMOVE, SETSTAT;
+
+        final S3Metrics.Histogram latency = S3Metrics.sftpLatency(name());
+        final LongAdder errors = S3Metrics.counter("sftp_errors", "op", name());
+
+        void start() {
+            STARTED.get()[ordinal()] = System.nanoTime();
+        }
+
+        void stop(Throwable thrown) {
+            latency.recordSince(STARTED.get()[ordinal()]);
+            if (thrown != null) {
+                errors.increment();
+            }
+        }
+    }
+
+    @Override
+    public void received(ServerSession session, int type, int id) {
+        String operation = requestName(type);
+        S3Metrics.enterSftpOperation(operation);
+        S3Metrics.counter("sftp_requests", "op", operation).increment();
+    }
+
     @Override
     public void initialized(ServerSession session, int version) {
-        System.out.println("Client connected with SFTP version: " + version);
+        S3Trace.event("Client connected with SFTP version: {}", version);
     }
 
     @Override
     public void destroying(ServerSession session) {
-        System.out.println("Client disconnected");
+        S3Trace.event("Client disconnected");
     }
 
     @Override
-    public void written(ServerSession session, String remoteHandle, FileHandle localHandle, long offset, byte[] data, int dataOffset, int dataLen, Throwable thrown) {
+    public void opening(ServerSession session, String remoteHandle, Handle localHandle) {
+        if (!(localHandle instanceof DirectoryHandle)) {
+            Timed.OPEN.start();
+        }
+    }
+
+    @Override
+    public void open(ServerSession session, String remoteHandle, Handle localHandle) {
+        if (!(localHandle instanceof DirectoryHandle)) {
+            Timed.OPEN.stop(null);
+        }
+    }
+
+    @Override
+    public void openFailed(ServerSession session, String remotePath, Path localPath, boolean isDirectory, Throwable thrown) {
+        if (!isDirectory) {
+            Timed.OPEN.stop(thrown);
+        }
+    }
+
+    @Override
+    public void readingEntries(ServerSession session, String remoteHandle, DirectoryHandle localHandle) {
+        Timed.READDIR.start();
+    }
+
+    @Override
+    public void readEntries(ServerSession session, String remoteHandle, DirectoryHandle localHandle, Map<String, Path> entries) {
+        Timed.READDIR.stop(null);
+    }
+
+    @Override
+    public void reading(ServerSession session, String remoteHandle, FileHandle localHandle, long offset, byte[] data, int dataOffset, int dataLen) {
+        Timed.READ.start();
+    }
+
+    @Override
+    public void read(ServerSession session, String remoteHandle, FileHandle localHandle, long offset, byte[] data, int dataOffset, int dataLen, int readLen, Throwable thrown) {
+        Timed.READ.stop(thrown);
         if (thrown == null) {
-            System.out.println("File write operation - offset: " + offset + ", length: " + dataLen);
+            if (readLen > 0) {
+                BYTES_READ.add(readLen);
+            }
+            if (S3Trace.ENABLED) {
+                S3Trace.event("File read operation - offset: {}, length: {}", offset, dataLen);
+            }
         } else {
-            System.err.println("Write error: " + thrown.getMessage());
+            S3Trace.warn("Read error: {}", thrown.getMessage());
         }
     }
 
     @Override
-    public void read(ServerSession session, String remoteHandle, FileHandle localHandle, long offset, byte[] data, int dataOffset, int dataLen, int readLen, Throwable thrown) {
+    public void writing(ServerSession session, String remoteHandle, FileHandle localHandle, long offset, byte[] data, int dataOffset, int dataLen) {
+        Timed.WRITE.start();
+    }
+
+    @Override
+    public void written(ServerSession session, String remoteHandle, FileHandle localHandle, long offset, byte[] data, int dataOffset, int dataLen, Throwable thrown) {
+        Timed.WRITE.stop(thrown);
         if (thrown == null) {
-            System.out.println("File read operation - offset: " + offset + ", length: " + dataLen);
+            BYTES_WRITTEN.add(dataLen);
+            if (S3Trace.ENABLED) {
+                // Guarded so the primitives are not boxed on every packet
+                S3Trace.event("File write operation - offset: {}, length: {}", offset, dataLen);
+            }
         } else {
-            System.err.println("Read error: " + thrown.getMessage());
+            S3Trace.warn("Write error: {}", thrown.getMessage());
+        }
+    }
+
+    @Override
+    public void closing(ServerSession session, String remoteHandle, Handle localHandle) {
+        Timed.CLOSE.start();
+    }
+
+    @Override
+    public void closed(ServerSession session, String remoteHandle, Handle localHandle, Throwable thrown) {
+        Timed.CLOSE.stop(thrown);
+    }
+
+    @Override
+    public void creating(ServerSession session, Path path, Map<String, ?> attrs) {
+        Timed.MKDIR.start();
+    }
+
+    @Override
+    public void created(ServerSession session, Path path, Map<String, ?> attrs, Throwable thrown) {
+        Timed.MKDIR.stop(thrown);
+    }
+
+    @Override
+    public void moving(ServerSession session, Path srcPath, Path dstPath, Collection<CopyOption> opts) {
+        Timed.RENAME.start();
+    }
+
+    @Override
+    public void moved(ServerSession session, Path srcPath, Path dstPath, Collection<CopyOption> opts, Throwable thrown) {
+        Timed.RENAME.stop(thrown);
+    }
+
+    @Override
+    public void removing(ServerSession session, Path path, boolean isDirectory) {
+        Timed.REMOVE.start();
+    }
+
+    @Override
+    public void removed(ServerSession session, Path path, boolean isDirectory, Throwable thrown) {
+        Timed.REMOVE.stop(thrown);
+    }
+
+    @Override
+    public void modifyingAttributes(ServerSession session, Path path, Map<String, ?> attrs) {
+        Timed.SETSTAT.start();
+    }
+
+    @Override
+    public void modifiedAttributes(ServerSession session, Path path, Map<String, ?> attrs, Throwable thrown) {
+        Timed.SETSTAT.stop(thrown);
+    }
+
+    private static String requestName(int type) {
+        int index = type & 0xFF;
+        String name = REQUEST_NAMES[index];
+        if (name == null) {
+            name = SftpConstants.getCommandMessageName(type);
+            if (name.startsWith("SSH_FXP_")) {
+                name = name.substring("SSH_FXP_".length());
+            }
+            REQUEST_NAMES[index] = name;
         }
+        return name;
     }
 }
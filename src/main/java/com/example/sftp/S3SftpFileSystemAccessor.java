@@ -2,23 +2,27 @@ package com.example.sftp;
 
 import org.apache.sshd.common.util.ValidateUtils;
 import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.sftp.server.FileHandle;
 import org.apache.sshd.sftp.server.SftpFileSystemAccessor;
 import org.apache.sshd.sftp.server.SftpSubsystemProxy;
 
 import java.io.IOException;
-import java.nio.file.DirectoryStream;
+import java.nio.channels.Channel;
 import java.nio.file.InvalidPathException;
+import java.nio.file.OpenOption;
 import java.nio.file.Path;
-import java.util.Collections;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.Set;
 
+/**
+ * Maps client paths onto the S3 file system. Paths are resolved through the
+ * {@link S3SessionView} attached to the SSH session, so every session works from its
+ * own home directory.
+ */
 public class S3SftpFileSystemAccessor implements SftpFileSystemAccessor {
     private final S3FileSystem fileSystem;
-    private final AtomicReference<Path> currentDir;
 
     public S3SftpFileSystemAccessor(S3FileSystem fileSystem) {
         this.fileSystem = ValidateUtils.checkNotNull(fileSystem, "No filesystem provided");
-        this.currentDir = new AtomicReference<>(fileSystem.getPath("/home/admin"));
 
         // Ensure base directories exist
         try {
@@ -32,47 +36,39 @@ public class S3SftpFileSystemAccessor implements SftpFileSystemAccessor {
     @Override
     public Path resolveLocalFilePath(SftpSubsystemProxy subsystem, Path rootDir, String remotePath)
             throws IOException, InvalidPathException {
+        ServerSession session = subsystem.getServerSession();
+        S3SessionView view = session.computeAttributeIfAbsent(S3SessionView.KEY, key -> {
+            S3FileSystem shared = rootDir.getFileSystem() instanceof S3FileSystem
+                    ? (S3FileSystem) rootDir.getFileSystem() : fileSystem;
+            return new S3SessionView(shared.getUser() != null ? shared
+                    : shared.forUser(session.getUsername(), shared.getDefaultDirectory().toString()));
+        });
 
-        System.out.println("\n=== Resolving Path ===");
-        System.out.println("Remote path: " + remotePath);
-        System.out.println("Current directory: " + currentDir.get());
-
-        if (remotePath == null || remotePath.isEmpty()) {
-            System.out.println("Empty path, returning current directory");
-            return currentDir.get();
-        }
-
-        // Handle special cases
-        if (remotePath.equals(".")) {
-            System.out.println("Current directory requested");
-            return currentDir.get();
-        }
-        if (remotePath.equals("..")) {
-            Path parent = currentDir.get().getParent();
-            Path result = parent != null ? parent : fileSystem.getPath("/");
-            System.out.println("Parent directory requested: " + result);
-            return result;
-        }
+        Path resolvedPath = view.resolve(remotePath);
+        S3Trace.event("Resolved {} for {} to {}", remotePath, view, resolvedPath);
+        return resolvedPath;
+    }
 
-        // Convert path to absolute if it's relative
-        Path resolvedPath;
-        if (remotePath.startsWith("/")) {
-            resolvedPath = fileSystem.getPath(remotePath);
-            System.out.println("Absolute path resolved: " + resolvedPath);
-        } else {
-            resolvedPath = currentDir.get().resolve(remotePath);
-            System.out.println("Relative path resolved: " + resolvedPath);
+    /**
+     * With {@code s3sftp.upload.resumable}, files left open by a client that disconnected
+     * keep their multipart upload for a later resume instead of publishing whatever had
+     * arrived. Otherwise they are closed as usual.
+     */
+    @Override
+    public void closeFile(SftpSubsystemProxy subsystem, FileHandle fileHandle, Path file, String handle,
+                          Channel channel, Set<? extends OpenOption> options) throws IOException {
+        if (S3UploadJournal.ENABLED
+                && subsystem instanceof CustomSftpSubsystemFactory.CustomSftpSubsystem
+                && ((CustomSftpSubsystemFactory.CustomSftpSubsystem) subsystem).isClosingAbandonedHandles()
+                && channel instanceof S3WriteAssembler.Resumable) {
+            S3Trace.event("Suspending upload of {} abandoned by {}", file, subsystem.getServerSession());
+            ((S3WriteAssembler.Resumable) channel).suspendOnClose();
         }
-
-        // Normalize the path
-        resolvedPath = resolvedPath.normalize();
-        System.out.println("Normalized path: " + resolvedPath);
-
-        return resolvedPath;
+        SftpFileSystemAccessor.super.closeFile(subsystem, fileHandle, file, handle, channel, options);
     }
 
     @Override
     public String toString() {
-        return "S3SftpFileSystemAccessor[currentDir=" + currentDir.get() + "]";
+        return "S3SftpFileSystemAccessor[bucket=" + fileSystem.getBucketName() + "]";
     }
-}
\ No newline at end of file
+}
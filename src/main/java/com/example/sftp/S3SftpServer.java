@@ -21,6 +21,14 @@ public class S3SftpServer {
 
 
     public S3SftpServer(int port, String bucketName) throws IOException {
+        this(port, bucketName, null);
+    }
+
+    /**
+     * Creates a server over the given backend; a null backend means a real S3 client
+     * configured from the {@code s3sftp.*} properties.
+     */
+    public S3SftpServer(int port, String bucketName, S3Backend backend) throws IOException {
         this.bucketName = bucketName;
         this.sshd = SshServer.setUpDefaultServer();
         this.sshd.setPort(port);
@@ -28,14 +36,14 @@ public class S3SftpServer {
 
         CustomSftpSubsystemFactory sftpFactory = new CustomSftpSubsystemFactory();
 
-        System.out.println("Initializing SFTP Server...");
+        S3Trace.event("Initializing SFTP Server...");
 
         // Set specific username and password
         this.sshd.setPasswordAuthenticator((username, password, session) ->
                 "admin".equals(username) && "password@123".equals(password));
 
         // Configure SFTP subsystem with S3 integration
-        fsFactory = new S3FileSystemFactory(bucketName);
+        fsFactory = new S3FileSystemFactory(bucketName, backend);
 
         this.sshd.setFileSystemFactory(fsFactory);
         //SftpSubsystemFactory sftpFactory = new SftpSubsystemFactory();
@@ -53,32 +61,42 @@ public class S3SftpServer {
 
 
     public void start() throws Exception {
+        S3Metrics.expose();
         sshd.start();
         System.out.println("SFTP Server started on port " + sshd.getPort() + " backed by S3 bucket: " + bucketName);
     }
 
+    /**
+     * The port the server listens on; when constructed with port 0 this is the
+     * ephemeral port chosen at {@link #start()}.
+     */
+    public int getPort() {
+        return sshd.getPort();
+    }
+
     public void stop() throws Exception {
         sshd.stop();
     }
 
     public void shutdown() {
-        System.out.println("Shutting down S3SftpServer completely...");
+        S3Trace.event("Shutting down S3SftpServer completely...");
         try {
             stop();
         } catch (Exception e) {
-            System.err.println("Error stopping server: " + e.getMessage());
+            S3Trace.warn("Error stopping server: {}", e.getMessage());
         } finally {
+            S3Metrics.shutdown();
             this.fsFactory.shutdown();
         }
     }
 
     public static void main(String[] args) throws Exception {
-        String bucketName = "customsftpfolderpath";
-        S3SftpServer server = new S3SftpServer(2222, bucketName);
-        server.start();
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 2222;
+        String bucketName = args.length > 1 ? args[1] : "customsftpfolderpath";
+        S3SftpServer server = new S3SftpServer(port, bucketName);
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            System.out.println("Shutdown hook triggered");
+            S3Trace.event("Shutdown hook triggered");
             server.shutdown();
         }));
 
@@ -0,0 +1,309 @@
+package com.example.sftp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Local staging area for data on its way to S3, addressed by file offset. Data is held
+ * in fixed-size blocks: while the buffer holds less than {@code s3sftp.staging.memoryThreshold}
+ * bytes in memory, blocks are pooled direct buffers; beyond that they are regions of a
+ * memory-mapped temp file in {@code s3sftp.staging.dir}, so large uploads live in the page
+ * cache rather than the process's memory. Regions of released blocks are reused, so the
+ * spill file only grows to the most that was staged at once, not to the size of the
+ * upload. Uploads read blocks in place through
+ * {@link #slice}, and because staged data stays until it is released, a failed request
+ * can be sent again without the client resending anything.
+ * <p>
+ * Bytes never written read as zeros. Blocks are released explicitly once uploaded, or all
+ * at once by {@link #close}, which also deletes the spill file.
+ */
+final class S3StagingBuffer implements Closeable {
+    static final long MEMORY_THRESHOLD = Long.getLong("s3sftp.staging.memoryThreshold", 16L * 1024 * 1024);
+    private static final Path SPILL_DIR = Path.of(System.getProperty("s3sftp.staging.dir",
+            System.getProperty("java.io.tmpdir")));
+    private static final LongAdder MEMORY_BLOCKS = S3Metrics.counter("staging_blocks", "tier", "memory");
+    private static final LongAdder DISK_BLOCKS = S3Metrics.counter("staging_blocks", "tier", "disk");
+
+    private final String owner;
+    private final int blockSize;
+    private final long memoryThreshold;
+    private final S3BufferPool.Tracker buffers;
+    // Not a monitor: spilling creates and maps the temp file
+    private final ReentrantLock lock = new ReentrantLock();
+    private final BitSet mappedBlocks = new BitSet();
+    // Mapped regions of released blocks, ready for reuse
+    private final ArrayDeque<ByteBuffer> freeRegions = new ArrayDeque<>();
+    private long spillSize;
+    private ByteBuffer[] blocks = new ByteBuffer[4];
+    private long memoryBytes;
+    private long size;
+    private Path spillFile;
+    private FileChannel spill;
+
+    S3StagingBuffer(String owner, int blockSize) {
+        this(owner, blockSize, MEMORY_THRESHOLD);
+    }
+
+    S3StagingBuffer(String owner, int blockSize, long memoryThreshold) {
+        this.owner = owner;
+        this.blockSize = blockSize;
+        this.memoryThreshold = memoryThreshold;
+        this.buffers = S3BufferPool.tracker("staging for " + owner);
+    }
+
+    int blockSize() {
+        return blockSize;
+    }
+
+    /**
+     * One past the highest byte written, less any truncation.
+     */
+    long size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isSpilled() {
+        lock.lock();
+        try {
+            return spill != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies the remaining bytes of {@code src} to {@code position}, growing the buffer
+     * as needed, and returns the number of bytes written.
+     */
+    int write(long position, ByteBuffer src) throws IOException {
+        lock.lock();
+        try {
+            int written = src.remaining();
+            if (position > size) {
+                // Pooled and reused blocks hold stale bytes, so fill the gap with zeros
+                block((int) (position / blockSize), true);
+                zero(size, position);
+            }
+            long offset = position;
+            while (src.hasRemaining()) {
+                ByteBuffer block = block((int) (offset / blockSize), true);
+                int start = (int) (offset % blockSize);
+                int count = Math.min(src.remaining(), blockSize - start);
+                ByteBuffer chunk = src.duplicate();
+                chunk.limit(chunk.position() + count);
+                block.put(start, chunk, chunk.position(), count);
+                src.position(src.position() + count);
+                offset += count;
+            }
+            size = Math.max(size, offset);
+            return written;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies bytes from {@code position} into {@code dst}, returning the number copied,
+     * or -1 at or beyond the end of the staged data.
+     */
+    int read(long position, ByteBuffer dst) {
+        lock.lock();
+        try {
+            if (position >= size) {
+                return -1;
+            }
+            int total = (int) Math.min(dst.remaining(), size - position);
+            long offset = position;
+            for (int remaining = total; remaining > 0; ) {
+                int index = (int) (offset / blockSize);
+                int start = (int) (offset % blockSize);
+                int count = Math.min(remaining, blockSize - start);
+                ByteBuffer block = block(index, false);
+                if (block != null) {
+                    dst.put(dst.position(), block, start, count);
+                } else {
+                    dst.put(dst.position(), new byte[count]);
+                }
+                dst.position(dst.position() + count);
+                offset += count;
+                remaining -= count;
+            }
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a read-only view of {@code length} bytes at {@code position}. Ranges inside
+     * one staged block are served in place; the view stays valid until that block is
+     * released. Other ranges are copied.
+     */
+    ByteBuffer slice(long position, int length) {
+        lock.lock();
+        try {
+            int index = (int) (position / blockSize);
+            int start = (int) (position % blockSize);
+            ByteBuffer block = start + length <= blockSize ? block(index, false) : null;
+            if (block != null) {
+                return block.slice(start, length).asReadOnlyBuffer();
+            }
+            ByteBuffer copy = ByteBuffer.allocate(length);
+            read(position, copy);
+            return copy.clear().asReadOnlyBuffer();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards everything from {@code newSize} on.
+     */
+    void truncate(long newSize) {
+        lock.lock();
+        try {
+            if (newSize >= size) {
+                return;
+            }
+            int firstDropped = (int) ((newSize + blockSize - 1) / blockSize);
+            for (int i = firstDropped; i < blocks.length; i++) {
+                releaseBlock(i);
+            }
+            size = newSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases the blocks that lie entirely inside {@code [from, to)}; their bytes read as
+     * zeros afterwards. Used once those bytes have been uploaded.
+     */
+    void release(long from, long to) {
+        lock.lock();
+        try {
+            int end = (int) Math.min(blocks.length, to / blockSize);
+            for (int i = (int) ((from + blockSize - 1) / blockSize); i < end; i++) {
+                releaseBlock(i);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            for (int i = 0; i < blocks.length; i++) {
+                releaseBlock(i);
+            }
+            freeRegions.clear();
+            buffers.close();
+            if (spill != null) {
+                try {
+                    spill.close();
+                } finally {
+                    Files.deleteIfExists(spillFile);
+                    spill = null;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void zero(long from, long to) {
+        for (long offset = from; offset < to; ) {
+            int index = (int) (offset / blockSize);
+            int start = (int) (offset % blockSize);
+            int count = (int) Math.min(to - offset, blockSize - start);
+            ByteBuffer block = block(index, false);
+            if (block != null) {
+                block.put(start, new byte[count]);
+            }
+            offset += count;
+        }
+    }
+
+    private ByteBuffer block(int index, boolean create) {
+        ByteBuffer block = index < blocks.length ? blocks[index] : null;
+        if (block != null || !create) {
+            return block;
+        }
+        if (index >= blocks.length) {
+            blocks = Arrays.copyOf(blocks, Math.max(index + 1, blocks.length * 2));
+        }
+        try {
+            block = memoryBytes + blockSize <= memoryThreshold ? memoryBlock() : mappedBlock(index);
+        } catch (IOException e) {
+            // Fall back to memory rather than failing the write
+            S3Trace.warn("Failed to spill {} to disk, staging in memory: {}", owner, e.getMessage());
+            block = memoryBlock();
+        }
+        if ((long) index * blockSize < size) {
+            // Recreating a released block inside the staged data, which must read as zeros
+            block.put(0, new byte[blockSize]);
+        }
+        blocks[index] = block;
+        return block;
+    }
+
+    private ByteBuffer memoryBlock() {
+        ByteBuffer block = buffers.acquire(blockSize);
+        memoryBytes += blockSize;
+        MEMORY_BLOCKS.increment();
+        return block;
+    }
+
+    private ByteBuffer mappedBlock(int index) throws IOException {
+        ByteBuffer block = freeRegions.poll();
+        if (block != null) {
+            mappedBlocks.set(index);
+            return block;
+        }
+        if (spill == null) {
+            Files.createDirectories(SPILL_DIR);
+            spillFile = Files.createTempFile(SPILL_DIR, "s3sftp-", ".staging");
+            spill = FileChannel.open(spillFile, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+            S3Trace.event("Spilling {} to {}", owner, spillFile);
+        }
+        block = spill.map(FileChannel.MapMode.READ_WRITE, spillSize, blockSize);
+        spillSize += blockSize;
+        mappedBlocks.set(index);
+        DISK_BLOCKS.increment();
+        return block;
+    }
+
+    private void releaseBlock(int index) {
+        ByteBuffer block = blocks[index];
+        if (block == null) {
+            return;
+        }
+        blocks[index] = null;
+        if (mappedBlocks.get(index)) {
+            // Mapped regions are unmapped when collected; the file goes on close
+            mappedBlocks.clear(index);
+            freeRegions.push(block);
+        } else {
+            buffers.release(block);
+            memoryBytes -= blockSize;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.example.sftp;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Diagnostic tracing that costs nothing unless enabled with {@code -Ds3sftp.trace=true}.
+ * The switch is a static final constant, so once {@code event} is inlined the JIT drops
+ * the call together with its arguments; messages are templates with {@code {}}
+ * placeholders and are never formatted on the recording path.
+ *
+ * <p>When enabled, each platform thread writes into its own ring of the last
+ * {@code s3sftp.trace.ringSize} events (default 1024) without locking. Virtual threads
+ * are too many and too short-lived for a ring each, so they share one ring under a lock.
+ * {@code s3sftp.trace.sampleRate} keeps one event in N per ring. The rings are
+ * formatted only when dumped, either through {@link #dump(PrintStream)} or by creating
+ * the file named by {@code s3sftp.trace.trigger} (default {@code s3sftp-trace.dump}),
+ * which is replaced by a {@code .out} file holding the dump. {@code s3sftp.trace.echo}
+ * also prints each event as it is recorded. The ring of a finished thread is kept until
+ * the next dump or until another thread starts recording, whichever comes first.
+ *
+ * <p>Problems an operator must see go through {@link #warn}, which prints whether or not
+ * tracing is enabled.
+ */
+public final class S3Trace {
+    public static final boolean ENABLED = Boolean.getBoolean("s3sftp.trace");
+
+    private static final int SAMPLE_RATE = Math.max(1, Integer.getInteger("s3sftp.trace.sampleRate", 1));
+    private static final int RING_SIZE = Integer.highestOneBit(Math.max(16, Integer.getInteger("s3sftp.trace.ringSize", 1024)));
+    private static final boolean ECHO = Boolean.getBoolean("s3sftp.trace.echo");
+    private static final String TRIGGER = System.getProperty("s3sftp.trace.trigger", "s3sftp-trace.dump");
+    private static final long ORIGIN_NANOS = System.nanoTime();
+    private static final long ORIGIN_MILLIS = System.currentTimeMillis();
+    private static final int VARARGS = -1;
+
+    private static final Queue<Ring> RINGS = new ConcurrentLinkedQueue<>();
+    private static final ThreadLocal<Ring> LOCAL = ThreadLocal.withInitial(() -> {
+        // Threads come and go in the pools, so drop the rings of finished ones as new ones arrive
+        RINGS.removeIf(Ring::isFinished);
+        Ring ring = new Ring(Thread.currentThread());
+        RINGS.add(ring);
+        return ring;
+    });
+
+    static {
+        if (ENABLED) {
+            startTriggerWatcher();
+        }
+    }
+
+    private S3Trace() {
+    }
+
+    public static void event(String message) {
+        if (ENABLED) {
+            record(message, 0, null, null, null);
+        }
+    }
+
+    public static void event(String template, Object a) {
+        if (ENABLED) {
+            record(template, 1, a, null, null);
+        }
+    }
+
+    public static void event(String template, Object a, Object b) {
+        if (ENABLED) {
+            record(template, 2, a, b, null);
+        }
+    }
+
+    public static void event(String template, Object a, Object b, Object c) {
+        if (ENABLED) {
+            record(template, 3, a, b, c);
+        }
+    }
+
+    public static void event(String template, Object... args) {
+        if (ENABLED) {
+            record(template, VARARGS, args, null, null);
+        }
+    }
+
+    /**
+     * Reports something an operator should see, such as a failure that was worked around.
+     * Unlike {@link #event} it is always written, to standard error, and it is also
+     * recorded when tracing is enabled, so a dump shows it among the surrounding events.
+     */
+    public static void warn(String template, Object... args) {
+        System.err.println(format(template, VARARGS, args, null, null));
+        if (ENABLED) {
+            record(template, VARARGS, args, null, null);
+        }
+    }
+
+    /**
+     * Describes the caller of the method that calls this, as {@code Class.method:line}.
+     * Walks the stack, so call it only under an {@link #ENABLED} check.
+     */
+    static String caller() {
+        return StackWalker.getInstance()
+                .walk(frames -> frames.skip(2).findFirst())
+                .map(frame -> frame.getClassName() + "." + frame.getMethodName() + ":" + frame.getLineNumber())
+                .orElse("unknown");
+    }
+
+    /**
+     * Writes the buffered events of all threads, oldest first. Rings are read while
+     * their threads keep writing, so an event being recorded during the dump may
+     * show up torn or be skipped.
+     */
+    public static void dump(PrintStream out) {
+        List<Event> events = new ArrayList<>();
+        for (Ring ring : RINGS) {
+            ring.collect(events);
+            if (ring.isFinished()) {
+                // The thread is gone and its events are in this dump
+                RINGS.remove(ring);
+            }
+        }
+        events.sort(Comparator.comparingLong(event -> event.nanos));
+        out.println("=== S3 trace: " + events.size() + " event(s) from " + RINGS.size() + " thread(s) ===");
+        for (Event event : events) {
+            out.println(Instant.ofEpochMilli(ORIGIN_MILLIS + (event.nanos - ORIGIN_NANOS) / 1_000_000)
+                    + " [" + event.threadName + "] " + event.message);
+        }
+        out.flush();
+    }
+
+    private static void record(String template, int argc, Object a, Object b, Object c) {
+        Thread thread = Thread.currentThread();
+        if (thread.isVirtual()) {
+            VirtualRing.LOCK.lock();
+            try {
+                write(VirtualRing.RING, thread.getName().isEmpty() ? "virtual-" + thread.threadId() : thread.getName(),
+                        template, argc, a, b, c);
+            } finally {
+                VirtualRing.LOCK.unlock();
+            }
+        } else {
+            write(LOCAL.get(), null, template, argc, a, b, c);
+        }
+    }
+
+    private static void write(Ring ring, String threadName, String template, int argc, Object a, Object b, Object c) {
+        if (SAMPLE_RATE > 1 && ++ring.calls % SAMPLE_RATE != 0) {
+            return;
+        }
+        long head = ring.head;
+        int slot = (int) (head & (RING_SIZE - 1));
+        if (ring.threadNames != null) {
+            ring.threadNames[slot] = threadName;
+        }
+        ring.nanos[slot] = System.nanoTime();
+        ring.templates[slot] = template;
+        ring.argc[slot] = argc;
+        ring.args[slot * 3] = a;
+        ring.args[slot * 3 + 1] = b;
+        ring.args[slot * 3 + 2] = c;
+        // Volatile write publishes the slot to dumping threads
+        ring.head = head + 1;
+
+        if (ECHO) {
+            System.out.println(format(template, argc, a, b, c));
+        }
+    }
+
+    private static String format(String template, int argc, Object a, Object b, Object c) {
+        Object[] args = argc == VARARGS ? (Object[]) a : new Object[] {a, b, c};
+        int count = argc == VARARGS ? args.length : argc;
+        StringBuilder out = new StringBuilder(template.length() + 16 * count);
+        int from = 0;
+        for (int i = 0; i < count; i++) {
+            int placeholder = template.indexOf("{}", from);
+            if (placeholder < 0) {
+                break;
+            }
+            out.append(template, from, placeholder).append(args[i]);
+            from = placeholder + 2;
+        }
+        return out.append(template, from, template.length()).toString();
+    }
+
+    private static void startTriggerWatcher() {
+        Path trigger = Path.of(TRIGGER);
+        Thread watcher = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(1000);
+                    if (Files.deleteIfExists(trigger)) {
+                        Path target = trigger.resolveSibling(trigger.getFileName() + ".out");
+                        try (PrintStream out = new PrintStream(Files.newOutputStream(target), false, "UTF-8")) {
+                            dump(out);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException | RuntimeException e) {
+                    warn("Failed to dump trace: {}", e.getMessage());
+                }
+            }
+        }, "s3-trace-trigger");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private static final class Event {
+        final long nanos;
+        final String threadName;
+        final String message;
+
+        Event(long nanos, String threadName, String message) {
+            this.nanos = nanos;
+            this.threadName = threadName;
+            this.message = message;
+        }
+    }
+
+    /**
+     * The ring shared by all virtual threads, created on first use.
+     */
+    private static final class VirtualRing {
+        static final ReentrantLock LOCK = new ReentrantLock();
+        static final Ring RING = new Ring();
+
+        static {
+            RINGS.add(RING);
+        }
+    }
+
+    /**
+     * Single-writer ring; only the owning thread advances {@code head}, or for the
+     * virtual thread ring, whoever holds its lock.
+     */
+    private static final class Ring {
+        // Null for the virtual thread ring, which names the thread of each event instead
+        final WeakReference<Thread> thread;
+        final String threadName;
+        final String[] threadNames;
+        final long[] nanos = new long[RING_SIZE];
+        final String[] templates = new String[RING_SIZE];
+        final int[] argc = new int[RING_SIZE];
+        final Object[] args = new Object[RING_SIZE * 3];
+        long calls;
+        volatile long head;
+
+        Ring(Thread owner) {
+            this.thread = new WeakReference<>(owner);
+            this.threadName = owner.getName();
+            this.threadNames = null;
+        }
+
+        Ring() {
+            this.thread = null;
+            this.threadName = "virtual";
+            this.threadNames = new String[RING_SIZE];
+        }
+
+        boolean isFinished() {
+            if (thread == null) {
+                return false;
+            }
+            Thread owner = thread.get();
+            return owner == null || !owner.isAlive();
+        }
+
+        void collect(List<Event> events) {
+            long end = head;
+            for (long i = Math.max(0, end - RING_SIZE); i < end; i++) {
+                int slot = (int) (i & (RING_SIZE - 1));
+                String template = templates[slot];
+                if (template != null) {
+                    String name = threadNames != null ? threadNames[slot] : threadName;
+                    events.add(new Event(nanos[slot], name, format(template, argc[slot],
+                            args[slot * 3], args[slot * 3 + 1], args[slot * 3 + 2])));
+                }
+            }
+        }
+    }
+}
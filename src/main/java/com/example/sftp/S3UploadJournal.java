@@ -0,0 +1,402 @@
+package com.example.sftp;
+
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Local record of multipart uploads that may be resumed: for each target key, the upload
+ * ID and the size and ETag of every part S3 has acknowledged. An entry is written when a
+ * multipart upload starts, so it survives both a client that drops and a server restart,
+ * and is removed once the upload is completed or aborted. Acknowledged parts are written
+ * in batches, at most {@code s3sftp.upload.journalFlushMillis} after they complete, by a
+ * background thread; a part acknowledged but not yet written is simply uploaded again.
+ * An upload whose client went away is suspended rather than completed, as is every entry
+ * found on disk at startup. A later upload to the same key by the same user that does
+ * not truncate it picks up a suspended entry and continues after the last durable part.
+ * That user also sees the durable size when stat-ing the key, which is where clients
+ * such as {@code reput -a} resume from. Nobody else sees a suspended upload: for them,
+ * until it is resumed, the key is whatever S3 holds.
+ * <p>
+ * Entries are small properties files in {@code s3sftp.upload.journalDir}, one per key.
+ * Journaling is off unless {@code s3sftp.upload.resumable=true}.
+ */
+final class S3UploadJournal {
+    static final boolean ENABLED = Boolean.getBoolean("s3sftp.upload.resumable");
+    private static final long FLUSH_MILLIS = Long.getLong("s3sftp.upload.journalFlushMillis", 1000);
+    private static final Path DIR = Path.of(System.getProperty("s3sftp.upload.journalDir",
+            Path.of(System.getProperty("java.io.tmpdir"), "s3sftp-uploads").toString()));
+
+    private static final ReentrantLock LOAD_LOCK = new ReentrantLock();
+    // Every entry on disk, loaded on first use, keyed by bucket and key
+    private static volatile Map<String, S3UploadJournal> entries;
+
+    private final String bucket;
+    private final String key;
+    private final String uploadId;
+    // The user who started the upload, or null when it was started outside a session
+    private final String owner;
+    private final Path file;
+    // Part number to ETag and size of every acknowledged part
+    private final TreeMap<Integer, String> eTags = new TreeMap<>();
+    private final TreeMap<Integer, Long> sizes = new TreeMap<>();
+    // Guards the state above; never held across file I/O
+    private final ReentrantLock lock = new ReentrantLock();
+    // Orders writes of the file, so an older state never replaces a newer one
+    private final ReentrantLock fileLock = new ReentrantLock();
+    private boolean suspended;
+    // Parts acknowledged since the last write, with a flush scheduled to write them
+    private boolean flushPending;
+    private volatile boolean deleted;
+    private long version;
+    private long savedVersion;
+
+    private S3UploadJournal(String bucket, String key, String uploadId, String owner, Path file) {
+        this.bucket = bucket;
+        this.key = key;
+        this.uploadId = uploadId;
+        this.owner = owner;
+        this.file = file;
+    }
+
+    String uploadId() {
+        return uploadId;
+    }
+
+    /**
+     * Returns the suspended upload for the key, or null if there is none.
+     */
+    static S3UploadJournal suspended(String bucket, String key) {
+        S3UploadJournal journal = ENABLED ? entries().get(bucket + "/" + key) : null;
+        return journal != null && journal.isSuspended() ? journal : null;
+    }
+
+    /**
+     * Returns the suspended upload for the key if {@code owner} started it, or null.
+     */
+    static S3UploadJournal suspended(String bucket, String key, String owner) {
+        S3UploadJournal journal = suspended(bucket, key);
+        return journal != null && Objects.equals(owner, journal.owner) ? journal : null;
+    }
+
+    /**
+     * Records a newly started upload, replacing a suspended entry for the key. Returns
+     * null, leaving the upload unjournaled, while another upload to the key is active.
+     */
+    static S3UploadJournal create(String bucket, String key, String uploadId, String owner) {
+        if (!ENABLED) {
+            return null;
+        }
+        S3UploadJournal journal = new S3UploadJournal(bucket, key, uploadId, owner, fileFor(bucket, key));
+        S3UploadJournal previous = entries().compute(bucket + "/" + key,
+                (name, existing) -> existing == null || existing.isSuspended() ? journal : existing);
+        if (previous != journal) {
+            return null;
+        }
+        journal.save();
+        return journal;
+    }
+
+    /**
+     * Aborts the suspended upload for the key, if any, and removes its entry. Used when
+     * the key is overwritten or deleted by other means.
+     */
+    static void discard(S3Backend backend, String bucket, String key) {
+        S3UploadJournal journal = suspended(bucket, key);
+        if (journal == null) {
+            return;
+        }
+        journal.delete();
+        try {
+            S3Backend.await(backend.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .uploadId(journal.uploadId)
+                    .build()));
+        } catch (S3Exception e) {
+            // Gone already, or left for the bucket's lifecycle rules
+            S3Trace.event("Failed to abort stale upload {} for {}: {}", journal.uploadId, key, e.getMessage());
+        }
+    }
+
+    /**
+     * The number of leading parts that are all acknowledged and large enough to be
+     * followed by another part; the upload can resume right after them.
+     */
+    int durableParts() {
+        lock.lock();
+        try {
+            int count = 0;
+            while (sizes.containsKey(count + 1) && sizes.get(count + 1) >= S3MultipartUpload.MIN_PART_SIZE) {
+                count++;
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long durableSize() {
+        lock.lock();
+        try {
+            long size = 0;
+            for (int number = 1; number <= durableParts(); number++) {
+                size += sizes.get(number);
+            }
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The key as its owner should see it while suspended: a file of the durable size, last
+     * modified when the entry was last written.
+     */
+    S3FileAttributes attributes() {
+        long size = durableSize();
+        Instant modified;
+        try {
+            modified = Files.getLastModifiedTime(file).toInstant();
+        } catch (IOException e) {
+            modified = Instant.now();
+        }
+        return new S3FileAttributes(size, modified, key, false);
+    }
+
+    boolean isSuspended() {
+        lock.lock();
+        try {
+            return suspended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks the upload as abandoned by its client, keeping it for a later resume.
+     */
+    void suspend() {
+        lock.lock();
+        try {
+            suspended = true;
+        } finally {
+            lock.unlock();
+        }
+        save();
+    }
+
+    /**
+     * Takes over a suspended upload, returning false if someone else got to it first.
+     */
+    boolean claim() {
+        lock.lock();
+        try {
+            if (!suspended || deleted) {
+                return false;
+            }
+            suspended = false;
+        } finally {
+            lock.unlock();
+        }
+        save();
+        return true;
+    }
+
+    Map<Integer, String> parts() {
+        lock.lock();
+        try {
+            return new TreeMap<>(eTags);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void partCompleted(int partNumber, String eTag, long size) {
+        lock.lock();
+        try {
+            eTags.put(partNumber, eTag);
+            sizes.put(partNumber, size);
+            if (flushPending) {
+                return;
+            }
+            flushPending = true;
+        } finally {
+            lock.unlock();
+        }
+        // Called as each part completes; batch the writes on another thread
+        Flusher.EXECUTOR.schedule(this::flush, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Keeps only the parts S3 still has, as reported by a listing.
+     */
+    void retain(Map<Integer, String> listed) {
+        lock.lock();
+        try {
+            eTags.keySet().removeIf(number -> !eTags.get(number).equals(listed.get(number)));
+            sizes.keySet().retainAll(eTags.keySet());
+        } finally {
+            lock.unlock();
+        }
+        save();
+    }
+
+    void delete() {
+        deleted = true;
+        entries().remove(bucket + "/" + key, this);
+        fileLock.lock();
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            S3Trace.warn("Failed to delete upload journal {}: {}", file, e.getMessage());
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    private void flush() {
+        boolean pending;
+        lock.lock();
+        try {
+            pending = flushPending;
+        } finally {
+            lock.unlock();
+        }
+        if (pending) {
+            save();
+        }
+    }
+
+    /**
+     * Writes the current state to the file. The state is copied under the lock and
+     * written outside it, and a write that finds a newer state already on disk is skipped.
+     */
+    private void save() {
+        Properties properties = new Properties();
+        long snapshot;
+        lock.lock();
+        try {
+            properties.setProperty("bucket", bucket);
+            properties.setProperty("key", key);
+            properties.setProperty("uploadId", uploadId);
+            if (owner != null) {
+                properties.setProperty("owner", owner);
+            }
+            properties.setProperty("suspended", Boolean.toString(suspended));
+            eTags.forEach((number, eTag) -> properties.setProperty("part." + number, sizes.get(number) + ":" + eTag));
+            snapshot = ++version;
+            flushPending = false;
+        } finally {
+            lock.unlock();
+        }
+        fileLock.lock();
+        try {
+            if (deleted || snapshot <= savedVersion) {
+                return;
+            }
+            savedVersion = snapshot;
+            Files.createDirectories(DIR);
+            Path temp = Files.createTempFile(DIR, "journal-", ".tmp");
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                properties.store(out, null);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // The upload itself is unaffected; it just cannot be resumed from this point
+            S3Trace.warn("Failed to write upload journal for {}: {}", key, e.getMessage());
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    /**
+     * Writes batched part completions; created on first use.
+     */
+    private static final class Flusher {
+        static final ScheduledExecutorService EXECUTOR = S3Executors.newScheduler("s3-upload-journal");
+    }
+
+    private static Map<String, S3UploadJournal> entries() {
+        Map<String, S3UploadJournal> loaded = entries;
+        if (loaded == null) {
+            LOAD_LOCK.lock();
+            try {
+                loaded = entries;
+                if (loaded == null) {
+                    loaded = load();
+                    entries = loaded;
+                }
+            } finally {
+                LOAD_LOCK.unlock();
+            }
+        }
+        return loaded;
+    }
+
+    private static Map<String, S3UploadJournal> load() {
+        Map<String, S3UploadJournal> loaded = new ConcurrentHashMap<>();
+        if (!Files.isDirectory(DIR)) {
+            return loaded;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(DIR, "*.journal")) {
+            for (Path file : files) {
+                Properties properties = new Properties();
+                try (InputStream in = Files.newInputStream(file)) {
+                    properties.load(in);
+                    S3UploadJournal journal = new S3UploadJournal(properties.getProperty("bucket"),
+                            properties.getProperty("key"), properties.getProperty("uploadId"),
+                            properties.getProperty("owner"), file);
+                    // Whoever was uploading is gone after a restart
+                    journal.suspended = true;
+                    for (String name : properties.stringPropertyNames()) {
+                        if (name.startsWith("part.")) {
+                            String value = properties.getProperty(name);
+                            int separator = value.indexOf(':');
+                            int number = Integer.parseInt(name.substring("part.".length()));
+                            journal.sizes.put(number, Long.parseLong(value.substring(0, separator)));
+                            journal.eTags.put(number, value.substring(separator + 1));
+                        }
+                    }
+                    loaded.put(journal.bucket + "/" + journal.key, journal);
+                } catch (IOException | RuntimeException e) {
+                    S3Trace.warn("Ignoring unreadable upload journal {}: {}", file, e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            S3Trace.warn("Failed to read upload journals in {}: {}", DIR, e.getMessage());
+        }
+        S3Trace.event("Loaded {} resumable uploads from {}", loaded.size(), DIR);
+        return loaded;
+    }
+
+    private static Path fileFor(String bucket, String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest((bucket + "/" + key).getBytes(StandardCharsets.UTF_8));
+            return DIR.resolve(HexFormat.of().formatHex(digest) + ".journal");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,446 @@
+package com.example.sftp;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Assembles an upload from writes at arbitrary offsets, as sent by SFTP clients that keep
+ * many WRITE requests in flight. Written ranges are tracked as disjoint intervals above
+ * the upload frontier; whenever the range from the frontier covers a whole part, that
+ * part is uploaded straight from the {@link S3StagingBuffer} and its blocks are released,
+ * so only data that has not been uploaded yet is held. Parts are therefore uploaded in
+ * order while later writes keep arriving out of order. Every part starts on a staging
+ * block, so it is sent from that block in place rather than copied.
+ * <p>
+ * Bytes behind the frontier have been uploaded and can no longer change; writing or
+ * truncating there fails. Holes left when the upload finishes read as zeros, like a
+ * sparse file. Files that never fill a part go up as a single PUT.
+ * <p>
+ * An assembler can {@link #resume} a suspended upload of its key, taking the durable
+ * parts as already written, and can be told to {@link #suspendOnClose suspend} its own
+ * upload rather than complete it when the client went away mid-transfer. Uploads are
+ * journaled under the user that started them, and only that user can resume them. For appending,
+ * it can instead start from the key's current content; see {@link #append}.
+ */
+final class S3WriteAssembler implements Closeable {
+    private static final int PART_SIZE = S3MultipartUpload.PART_SIZE;
+
+    private final S3Backend backend;
+    private final String bucket;
+    private final String key;
+    // The user uploading, or null outside a session
+    private final String owner;
+    private final S3StagingBuffer staging;
+    // Not a monitor: emitting a part can wait for an upload slot
+    private final ReentrantLock lock = new ReentrantLock();
+    // Written ranges at or above the frontier, start to end, merged and disjoint
+    private final TreeMap<Long, Long> covered = new TreeMap<>();
+    private long frontier;
+    // Upload offset of staging offset 0; moved on by server-side copies, so that the
+    // frontier stays on a staging block boundary
+    private long base;
+    private long size;
+    private int partNumber;
+    private S3MultipartUpload upload;
+    // Set by resume until the client continues at the durable end or starts over
+    private boolean resumed;
+    private boolean suspendOnClose;
+    // Set by append until something is written or truncated
+    private boolean unchanged;
+
+    S3WriteAssembler(S3Backend backend, String bucket, String key) {
+        this(backend, bucket, key, null);
+    }
+
+    S3WriteAssembler(S3Backend backend, String bucket, String key, String owner) {
+        this.backend = backend;
+        this.bucket = bucket;
+        this.key = key;
+        this.owner = owner;
+        this.staging = new S3StagingBuffer("upload of " + key, PART_SIZE);
+    }
+
+    /**
+     * Channels whose upload is abandoned, rather than finished, when the client that
+     * opened them disconnects.
+     */
+    interface Resumable {
+        /**
+         * Makes the next close suspend a multipart upload instead of completing it.
+         */
+        void suspendOnClose();
+    }
+
+    /**
+     * Picks up the owner's suspended upload of the key, if there is one, so that the size
+     * is the durably uploaded length and writing continues from there. The first change
+     * must then be at that length, or at 0 to start over; anything else is refused, and
+     * the upload is suspended again on close. Returns false, leaving a fresh upload, if
+     * there is nothing to resume. Must be called before any write.
+     */
+    boolean resume() throws IOException {
+        S3UploadJournal journal = S3UploadJournal.suspended(bucket, key, owner);
+        if (journal == null) {
+            return false;
+        }
+        S3MultipartUpload continued = S3MultipartUpload.resume(backend, bucket, key,
+                S3MultipartUpload.MAX_IN_FLIGHT_PARTS, journal);
+        if (continued == null) {
+            return false;
+        }
+        lock.lock();
+        try {
+            upload = continued;
+            partNumber = journal.durableParts();
+            frontier = journal.durableSize();
+            base = frontier;
+            size = frontier;
+            resumed = true;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts from the current content of the key so that writes at its end append to it.
+     * An object of at least the minimum part size is copied into the upload server-side
+     * with {@code UploadPartCopy}, so only the appended bytes are sent; a smaller one
+     * cannot be a part of its own and is fetched and staged instead. Returns false if the
+     * key does not exist. Must be called before any write.
+     */
+    boolean append() throws IOException {
+        HeadObjectResponse head;
+        try {
+            head = S3Backend.await(backend.headObject(HeadObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .build()));
+        } catch (NoSuchKeyException e) {
+            return false;
+        } catch (S3Exception e) {
+            throw new IOException("Failed to open " + key + " for append: " + e.getMessage(), e);
+        }
+        long existing = head.contentLength();
+        lock.lock();
+        try {
+            if (existing < S3MultipartUpload.MIN_PART_SIZE) {
+                stageExisting(existing, head.eTag());
+            } else {
+                copyExisting(existing, head.eTag());
+            }
+            size = existing;
+            unchanged = true;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void stageExisting(long existing, String eTag) throws IOException {
+        try (ResponseInputStream<GetObjectResponse> response = S3Backend.await(backend.getObject(GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .ifMatch(eTag)
+                .build()))) {
+            byte[] chunk = new byte[64 * 1024];
+            long offset = 0;
+            for (int n; (n = response.read(chunk)) > 0; offset += n) {
+                staging.write(offset, ByteBuffer.wrap(chunk, 0, n));
+            }
+            if (offset != existing) {
+                throw new IOException("Object changed while opening for append: " + key);
+            }
+        } catch (S3Exception e) {
+            throw new IOException("Failed to read " + key + " for append: " + e.getMessage(), e);
+        }
+        if (existing > 0) {
+            cover(0, existing);
+        }
+    }
+
+    private void copyExisting(long existing, String eTag) throws IOException {
+        try {
+            copyParts(key, eTag, 0, existing);
+        } catch (IOException e) {
+            if (upload != null) {
+                upload.abort();
+                upload = null;
+            }
+            partNumber = 0;
+            frontier = 0;
+            base = 0;
+            throw e;
+        }
+    }
+
+    /**
+     * Writes {@code length} bytes at {@code first} of another object in the bucket at
+     * {@code position} by server-side copy, so the data never passes through this host.
+     * Returns false, copying nothing, unless {@code position} is the end of the upload
+     * with nothing staged and the range is large enough to be followed by another part;
+     * the caller then writes the bytes itself.
+     */
+    boolean copyFrom(long position, String sourceKey, String sourceETag, long first, long length)
+            throws IOException {
+        lock.lock();
+        try {
+            if (length < S3MultipartUpload.MIN_PART_SIZE) {
+                return false;
+            }
+            checkResumedAt(position);
+            if (position != frontier || size != frontier) {
+                return false;
+            }
+            unchanged = false;
+            copyParts(sourceKey, sourceETag, first, length);
+            size = frontier;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies a range of an object into the upload at the frontier and moves the frontier
+     * past it. Must hold the lock, with nothing staged beyond the frontier.
+     */
+    private void copyParts(String sourceKey, String sourceETag, long first, long length) throws IOException {
+        startUpload();
+        // Staging resumes at the next block boundary past what earlier parts may still use
+        long blockSize = staging.blockSize();
+        long stagingFrontier = (frontier - base + blockSize - 1) / blockSize * blockSize;
+        // Even parts, so that none but the last part of the whole upload is too small;
+        // the range is at least the minimum part size, so there is always one
+        long copyPartSize = S3CopyEngine.partSize(length);
+        long parts = Math.min((length + copyPartSize - 1) / copyPartSize, length / S3MultipartUpload.MIN_PART_SIZE);
+        long partSize = (length + parts - 1) / parts;
+        for (long offset = 0; offset < length; offset += partSize) {
+            upload.copyPart(++partNumber, sourceKey, sourceETag, first + offset,
+                    first + Math.min(offset + partSize, length) - 1);
+        }
+        frontier += length;
+        base = frontier - stagingFrontier;
+    }
+
+    /**
+     * Makes {@link #finish} keep the upload for a later resume instead of completing it.
+     * Ignored unless uploads are journaled, as otherwise it could never be resumed and
+     * whatever had arrived would just be lost.
+     */
+    void suspendOnClose() {
+        if (!S3UploadJournal.ENABLED) {
+            return;
+        }
+        lock.lock();
+        try {
+            suspendOnClose = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stages the remaining bytes of {@code src} at {@code position}, uploading any parts
+     * they complete, and returns the number of bytes written.
+     */
+    int write(long position, ByteBuffer src) throws IOException {
+        lock.lock();
+        try {
+            if (src.hasRemaining()) {
+                checkResumedAt(position);
+                unchanged = false;
+            }
+            if (position < frontier && src.hasRemaining()) {
+                throw new IOException("Cannot rewrite " + key + " at offset " + position
+                        + ": data up to " + frontier + " has already been uploaded");
+            }
+            int written = staging.write(position - base, src);
+            if (written > 0) {
+                cover(position, position + written);
+                size = Math.max(size, position + written);
+                emitCompleteParts();
+            }
+            return written;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * One past the highest byte written, less any truncation.
+     */
+    long size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void truncate(long newSize) throws IOException {
+        lock.lock();
+        try {
+            if (newSize >= size) {
+                return;
+            }
+            checkResumedAt(newSize);
+            unchanged = false;
+            if (newSize < frontier) {
+                throw new IOException("Cannot truncate " + key + " to " + newSize
+                        + ": data up to " + frontier + " has already been uploaded");
+            }
+            staging.truncate(newSize - base);
+            covered.tailMap(newSize, true).clear();
+            Map.Entry<Long, Long> last = covered.lastEntry();
+            if (last != null && last.getValue() > newSize) {
+                covered.put(last.getKey(), newSize);
+            }
+            size = newSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Uploads everything not yet uploaded and completes the upload. On failure the
+     * multipart upload, if any, is aborted.
+     */
+    void finish() throws IOException {
+        lock.lock();
+        try {
+            if (unchanged) {
+                // Opened for append but nothing appended; the object stays as it is
+                if (upload != null) {
+                    upload.abort();
+                }
+                return;
+            }
+            if (upload == null) {
+                if (suspendOnClose) {
+                    // Not even a part has gone up, so there is nothing to resume; like the
+                    // tail of a larger upload, the staged bytes are dropped, not published
+                    S3Trace.event("Dropping {} unfinished bytes of {}", size, key);
+                    return;
+                }
+                S3MultipartUpload.uploadStaged(backend, bucket, key, staging);
+                return;
+            }
+            if (suspendOnClose || resumed) {
+                // Staged bytes past the last whole part are dropped; the client resends them.
+                // A resumed upload that was never continued stays as it was
+                upload.suspend();
+                return;
+            }
+            try {
+                while (frontier < size) {
+                    emitPart((int) Math.min(PART_SIZE, size - frontier));
+                }
+            } catch (IOException e) {
+                upload.abort();
+                throw e;
+            }
+            upload.complete();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            staging.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The first change to a resumed upload must continue it at the durable end, or start
+     * over at 0, in which case the old upload is dropped and a fresh one begins. At any
+     * other offset the client does not know what was uploaded, and writing there would
+     * either duplicate data or leave zeros, so it is refused. Must hold the lock.
+     */
+    private void checkResumedAt(long position) throws IOException {
+        if (!resumed) {
+            return;
+        }
+        if (position == 0 && frontier > 0) {
+            S3Trace.event("Client rewrote {} from the start, starting a new upload", key);
+            upload.abort();
+            upload = null;
+            partNumber = 0;
+            frontier = 0;
+            base = 0;
+            size = 0;
+        } else if (position != frontier) {
+            throw new IOException("Cannot resume upload of " + key + " at offset " + position
+                    + ": " + frontier + " bytes have been uploaded");
+        }
+        resumed = false;
+    }
+
+    /**
+     * Adds {@code [start, end)} to the covered ranges, merging it with any it touches.
+     */
+    private void cover(long start, long end) {
+        Map.Entry<Long, Long> before = covered.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+        for (Map.Entry<Long, Long> next = covered.ceilingEntry(start);
+             next != null && next.getKey() <= end;
+             next = covered.ceilingEntry(start)) {
+            end = Math.max(end, next.getValue());
+            covered.remove(next.getKey());
+        }
+        covered.put(start, end);
+    }
+
+    private void emitCompleteParts() throws IOException {
+        Map.Entry<Long, Long> first = covered.firstEntry();
+        while (first != null && first.getKey() == frontier && first.getValue() - frontier >= PART_SIZE) {
+            emitPart(PART_SIZE);
+            first = covered.firstEntry();
+        }
+    }
+
+    private void startUpload() throws IOException {
+        if (upload == null) {
+            upload = new S3MultipartUpload(backend, bucket, key, S3MultipartUpload.MAX_IN_FLIGHT_PARTS);
+            upload.start(owner);
+        }
+    }
+
+    /**
+     * Uploads {@code length} bytes at the frontier as the next part and moves the
+     * frontier past them.
+     */
+    private void emitPart(int length) throws IOException {
+        startUpload();
+        long staged = frontier - base;
+        upload.uploadPart(++partNumber, staging.slice(staged, length), () -> staging.release(staged, staged + length));
+        long end = frontier + length;
+        frontier = end;
+
+        // Drop coverage behind the new frontier
+        Map.Entry<Long, Long> first = covered.firstEntry();
+        while (first != null && first.getKey() < end) {
+            covered.remove(first.getKey());
+            if (first.getValue() > end) {
+                covered.put(end, first.getValue());
+            }
+            first = covered.firstEntry();
+        }
+    }
+}
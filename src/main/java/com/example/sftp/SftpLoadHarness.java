@@ -0,0 +1,266 @@
+package com.example.sftp;
+
+import org.apache.sshd.client.SshClient;
+import org.apache.sshd.client.keyverifier.AcceptAllServerKeyVerifier;
+import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.sftp.client.SftpClient;
+import org.apache.sshd.sftp.client.SftpClientFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end load test: starts an {@link S3SftpServer} over an {@link InMemoryS3Backend}
+ * with injected latency, then runs concurrent SFTP clients doing a mix of uploads,
+ * downloads and directory listings. Reports throughput and p50/p99 latency per SFTP
+ * operation together with the S3 requests the run cost.
+ *
+ * <p>Options are given as {@code --name=value}: {@code clients} (8), {@code seconds} (30),
+ * {@code fileSize} in bytes (1 MiB), {@code seedFiles} (200), {@code latencyMillis} (20),
+ * {@code jitterMillis} (10), {@code uploadPercent} (30) and {@code downloadPercent} (50);
+ * the rest of the mix is listings.
+ */
+public class SftpLoadHarness {
+    private static final String USER = "admin";
+    private static final String PASSWORD = "password@123";
+    private static final String BUCKET = "load-test";
+    private static final String SEED_DIR = "/home/admin/load/seed";
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(30);
+
+    enum Operation { UPLOAD, DOWNLOAD, LIST }
+
+    private final int clients;
+    private final Duration duration;
+    private final int fileSize;
+    private final int seedFiles;
+    private final Duration latency;
+    private final Duration jitter;
+    private final int uploadPercent;
+    private final int downloadPercent;
+
+    public SftpLoadHarness(Map<String, String> options) {
+        this.clients = intOption(options, "clients", 8);
+        this.duration = Duration.ofSeconds(intOption(options, "seconds", 30));
+        this.fileSize = intOption(options, "fileSize", 1024 * 1024);
+        this.seedFiles = Math.max(1, intOption(options, "seedFiles", 200));
+        this.latency = Duration.ofMillis(intOption(options, "latencyMillis", 20));
+        this.jitter = Duration.ofMillis(intOption(options, "jitterMillis", 10));
+        this.uploadPercent = intOption(options, "uploadPercent", 30);
+        this.downloadPercent = intOption(options, "downloadPercent", 50);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value, got: " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        new SftpLoadHarness(options).run();
+    }
+
+    public void run() throws Exception {
+        InMemoryS3Backend backend = new InMemoryS3Backend(latency, jitter);
+        byte[] payload = new byte[fileSize];
+        new Random(42).nextBytes(payload);
+        for (int i = 0; i < seedFiles; i++) {
+            backend.putBytes(seedKey(i), payload);
+        }
+
+        S3SftpServer server = new S3SftpServer(0, BUCKET, backend);
+        server.start();
+        SshClient client = SshClient.setUpDefaultClient();
+        client.setServerKeyVerifier(AcceptAllServerKeyVerifier.INSTANCE);
+        client.start();
+
+        ExecutorService workers = Executors.newFixedThreadPool(clients);
+        try {
+            backend.resetRequestCounts();
+            long deadline = System.nanoTime() + duration.toNanos();
+            List<Future<Recorder>> results = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                int clientId = i;
+                results.add(workers.submit(() -> runClient(client, server.getPort(), clientId, payload, deadline)));
+            }
+
+            Recorder total = new Recorder();
+            for (Future<Recorder> result : results) {
+                total.merge(result.get());
+            }
+            report(total, backend.requestCounts());
+        } finally {
+            workers.shutdownNow();
+            client.stop();
+            server.shutdown();
+        }
+    }
+
+    private Recorder runClient(SshClient client, int port, int clientId, byte[] payload, long deadline)
+            throws IOException {
+        Recorder recorder = new Recorder();
+        Random random = new Random(clientId);
+        String uploadDir = "/home/admin/load/client-" + clientId;
+        byte[] readBuffer = new byte[64 * 1024];
+        int uploads = 0;
+
+        try (ClientSession session = client.connect(USER, "localhost", port)
+                .verify(CONNECT_TIMEOUT)
+                .getSession()) {
+            session.addPasswordIdentity(PASSWORD);
+            session.auth().verify(CONNECT_TIMEOUT);
+
+            try (SftpClient sftp = SftpClientFactory.instance().createSftpClient(session)) {
+                while (System.nanoTime() < deadline) {
+                    Operation operation = pick(random.nextInt(100));
+                    long start = System.nanoTime();
+                    long bytes = 0;
+                    try {
+                        switch (operation) {
+                            case UPLOAD:
+                                try (OutputStream out = sftp.write(uploadDir + "/file-" + (uploads++) + ".bin")) {
+                                    out.write(payload);
+                                }
+                                bytes = payload.length;
+                                break;
+                            case DOWNLOAD:
+                                try (InputStream in = sftp.read("/" + seedKey(random.nextInt(seedFiles)))) {
+                                    for (int read; (read = in.read(readBuffer)) >= 0; ) {
+                                        bytes += read;
+                                    }
+                                }
+                                break;
+                            case LIST:
+                                for (SftpClient.DirEntry ignored : sftp.readDir(SEED_DIR)) {
+                                    bytes++;
+                                }
+                                break;
+                        }
+                        recorder.record(operation, System.nanoTime() - start, bytes);
+                    } catch (IOException e) {
+                        recorder.fail(operation);
+                    }
+                }
+            }
+        }
+        return recorder;
+    }
+
+    private Operation pick(int roll) {
+        if (roll < uploadPercent) {
+            return Operation.UPLOAD;
+        }
+        return roll < uploadPercent + downloadPercent ? Operation.DOWNLOAD : Operation.LIST;
+    }
+
+    private void report(Recorder recorder, Map<String, Long> s3Requests) {
+        double seconds = duration.toNanos() / 1e9;
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("%n=== SFTP load: %d clients, %ds, %d-byte files, S3 latency %dms +/- %dms ===%n",
+                clients, duration.getSeconds(), fileSize, latency.toMillis(), jitter.toMillis()));
+        out.append(String.format("%-10s %8s %7s %10s %10s %9s %9s%n",
+                "operation", "count", "errors", "ops/s", "MB/s", "p50 ms", "p99 ms"));
+        long totalOps = 0;
+        for (Operation operation : Operation.values()) {
+            long[] latencies = recorder.latencies(operation);
+            totalOps += latencies.length;
+            double megabytes = operation == Operation.LIST ? 0 : recorder.bytes(operation) / (1024.0 * 1024.0);
+            out.append(String.format("%-10s %8d %7d %10.1f %10.1f %9.2f %9.2f%n",
+                    operation.name().toLowerCase(Locale.ROOT), latencies.length, recorder.errors(operation),
+                    latencies.length / seconds, megabytes / seconds,
+                    percentile(latencies, 0.50) / 1e6, percentile(latencies, 0.99) / 1e6));
+        }
+
+        long totalRequests = s3Requests.values().stream().mapToLong(Long::longValue).sum();
+        out.append(String.format("%nS3 requests: %d (%.2f per SFTP operation)%n", totalRequests,
+                totalOps > 0 ? (double) totalRequests / totalOps : 0.0));
+        s3Requests.forEach((operation, count) -> out.append(String.format("  %-24s %10d%n", operation, count)));
+        System.out.print(out);
+    }
+
+    private static String seedKey(int index) {
+        return String.format("%s/file-%04d.bin", SEED_DIR.substring(1), index);
+    }
+
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        String value = options.get(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    /**
+     * Nearest-rank percentile of already sorted values.
+     */
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(fraction * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    /**
+     * Per-client latency samples; merged once the run is over, so no synchronization.
+     */
+    private static final class Recorder {
+        private final Map<Operation, long[]> samples = new EnumMap<>(Operation.class);
+        private final Map<Operation, Integer> counts = new EnumMap<>(Operation.class);
+        private final Map<Operation, AtomicLong> bytes = new EnumMap<>(Operation.class);
+        private final Map<Operation, AtomicLong> errors = new EnumMap<>(Operation.class);
+
+        Recorder() {
+            for (Operation operation : Operation.values()) {
+                samples.put(operation, new long[256]);
+                counts.put(operation, 0);
+                bytes.put(operation, new AtomicLong());
+                errors.put(operation, new AtomicLong());
+            }
+        }
+
+        void record(Operation operation, long nanos, long transferred) {
+            int count = counts.get(operation);
+            long[] values = samples.get(operation);
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+                samples.put(operation, values);
+            }
+            values[count] = nanos;
+            counts.put(operation, count + 1);
+            bytes.get(operation).addAndGet(transferred);
+        }
+
+        void fail(Operation operation) {
+            errors.get(operation).incrementAndGet();
+        }
+
+        void merge(Recorder other) {
+            for (Operation operation : Operation.values()) {
+                long[] theirs = other.samples.get(operation);
+                int theirCount = other.counts.get(operation);
+                for (int i = 0; i < theirCount; i++) {
+                    record(operation, theirs[i], 0);
+                }
+                bytes.get(operation).addAndGet(other.bytes.get(operation).get());
+                errors.get(operation).addAndGet(other.errors.get(operation).get());
+            }
+        }
+
+        long[] latencies(Operation operation) {
+            long[] values = Arrays.copyOf(samples.get(operation), counts.get(operation));
+            Arrays.sort(values);
+            return values;
+        }
+
+        long bytes(Operation operation) {
+            return bytes.get(operation).get();
+        }
+
+        long errors(Operation operation) {
+            return errors.get(operation).get();
+        }
+    }
+}
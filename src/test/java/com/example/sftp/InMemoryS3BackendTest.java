@@ -0,0 +1,131 @@
+package com.example.sftp;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * The parts of S3's behaviour that callers depend on, as reproduced by {@link InMemoryS3Backend}.
+ */
+class InMemoryS3BackendTest {
+    private static final int MIN_PART_SIZE = S3MultipartUpload.MIN_PART_SIZE;
+
+    private InMemoryS3Backend backend;
+
+    @BeforeEach
+    void setUp() {
+        backend = new InMemoryS3Backend();
+    }
+
+    @AfterEach
+    void tearDown() {
+        backend.close();
+    }
+
+    @Test
+    void conditionalReadsFailWithPreconditionFailed() throws Exception {
+        backend.putBytes("object", new byte[100]);
+        String eTag = S3Backend.await(backend.headObject(HeadObjectRequest.builder()
+                .bucket("bucket")
+                .key("object")
+                .build())).eTag();
+
+        try (ResponseInputStream<GetObjectResponse> in = S3Backend.await(backend.getObject(GetObjectRequest.builder()
+                .bucket("bucket")
+                .key("object")
+                .ifMatch(eTag)
+                .build()))) {
+            assertEquals(100, in.readAllBytes().length);
+        }
+        S3Exception e = assertThrows(S3Exception.class, () -> S3Backend.await(backend.getObject(GetObjectRequest.builder()
+                .bucket("bucket")
+                .key("object")
+                .ifMatch("\"stale\"")
+                .build())));
+        assertEquals(412, e.statusCode());
+
+        String uploadId = create("copy");
+        e = assertThrows(S3Exception.class, () -> S3Backend.await(backend.uploadPartCopy(UploadPartCopyRequest.builder()
+                .sourceBucket("bucket")
+                .sourceKey("object")
+                .copySourceIfMatch("\"stale\"")
+                .destinationBucket("bucket")
+                .destinationKey("copy")
+                .uploadId(uploadId)
+                .partNumber(1)
+                .build())));
+        assertEquals(412, e.statusCode());
+    }
+
+    @Test
+    void partETagsFollowContent() {
+        String uploadId = create("parts");
+        String first = uploadPart(uploadId, 1, new byte[10]);
+        String same = uploadPart(uploadId, 2, new byte[10]);
+        String other = uploadPart(uploadId, 3, new byte[11]);
+
+        assertEquals(first, same);
+        assertNotEquals(first, other);
+        List<Part> listed = S3Backend.await(backend.listParts(ListPartsRequest.builder()
+                .bucket("bucket")
+                .key("parts")
+                .uploadId(uploadId)
+                .build())).parts();
+        assertEquals(List.of(first, same, other), listed.stream().map(Part::eTag).toList());
+    }
+
+    @Test
+    void completeRejectsSmallPartsAndWrongETags() {
+        String uploadId = create("small");
+        String small = uploadPart(uploadId, 1, new byte[MIN_PART_SIZE - 1]);
+        String last = uploadPart(uploadId, 2, new byte[10]);
+
+        S3Exception e = assertThrows(S3Exception.class, () -> complete("small", uploadId,
+                part(1, small), part(2, last)));
+        assertEquals("EntityTooSmall", e.awsErrorDetails().errorCode());
+        e = assertThrows(S3Exception.class, () -> complete("small", uploadId, part(1, last)));
+        assertEquals("InvalidPart", e.awsErrorDetails().errorCode());
+
+        // A single small part is also the last one
+        complete("small", uploadId, part(2, last));
+        assertEquals(1, backend.objectCount());
+    }
+
+    private String create(String key) {
+        return S3Backend.await(backend.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                .bucket("bucket")
+                .key(key)
+                .build())).uploadId();
+    }
+
+    private String uploadPart(String uploadId, int partNumber, byte[] data) {
+        return S3Backend.await(backend.uploadPart(UploadPartRequest.builder()
+                .bucket("bucket")
+                .key("unused")
+                .uploadId(uploadId)
+                .partNumber(partNumber)
+                .build(), ByteBuffer.wrap(data))).eTag();
+    }
+
+    private void complete(String key, String uploadId, CompletedPart... parts) {
+        S3Backend.await(backend.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                .bucket("bucket")
+                .key(key)
+                .uploadId(uploadId)
+                .multipartUpload(CompletedMultipartUpload.builder().parts(parts).build())
+                .build()));
+    }
+
+    private static CompletedPart part(int partNumber, String eTag) {
+        return CompletedPart.builder().partNumber(partNumber).eTag(eTag).build();
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.sftp;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.StorageClass;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Copies by {@link S3CopyEngine} against {@link InMemoryS3Backend}. The build lowers the
+ * multipart threshold for tests, so multipart copies need only a few MiB.
+ */
+class S3CopyEngineTest {
+    private static final int LARGE = 16 * 1024 * 1024;
+
+    private InMemoryS3Backend backend;
+    private S3CopyEngine engine;
+
+    @BeforeEach
+    void setUp() {
+        backend = new InMemoryS3Backend();
+        engine = new S3CopyEngine(backend, "bucket");
+    }
+
+    @AfterEach
+    void tearDown() {
+        backend.close();
+    }
+
+    @Test
+    void multipartCopyKeepsSourceSettings() throws IOException {
+        byte[] data = put("source.csv", LARGE);
+
+        engine.copyObject("source.csv", "target.csv");
+
+        assertArrayEquals(data, get("target.csv"));
+        assertSettings(head("target.csv"));
+        assertEquals(4L, backend.requestCounts().get("UploadPartCopy"));
+    }
+
+    @Test
+    void treeCopyKeepsSourceSettings() throws IOException {
+        byte[] large = put("from/large.csv", LARGE);
+        byte[] small = put("from/small.csv", 1000);
+
+        engine.copyTree("from/", "to/", false);
+
+        assertArrayEquals(large, get("to/large.csv"));
+        assertSettings(head("to/large.csv"));
+        assertArrayEquals(small, get("to/small.csv"));
+        assertSettings(head("to/small.csv"));
+    }
+
+    private static void assertSettings(HeadObjectResponse head) {
+        assertEquals("text/csv", head.contentType());
+        assertEquals(Map.of("origin", "export"), head.metadata());
+        assertEquals(StorageClass.STANDARD_IA, head.storageClass());
+    }
+
+    private byte[] put(String key, int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        S3Backend.await(backend.putObject(PutObjectRequest.builder()
+                .bucket("bucket")
+                .key(key)
+                .contentType("text/csv")
+                .metadata(Map.of("origin", "export"))
+                .storageClass(StorageClass.STANDARD_IA)
+                .build(), ByteBuffer.wrap(data)));
+        return data;
+    }
+
+    private HeadObjectResponse head(String key) {
+        return S3Backend.await(backend.headObject(HeadObjectRequest.builder()
+                .bucket("bucket")
+                .key(key)
+                .build()));
+    }
+
+    private byte[] get(String key) throws IOException {
+        try (ResponseInputStream<GetObjectResponse> in = S3Backend.await(backend.getObject(GetObjectRequest.builder()
+                .bucket("bucket")
+                .key(key)
+                .build()))) {
+            return in.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.sftp;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Failure handling of {@link S3MultipartUpload} against {@link InMemoryS3Backend}.
+ */
+class S3MultipartUploadTest {
+    private FailingBackend backend;
+
+    @AfterEach
+    void tearDown() {
+        backend.close();
+    }
+
+    @Test
+    void clientFailureOnCompleteAbortsAndThrowsIOException() throws IOException {
+        backend = new FailingBackend(false);
+        S3MultipartUpload upload = startWithOnePart("complete.bin");
+
+        IOException e = assertThrows(IOException.class, upload::complete);
+        assertInstanceOf(SdkClientException.class, e.getCause());
+        assertEquals(1L, backend.requestCounts().get("AbortMultipartUpload"));
+    }
+
+    @Test
+    void clientFailureOnAbortIsOnlyReported() throws IOException {
+        backend = new FailingBackend(true);
+        S3MultipartUpload upload = startWithOnePart("abort.bin");
+
+        upload.abort();
+        IOException e = assertThrows(IOException.class, startWithOnePart("abort.bin")::complete);
+        assertEquals("Connection reset", e.getCause().getMessage());
+        assertEquals(2L, backend.requestCounts().get("AbortMultipartUpload"));
+    }
+
+    private S3MultipartUpload startWithOnePart(String key) throws IOException {
+        S3MultipartUpload upload = new S3MultipartUpload(backend, "bucket", key, 1);
+        upload.start();
+        upload.uploadPart(1, ByteBuffer.allocate(1024), () -> { });
+        return upload;
+    }
+
+    /**
+     * Fails completing uploads, and optionally aborting them, as if the connection dropped.
+     */
+    private static final class FailingBackend extends InMemoryS3Backend {
+        private final boolean failAbort;
+
+        FailingBackend(boolean failAbort) {
+            this.failAbort = failAbort;
+        }
+
+        @Override
+        public CompletableFuture<CompleteMultipartUploadResponse> completeMultipartUpload(
+                CompleteMultipartUploadRequest request) {
+            return CompletableFuture.failedFuture(SdkClientException.create("Connection reset"));
+        }
+
+        @Override
+        public CompletableFuture<AbortMultipartUploadResponse> abortMultipartUpload(AbortMultipartUploadRequest request) {
+            CompletableFuture<AbortMultipartUploadResponse> result = super.abortMultipartUpload(request);
+            return failAbort
+                    ? result.thenCompose(ignored -> CompletableFuture.failedFuture(SdkClientException.create("Connection reset")))
+                    : result;
+        }
+    }
+}
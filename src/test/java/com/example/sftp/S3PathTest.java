@@ -0,0 +1,149 @@
+package com.example.sftp;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Name handling of {@link S3Path}, whose derived paths are views over their source string.
+ */
+class S3PathTest {
+    private InMemoryS3Backend backend;
+    private S3FileSystem fileSystem;
+
+    @BeforeEach
+    void setUp() {
+        backend = new InMemoryS3Backend();
+        fileSystem = new S3FileSystem(backend, "bucket");
+    }
+
+    @AfterEach
+    void tearDown() {
+        backend.close();
+    }
+
+    @Test
+    void fileNameIsRelative() {
+        assertPath("c", false, path("/a/b/c").getFileName());
+        assertPath("a", false, path("/a").getFileName());
+        assertPath("c", false, path("a/b/c").getFileName());
+        assertPath("a", false, path("a").getFileName());
+        assertPath("b", false, path("/a/b/").getFileName());
+        assertNull(path("/").getFileName());
+        assertNull(path("").getFileName());
+    }
+
+    @Test
+    void namesAreRelative() {
+        Path absolute = path("/a/b/c");
+        assertEquals(3, absolute.getNameCount());
+        assertPath("a", false, absolute.getName(0));
+        assertPath("b", false, absolute.getName(1));
+        assertPath("c", false, absolute.getName(2));
+        assertPath("a", false, path("/a").getName(0));
+        assertPath("x", false, path("x").getName(0));
+        assertThrows(IllegalArgumentException.class, () -> absolute.getName(3));
+        assertThrows(IllegalArgumentException.class, () -> path("/").getName(0));
+
+        StringBuilder joined = new StringBuilder();
+        for (Path name : path("/a//b/c/")) {
+            joined.append('[').append(name).append(']');
+        }
+        assertEquals("[a][b][c]", joined.toString());
+    }
+
+    @Test
+    void subpathIsRelative() {
+        Path absolute = path("/a/b/c/d");
+        assertPath("a/b", false, absolute.subpath(0, 2));
+        assertPath("b/c", false, absolute.subpath(1, 3));
+        assertPath("a/b/c/d", false, absolute.subpath(0, 4));
+        assertPath("c/d", false, path("a/b/c/d").subpath(2, 4));
+        assertThrows(IllegalArgumentException.class, () -> absolute.subpath(2, 2));
+        assertThrows(IllegalArgumentException.class, () -> absolute.subpath(0, 5));
+    }
+
+    @Test
+    void parentKeepsAbsoluteness() {
+        assertPath("/a/b", true, path("/a/b/c").getParent());
+        assertPath("/a", true, path("/a/b").getParent());
+        assertPath("/", true, path("/a").getParent());
+        assertNull(path("/").getParent());
+        assertPath("a", false, path("a/b").getParent());
+        assertNull(path("a").getParent());
+        assertPath("/a", true, path("/a/b/").getParent());
+        assertPath("/", true, path("/a/b/c").getParent().getParent().getParent());
+    }
+
+    @Test
+    void normalizeResolvesDots() {
+        assertPath("/a/c", true, path("/a/b/../c").normalize());
+        assertPath("/a/b", true, path("/a/./b/.").normalize());
+        assertPath("/", true, path("/..").normalize());
+        assertPath("/b", true, path("/a/../../b").normalize());
+        assertPath("../b", false, path("a/../../b").normalize());
+        assertPath("", false, path("a/..").normalize());
+        assertPath("/a/...", true, path("/a/...").normalize());
+        Path clean = path("/a/.b/c");
+        assertSame(clean, clean.normalize());
+    }
+
+    @Test
+    void resolveJoinsNames() {
+        assertPath("/a/b/c", true, path("/a/b").resolve("c"));
+        assertPath("/x", true, path("/a/b").resolve("/x"));
+        assertPath("/c", true, path("/").resolve("c"));
+        assertPath("a/c/d", false, path("a").resolve("c/d/"));
+        assertPath("c", false, path("").resolve("c"));
+        assertPath("/a/b", true, path("/a/b").resolve(""));
+        assertPath("/a/b/c", true, path("/a/b/c").getParent().resolve(path("/a/b/c").getFileName()));
+        assertPath("/a/b/c/..", true, path("/a/b/c").resolve(".."));
+    }
+
+    @Test
+    void startsWithComparesNames() {
+        Path path = path("/a/b/c");
+        assertTrue(path.startsWith(path("/a/b")));
+        assertTrue(path.startsWith(path("/")));
+        assertTrue(path.startsWith(path("/a/b/c/")));
+        assertFalse(path.startsWith(path("/a/bc")));
+        assertFalse(path.startsWith(path("a/b")));
+        assertFalse(path.startsWith(path("/a/b/c/d")));
+        assertTrue(path("a/b").startsWith(path("a")));
+        assertFalse(path("a/b").startsWith(path("/a")));
+        assertTrue(path.getFileName().startsWith(path("c")));
+        assertTrue(path.subpath(1, 3).startsWith(path("b")));
+        assertTrue(path("/a/b/../c").startsWith(path("/a/b/..")));
+    }
+
+    @Test
+    void viewsEqualParsedPaths() {
+        Path path = path("/a/b/c");
+        assertEquals(path("c"), path.getFileName());
+        assertEquals(path("c").hashCode(), path.getFileName().hashCode());
+        assertEquals(path("/a/b"), path.getParent());
+        assertEquals(path("/a/b").hashCode(), path.getParent().hashCode());
+        assertEquals(path("b/c"), path.subpath(1, 3));
+        assertEquals("a/b/c", ((S3Path) path).getKey());
+        assertEquals("b/c", ((S3Path) path.subpath(1, 3)).getKey());
+        assertEquals("", path("/").getKey());
+    }
+
+    private S3Path path(String path) {
+        return new S3Path(fileSystem, path);
+    }
+
+    private static void assertPath(String expected, boolean absolute, Path actual) {
+        assertEquals(expected, actual.toString());
+        assertEquals(absolute, actual.isAbsolute());
+    }
+}
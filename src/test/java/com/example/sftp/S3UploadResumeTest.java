@@ -0,0 +1,143 @@
+package com.example.sftp;
+
+import org.apache.sshd.client.SshClient;
+import org.apache.sshd.client.keyverifier.AcceptAllServerKeyVerifier;
+import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.sftp.client.SftpClient;
+import org.apache.sshd.sftp.client.SftpClientFactory;
+import org.apache.sshd.sftp.common.SftpException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Resuming an upload over SFTP after the connection dropped, the way OpenSSH's
+ * {@code reput -a} does it: stat the remote file, then append from that size.
+ */
+class S3UploadResumeTest {
+    private static final String BUCKET = "bucket";
+    private static final int PART_SIZE = S3MultipartUpload.PART_SIZE;
+    private static final int CHUNK = 32 * 1024;
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+
+    private InMemoryS3Backend backend;
+    private S3SftpServer server;
+    private SshClient client;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        backend = new InMemoryS3Backend();
+        server = new S3SftpServer(0, BUCKET, backend);
+        server.start();
+        client = SshClient.setUpDefaultClient();
+        client.setServerKeyVerifier(AcceptAllServerKeyVerifier.INSTANCE);
+        client.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        client.stop();
+        server.shutdown();
+    }
+
+    @Test
+    void reputAppendsFromDurableSize() throws Exception {
+        byte[] data = random(2 * PART_SIZE + 3 * CHUNK);
+        String key = "home/admin/reput.bin";
+        dropDuring(key, Arrays.copyOf(data, 2 * PART_SIZE + CHUNK));
+
+        try (ClientSession session = connect(); SftpClient sftp = SftpClientFactory.instance().createSftpClient(session)) {
+            long size = sftp.stat("/" + key).getSize();
+            assertEquals(2L * PART_SIZE, size);
+            try (SftpClient.CloseableHandle handle = sftp.open("/" + key, EnumSet.of(SftpClient.OpenMode.Write,
+                    SftpClient.OpenMode.Create, SftpClient.OpenMode.Append))) {
+                for (int offset = (int) size; offset < data.length; offset += CHUNK) {
+                    sftp.write(handle, offset, data, offset, Math.min(CHUNK, data.length - offset));
+                }
+            }
+        }
+
+        assertArrayEquals(data, get(key));
+    }
+
+    @Test
+    void refusesToResumeAtAnotherOffset() throws Exception {
+        byte[] data = random(PART_SIZE + 2 * CHUNK);
+        String key = "home/admin/misplaced.bin";
+        dropDuring(key, data);
+
+        try (ClientSession session = connect(); SftpClient sftp = SftpClientFactory.instance().createSftpClient(session)) {
+            try (SftpClient.CloseableHandle handle = sftp.open("/" + key, EnumSet.of(SftpClient.OpenMode.Write,
+                    SftpClient.OpenMode.Create))) {
+                assertThrows(SftpException.class, () -> sftp.write(handle, PART_SIZE + CHUNK, data, 0, CHUNK));
+            }
+            // Nothing was published, and the upload can still be resumed where it was
+            assertEquals(PART_SIZE, sftp.stat("/" + key).getSize());
+        }
+        assertThrows(NoSuchKeyException.class, () -> S3Backend.await(backend.headObject(HeadObjectRequest.builder()
+                .bucket(BUCKET)
+                .key(key)
+                .build())));
+    }
+
+    /**
+     * Writes {@code data} to {@code key} and drops the connection with the file still
+     * open, then waits for the upload to be suspended.
+     */
+    private void dropDuring(String key, byte[] data) throws Exception {
+        ClientSession session = connect();
+        SftpClient sftp = SftpClientFactory.instance().createSftpClient(session);
+        SftpClient.Handle handle = sftp.open("/" + key, EnumSet.of(SftpClient.OpenMode.Write,
+                SftpClient.OpenMode.Create, SftpClient.OpenMode.Truncate));
+        for (int offset = 0; offset < data.length; offset += CHUNK) {
+            sftp.write(handle, offset, data, offset, Math.min(CHUNK, data.length - offset));
+        }
+        session.close(true);
+
+        long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while (S3UploadJournal.suspended(BUCKET, key, "admin") == null && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+        }
+        assertNotNull(S3UploadJournal.suspended(BUCKET, key, "admin"));
+    }
+
+    private ClientSession connect() throws IOException {
+        ClientSession session = client.connect("admin", "localhost", server.getPort())
+                .verify(TIMEOUT)
+                .getSession();
+        session.addPasswordIdentity("password@123");
+        session.auth().verify(TIMEOUT);
+        return session;
+    }
+
+    private byte[] get(String key) throws IOException {
+        try (ResponseInputStream<GetObjectResponse> in = S3Backend.await(backend.getObject(GetObjectRequest.builder()
+                .bucket(BUCKET)
+                .key(key)
+                .build()))) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static byte[] random(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,209 @@
+package com.example.sftp;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Behaviour of {@link S3WriteAssembler} against {@link InMemoryS3Backend}. Resuming needs
+ * {@code s3sftp.upload.resumable}, which the build sets for tests.
+ */
+class S3WriteAssemblerTest {
+    private static final int PART_SIZE = S3MultipartUpload.PART_SIZE;
+    private static final int CHUNK = 32 * 1024;
+
+    private InMemoryS3Backend backend;
+
+    @BeforeEach
+    void setUp() {
+        backend = new InMemoryS3Backend();
+    }
+
+    @AfterEach
+    void tearDown() {
+        backend.close();
+    }
+
+    @Test
+    void assemblesOutOfOrderWrites() throws IOException {
+        byte[] data = random(2 * PART_SIZE + 12345);
+        List<Integer> offsets = new ArrayList<>();
+        for (int offset = 0; offset < data.length; offset += CHUNK) {
+            offsets.add(offset);
+        }
+        Collections.shuffle(offsets, new Random(1));
+
+        try (S3WriteAssembler assembler = new S3WriteAssembler(backend, "bucket", "shuffled.bin")) {
+            for (int offset : offsets) {
+                assembler.write(offset, ByteBuffer.wrap(data, offset, Math.min(CHUNK, data.length - offset)));
+            }
+            assertEquals(data.length, assembler.size());
+            assembler.finish();
+        }
+
+        assertArrayEquals(data, get("shuffled.bin"));
+        assertEquals(3L, backend.requestCounts().get("UploadPart"));
+    }
+
+    @Test
+    void holesReadAsZeros() throws IOException {
+        byte[] head = random(1000);
+        byte[] tail = random(1000);
+        long tailAt = PART_SIZE + 4096L;
+
+        try (S3WriteAssembler assembler = new S3WriteAssembler(backend, "bucket", "sparse.bin")) {
+            assembler.write(0, ByteBuffer.wrap(head));
+            assembler.write(tailAt, ByteBuffer.wrap(tail));
+            assembler.finish();
+        }
+
+        byte[] expected = new byte[(int) tailAt + tail.length];
+        System.arraycopy(head, 0, expected, 0, head.length);
+        System.arraycopy(tail, 0, expected, (int) tailAt, tail.length);
+        assertArrayEquals(expected, get("sparse.bin"));
+    }
+
+    @Test
+    void truncatesAboveFrontier() throws IOException {
+        byte[] data = random(PART_SIZE + 2 * CHUNK * 10);
+        int newSize = PART_SIZE + CHUNK;
+
+        try (S3WriteAssembler assembler = new S3WriteAssembler(backend, "bucket", "truncated.bin")) {
+            writeSequentially(assembler, data, 0);
+            assembler.truncate(newSize);
+            assertEquals(newSize, assembler.size());
+            assembler.finish();
+        }
+
+        assertArrayEquals(Arrays.copyOf(data, newSize), get("truncated.bin"));
+    }
+
+    @Test
+    void refusesToTruncateBelowFrontier() throws IOException {
+        byte[] data = random(PART_SIZE + CHUNK);
+
+        try (S3WriteAssembler assembler = new S3WriteAssembler(backend, "bucket", "uploaded.bin")) {
+            writeSequentially(assembler, data, 0);
+            assertThrows(IOException.class, () -> assembler.truncate(PART_SIZE / 2));
+            assertThrows(IOException.class, () -> assembler.write(0, ByteBuffer.wrap(data, 0, CHUNK)));
+            assembler.finish();
+        }
+
+        assertArrayEquals(data, get("uploaded.bin"));
+    }
+
+    @Test
+    void resumesAfterDurableParts() throws IOException {
+        byte[] data = random(2 * PART_SIZE + 3 * CHUNK);
+        suspendAfter(data, 2 * PART_SIZE + CHUNK, "resumed.bin");
+
+        try (S3WriteAssembler assembler = new S3WriteAssembler(backend, "bucket", "resumed.bin")) {
+            assertTrue(assembler.resume());
+            assertEquals(2L * PART_SIZE, assembler.size());
+            writeSequentially(assembler, data, 2 * PART_SIZE);
+            assembler.finish();
+        }
+
+        assertArrayEquals(data, get("resumed.bin"));
+        assertFalse(backend.requestCounts().containsKey("AbortMultipartUpload"));
+    }
+
+    @Test
+    void rewriteAfterResumeStartsOver() throws IOException {
+        byte[] data = random(2 * PART_SIZE + 3 * CHUNK);
+        suspendAfter(data, PART_SIZE + CHUNK, "rewritten.bin");
+
+        try (S3WriteAssembler assembler = new S3WriteAssembler(backend, "bucket", "rewritten.bin")) {
+            assertTrue(assembler.resume());
+            writeSequentially(assembler, data, 0);
+            assembler.finish();
+        }
+
+        assertArrayEquals(data, get("rewritten.bin"));
+        assertEquals(1L, backend.requestCounts().get("AbortMultipartUpload"));
+        try (S3WriteAssembler assembler = new S3WriteAssembler(backend, "bucket", "rewritten.bin")) {
+            assertFalse(assembler.resume());
+        }
+    }
+
+    @Test
+    void suspendedSmallUploadIsNotPublished() throws IOException {
+        suspendAfter(random(3 * CHUNK), 3 * CHUNK, "small.bin");
+
+        assertThrows(NoSuchKeyException.class, () -> get("small.bin"));
+        try (S3WriteAssembler assembler = new S3WriteAssembler(backend, "bucket", "small.bin")) {
+            assertFalse(assembler.resume());
+        }
+    }
+
+    @Test
+    void appendsAfterServerSideCopy() throws IOException {
+        byte[] existing = random(PART_SIZE + PART_SIZE / 2);
+        byte[] appended = random(PART_SIZE + CHUNK);
+        backend.putBytes("appended.bin", existing);
+
+        try (S3WriteAssembler assembler = new S3WriteAssembler(backend, "bucket", "appended.bin")) {
+            assertTrue(assembler.append());
+            writeSequentially(assembler, appended, 0, existing.length);
+            assembler.finish();
+        }
+
+        byte[] expected = Arrays.copyOf(existing, existing.length + appended.length);
+        System.arraycopy(appended, 0, expected, existing.length, appended.length);
+        assertArrayEquals(expected, get("appended.bin"));
+        assertEquals(2L, backend.requestCounts().get("UploadPart"));
+    }
+
+    private void suspendAfter(byte[] data, int length, String key) throws IOException {
+        try (S3WriteAssembler assembler = new S3WriteAssembler(backend, "bucket", key)) {
+            writeSequentially(assembler, Arrays.copyOf(data, length), 0);
+            assembler.suspendOnClose();
+            assembler.finish();
+        }
+        backend.resetRequestCounts();
+    }
+
+    private static void writeSequentially(S3WriteAssembler assembler, byte[] data, int from) throws IOException {
+        writeSequentially(assembler, data, from, 0);
+    }
+
+    private static void writeSequentially(S3WriteAssembler assembler, byte[] data, int from, long position)
+            throws IOException {
+        for (int offset = from; offset < data.length; offset += CHUNK) {
+            assembler.write(position + offset, ByteBuffer.wrap(data, offset, Math.min(CHUNK, data.length - offset)));
+        }
+    }
+
+    private byte[] get(String key) throws IOException {
+        try (ResponseInputStream<GetObjectResponse> in = S3Backend.await(backend.getObject(GetObjectRequest.builder()
+                .bucket("bucket")
+                .key(key)
+                .build()))) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static byte[] random(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+}